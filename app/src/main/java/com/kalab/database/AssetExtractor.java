@@ -0,0 +1,348 @@
+package com.kalab.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * Copies the databases in the assets folder to the files folder in a
+ * background thread. The files are only written if they are missing, or if
+ * the app version has changed and the checksum of the asset differs from the
+ * one of the copy. Each file is written to a temporary file which is renamed
+ * when complete, so that no query sees a partly written database.
+ * <p>
+ * When reading in place, uncompressed assets are not copied but read from
+ * the APK by the native code, which copies a database to the files folder
+ * only when it is modified. A copy made that way is kept like a copied file.
+ */
+public class AssetExtractor {
+    private static final String TAG = AssetExtractor.class.getSimpleName();
+    private static final String CURRENT_VERSION_KEY = "currentVersion";
+    private static final String CHECKSUM_KEY_PREFIX = "checksum.";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final Context context;
+    private final String assetFolder;
+    private final File targetFolder;
+    private final boolean readInPlace;
+    private final List<Extraction> extractions = new ArrayList<>();
+    // assets read in place whose checksum is stored after all extractions
+    private final List<String> pendingChecksums = new ArrayList<>();
+
+    public AssetExtractor(Context context, String assetFolder, File targetFolder,
+                          boolean readInPlace) {
+        this.context = context;
+        this.assetFolder = assetFolder;
+        this.targetFolder = targetFolder;
+        this.readInPlace = readInPlace;
+    }
+
+    /**
+     * Start copying the assets in a background thread.
+     */
+    public void start() {
+        final AssetManager assetManager = context.getAssets();
+        if (assetManager == null) {
+            return;
+        }
+        final boolean needsUpdate = !isUpToDate();
+        try {
+            final String[] files = assetManager.list(assetFolder);
+            if (files != null) {
+                for (String fileName : files) {
+                    extractions.add(new Extraction(assetManager, fileName, needsUpdate));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean complete = true;
+                for (Extraction extraction : extractions) {
+                    extraction.run();
+                    complete &= extraction.await();
+                }
+                complete &= storePendingChecksums(assetManager);
+                if (needsUpdate && complete) {
+                    setCurrentVersion();
+                }
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    /**
+     * Wait until the files of the database have been copied. The files not
+     * copied yet are copied by the calling thread at once.
+     *
+     * @param fileName the file name of the database without extension
+     */
+    public void await(String fileName) {
+        for (Extraction extraction : extractions) {
+            if (extraction.belongsTo(fileName)) {
+                extraction.run();
+                extraction.await();
+            }
+        }
+    }
+
+    private boolean isUpToDate() {
+        SharedPreferences preferences = PreferenceManager
+                .getDefaultSharedPreferences(context);
+        return preferences.getString(CURRENT_VERSION_KEY, "").equals(
+                getCurrentAppVersion());
+    }
+
+    private void setCurrentVersion() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putString(CURRENT_VERSION_KEY, getCurrentAppVersion());
+        editor.commit();
+    }
+
+    private String getCurrentAppVersion() {
+        String result = "";
+        try {
+            result = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.v(TAG, e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * The copying of one asset. It runs once, in the background thread or in
+     * the first thread waiting for it.
+     */
+    private class Extraction extends FutureTask<Boolean> {
+        private final String targetName;
+
+        Extraction(final AssetManager assetManager, final String fileName,
+                   final boolean needsUpdate) {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return updateFile(assetManager, fileName, needsUpdate);
+                }
+            });
+            // the assets have an extra extension, so that they are not
+            // compressed
+            this.targetName = fileName.substring(0, fileName.lastIndexOf("."));
+        }
+
+        boolean belongsTo(String fileName) {
+            return targetName.equals(fileName)
+                    || targetName.startsWith(fileName + ".");
+        }
+
+        /**
+         * Wait until the file has been copied. Return true if it has been
+         * copied or was up to date.
+         */
+        boolean await() {
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(TAG, e.getCause().getMessage(), e.getCause());
+            }
+            return false;
+        }
+    }
+
+    private boolean updateFile(AssetManager assetManager, String fileName,
+                               boolean needsUpdate) throws IOException {
+        String assetName = new File(assetFolder, fileName).toString();
+        String strippedFileName = fileName.substring(0, fileName.lastIndexOf("."));
+        File outputFile = new File(targetFolder, strippedFileName);
+        String checksumKey = CHECKSUM_KEY_PREFIX + fileName;
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if (outputFile.exists() && !needsUpdate) {
+            return true;
+        }
+        if (readInPlace && !outputFile.exists()
+                && registerInPlace(assetManager, assetName, outputFile)) {
+            // the checksum is only needed when a copy exists, so it does
+            // not delay the queries
+            if (needsUpdate || preferences.getLong(checksumKey, -1) == -1) {
+                synchronized (pendingChecksums) {
+                    pendingChecksums.add(fileName);
+                }
+            }
+            return true;
+        }
+        long checksum = getChecksum(assetManager, assetName);
+        if (outputFile.exists() && preferences.getLong(checksumKey, -1) == checksum) {
+            Log.d(TAG, fileName + " is unchanged");
+            return true;
+        }
+        if (readInPlace && registerInPlace(assetManager, assetName, outputFile)) {
+            // the copy of an older version is no longer needed
+            if (outputFile.exists() && !outputFile.delete()) {
+                throw new IOException("Cannot delete " + outputFile);
+            }
+        } else {
+            copy(assetManager, assetName, outputFile);
+        }
+        storeChecksum(fileName, checksum);
+        return true;
+    }
+
+    private void storeChecksum(String fileName, long checksum) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putLong(CHECKSUM_KEY_PREFIX + fileName, checksum);
+        editor.commit();
+    }
+
+    /**
+     * Store the checksums of the assets read in place. Return true if all
+     * of them could be computed.
+     */
+    private boolean storePendingChecksums(AssetManager assetManager) {
+        List<String> fileNames;
+        synchronized (pendingChecksums) {
+            fileNames = new ArrayList<>(pendingChecksums);
+            pendingChecksums.clear();
+        }
+        boolean complete = true;
+        for (String fileName : fileNames) {
+            try {
+                storeChecksum(fileName, getChecksum(assetManager,
+                        new File(assetFolder, fileName).toString()));
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Let the native code read the file from the asset, and return true, or
+     * return false if the asset is compressed.
+     */
+    private boolean registerInPlace(AssetManager assetManager, String assetName,
+                                    File file) throws IOException {
+        AssetFileDescriptor descriptor = openFd(assetManager, assetName);
+        if (descriptor == null) {
+            return false;
+        }
+        try {
+            Log.d(TAG, "reading " + assetName + " in place");
+            DataBase.registerAsset(file.getAbsolutePath(),
+                    descriptor.getParcelFileDescriptor().getFd(),
+                    descriptor.getStartOffset(), descriptor.getLength());
+        } finally {
+            descriptor.close();
+        }
+        return true;
+    }
+
+    private void copy(AssetManager assetManager, String assetName, File outputFile)
+            throws IOException {
+        String fileName = outputFile.getName();
+        Log.d(TAG, "copying " + fileName);
+        File tmpFile = new File(targetFolder, fileName + ".tmp");
+        try {
+            copyFile(assetManager, assetName, tmpFile);
+            if (!tmpFile.renameTo(outputFile)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + outputFile);
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private long getChecksum(AssetManager assetManager, String assetName) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream input = assetManager.open(assetName);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Copy the asset to the file. An uncompressed asset is transferred
+     * between the file channels, a compressed one is read as a stream.
+     */
+    private void copyFile(AssetManager assetManager, String assetName, File file)
+            throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            AssetFileDescriptor descriptor = openFd(assetManager, assetName);
+            if (descriptor != null) {
+                try {
+                    FileInputStream input = descriptor.createInputStream();
+                    FileChannel source = input.getChannel();
+                    FileChannel target = output.getChannel();
+                    long position = descriptor.getStartOffset();
+                    long end = position + descriptor.getLength();
+                    while (position < end) {
+                        long transferred = source.transferTo(position, end - position, target);
+                        if (transferred <= 0) {
+                            throw new IOException("Cannot copy " + assetName);
+                        }
+                        position += transferred;
+                    }
+                    input.close();
+                } finally {
+                    descriptor.close();
+                }
+            } else {
+                InputStream input = assetManager.open(assetName);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Return the file descriptor of an uncompressed asset, or null if the
+     * asset is compressed.
+     */
+    private static AssetFileDescriptor openFd(AssetManager assetManager, String assetName) {
+        try {
+            return assetManager.openFd(assetName);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -18,84 +18,175 @@ public class DataBase {
     public static final int /* from common.h */
             RESULT_NONE = 0, RESULT_WHITE_WINS = 1, RESULT_BLACK_WINS = 2,
             RESULT_DRAW = 3;
+    public static final int // header column for getHeaders is one of
+            HEADER_WHITE = 0, HEADER_BLACK = 1, HEADER_EVENT = 2,
+            HEADER_SITE = 3, HEADER_ROUND = 4, HEADER_DATE = 5,
+            HEADER_RESULT = 6, HEADER_WHITE_ELO = 7, HEADER_BLACK_ELO = 8,
+            HEADER_FLAGS = 9;
+    public static final int // bits of the HEADER_FLAGS column
+            HEADER_FLAG_FAVORITE = 1, HEADER_FLAG_DELETED = 2;
+    public static final int // sortKey for getSortOrder is one of
+            SORT_DATE = 0, SORT_WHITE_ELO = 1, SORT_BLACK_ELO = 2,
+            SORT_AVERAGE_ELO = 3, SORT_WHITE = 4, SORT_BLACK = 5,
+            SORT_EVENT = 6, SORT_ECO = 7;
+    public static final int // from openingtree.h
+            OPENING_TREE_DEFAULT_MAX_PLY = 20, OPENING_TREE_MAX_PLY = 30;
+
+    // / Opening databases and operations with an open database
 
-    // / Loading and operations with loaded file
-    public static final native boolean loadFile(String fileName);
+    /**
+     * Read the file, a database file name with its suffix, from the length
+     * bytes at offset of the open file descriptor fd, like an uncompressed
+     * asset, instead of from the file itself. The descriptor is duplicated,
+     * so the caller may close it. The file is copied from the region when
+     * the database is first modified.
+     */
+    public static final native void registerAsset(String fileName, int fd,
+                                                  long offset, long length);
+
+    /**
+     * Open the database and return its handle, which every other method
+     * of an open database takes as first argument. Return 0 if the database
+     * cannot be opened.
+     */
+    public static final native long open(String fileName);
+
+    /**
+     * Close the database. The handle must not be used afterwards.
+     */
+    public static final native void close(long handle);
+
+    /**
+     * Return the generation of the database, which changes whenever a game is
+     * saved or the flags of a game are changed. Generations are unique across
+     * all handles, so that a reopened database never has the generation of
+     * an earlier handle.
+     */
+    public static final native int getGeneration(long handle);
 
-    public static final native int getSize();
+    public static final native int getSize(long handle);
 
-    public static final native int getNamesCount(int nameType);
+    public static final native int getNamesCount(long handle, int nameType);
 
-    public static final native byte[] getName(int nameType, int id);
+    public static final native byte[] getName(long handle, int nameType,
+                                             int id);
+
+    /**
+     * Return the names of several IDs of one name type in one call. Invalid
+     * IDs result in null elements.
+     */
+    public static final native byte[][] getNames(long handle, int nameType,
+                                                int[] ids);
 
     // TODO: all Java->C++ calls should use byte[] recoded back to DB encoding,
     // or
     // we should switch DB to modified UTF-8
 
-    public static final native int[] getMatchingNames(int nameType,
-                                                      String prefix);
+    /**
+     * Return the IDs of all names of the type starting with the prefix,
+     * ignoring case and accents, see getMatchingNames(long, int, String,
+     * int, int).
+     */
+    public static int[] getMatchingNames(long handle, int nameType,
+                                         String prefix) {
+        return getMatchingNames(handle, nameType, prefix, 0, -1);
+    }
 
-    // / Loading and operations with the loaded game
-    public static final native boolean loadGame(int gameId, boolean onlyHeaders);
+    /**
+     * Return the IDs of the names of the type starting with the prefix,
+     * ignoring case and accents, in alphabetical order. The names are looked
+     * up in an index of the folded names, which is built on first use. The
+     * first offset matches are skipped, and at most limit IDs are returned if
+     * limit is not negative.
+     */
+    public static final native int[] getMatchingNames(long handle,
+                                                      int nameType,
+                                                      String prefix,
+                                                      int offset, int limit);
+
+    /**
+     * Read header columns of several games from the index in one call.
+     * Player, event, site and round columns contain the name ID, which can
+     * be resolved with getName.
+     *
+     * @param gameIds the games to read, invalid IDs result in zeroed values
+     * @param columns the HEADER_* columns to read
+     * @param values  out array with one int[gameIds.length] per column
+     */
+    public static final native boolean getHeaders(long handle, int[] gameIds,
+                                                  int[] columns,
+                                                  int[][] values);
+
+    /**
+     * Get the complete PGN of a game without loading it. Unlike loadGame and
+     * getPGN this does not change the loaded game, so it can be called from
+     * several threads at the same time.
+     */
+    public static final native byte[] getGamePGN(long handle, int gameId);
+
+    // / Loading and operations with the loaded game of an open database.
+    // / All threads using the same handle share the loaded game.
+    public static final native boolean loadGame(long handle, int gameId,
+                                                boolean onlyHeaders);
 
     /**
      * Get the complete PGN of the current game.
      */
-    public static final native byte[] getPGN();
+    public static final native byte[] getPGN(long handle);
 
     /**
      * Get the move list (including the result) of the current game.
      */
-    public static final native String getMoves();
+    public static final native String getMoves(long handle);
 
     /**
      * Get the header [Result] of the current game.
      */
-    public static final native int getResult();
+    public static final native int getResult(long handle);
 
     /**
      * Get the header [White] of the current game.
      */
-    public static final native byte[] getWhite();
+    public static final native byte[] getWhite(long handle);
 
     /**
      * Get the header [Black] of the current game.
      */
-    public static final native byte[] getBlack();
+    public static final native byte[] getBlack(long handle);
 
     /**
      * Get the header [Event] of the current game.
      */
-    public static final native byte[] getEvent();
+    public static final native byte[] getEvent(long handle);
 
     /**
      * Get the header [Site] of the current game.
      */
-    public static final native byte[] getSite();
+    public static final native byte[] getSite(long handle);
 
     /**
      * Get the header [Date] of the current game.
      */
-    public static final native String getDate();
+    public static final native String getDate(long handle);
 
     /**
      * Get the header [Round] of the current game.
      */
-    public static final native byte[] getRound();
+    public static final native byte[] getRound(long handle);
 
-    public static final native int getWhiteElo();
+    public static final native int getWhiteElo(long handle);
 
-    public static final native int getBlackElo();
+    public static final native int getBlackElo(long handle);
 
     /**
      * Return true if the current game is favorite.
      */
-    public static final native boolean isFavorite();
+    public static final native boolean isFavorite(long handle);
 
     /**
      * Return true if the current game is marked as deleted.
      */
-    public static final native boolean isDeleted();
+    public static final native boolean isDeleted(long handle);
 
     // / Create database (new or import)
 
@@ -120,40 +211,98 @@ public class DataBase {
      * @param searchType      0=exact, 1=pawns, 2=files, 3=any
      * @param filterOperation the type of filter restriction (0=IGNORE, 1=OR, 2=AND)
      * @param filter          in-out array with ply for each game or 0 if the game is not
-     *                        selected
+     *                        selected, or null to search all games and only pass the
+     *                        games found to the progress, which is a SearchProgress
      */
-    public static final native boolean searchBoard(String fen, int searchType,
+    public static final native boolean searchBoard(long handle, String fen,
+                                                   int searchType,
                                                    int filterOperation, short[]/* in-out */filter, Progress progress);
 
-    public static final native boolean searchHeader(
+    /**
+     * Do a header search, the filter is passed like to searchBoard.
+     */
+    public static final native boolean searchHeader(long handle,
             SearchHeaderRequest request, int filterOperation,
             short[]/* in-out */filter, Progress progress);
 
     /**
      * Return the list of favorites.
      */
-    public static final native int[] getFavorites(Progress progress);
+    public static final native int[] getFavorites(long handle, Progress progress);
+
+    // / Sorting
+
+    /**
+     * Return the IDs of all games in ascending order of the sort key, games
+     * with equal keys in ascending order of their IDs. Names are compared
+     * ignoring case and accents. The order is kept in a file next to the
+     * database, which is built when it is missing or out of date. Return null
+     * on error.
+     */
+    public static final native int[] getSortOrder(long handle, int sortKey);
+
+    // / Opening tree
+
+    /**
+     * Return the statistics of the moves played in the position, in
+     * descending order of the number of games, from the opening tree of the
+     * database. The tree holds the positions reached in the first maxPly
+     * plies of the games, with the moves of every game reaching them, also
+     * after maxPly. It is kept in a file next to the database, which is
+     * built when it is missing, out of date or not as deep as maxPly; a
+     * deeper tree is used as it is. maxPly is at most OPENING_TREE_MAX_PLY.
+     * Return null if the position is not in the tree, see
+     * getMoveStatistics.
+     */
+    public static final native MoveStatistics[] getOpeningTree(long handle,
+                                                               String fen,
+                                                               int maxPly,
+                                                               Progress progress);
+
+    /**
+     * Return the statistics of the moves played in the position by the games
+     * of the filter, in descending order of the number of games. The filter
+     * holds the ply of the position plus one for each game, as set by an
+     * exact searchBoard.
+     */
+    public static final native MoveStatistics[] getMoveStatistics(long handle,
+                                                                  String fen,
+                                                                  short[] filter,
+                                                                  Progress progress);
 
     // / Modifications
 
     /**
      * Set the favorite flag on the current game.
      */
-    public static final native boolean setFavorite(boolean isFavorite);
+    public static final native boolean setFavorite(long handle,
+                                                   boolean isFavorite);
 
     /**
      * Set the deleted flag on the current game.
      */
-    public static final native boolean setDeleted(boolean isDeleted);
+    public static final native boolean setDeleted(long handle,
+                                                  boolean isDeleted);
 
     /**
      * Save the game with the game number.
      */
-    public static final native String saveGame(int gameId, String pgn);
+    public static final native String saveGame(long handle, int gameId,
+                                               String pgn);
 
     /**
      * Export the current filter to a PGN file
      */
-    public static final native boolean exportFilter(String pgnFileName,
+    public static final native boolean exportFilter(long handle,
+                                                    String pgnFileName,
                                                     short[] filter, Progress progress);
+
+    /**
+     * Write the games of the filter as PGN to the file descriptor, e.g. the
+     * write end of a pipe, blocking while the reader is behind. The caller
+     * keeps the descriptor and closes it. Return false if not all games could
+     * be written, e.g. because the reader has closed the pipe.
+     */
+    public static final native boolean exportFilterToFd(long handle, int fd,
+                                                        short[] filter, Progress progress);
 }
@@ -0,0 +1,56 @@
+package com.kalab.database;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The least recently used open databases. Databases stay open while they are
+ * in the cache, so that switching between them does not reload their index
+ * and name files. The databases share a PGN cache of the given number of
+ * bytes.
+ */
+public class DataBaseCache {
+    private static final String TAG = DataBaseCache.class.getSimpleName();
+    private final Map<String, DataBaseHandle> dataBases;
+    private final PgnCache pgnCache;
+
+    public DataBaseCache(final int maxSize, int pgnCacheBytes) {
+        this.pgnCache = new PgnCache(pgnCacheBytes);
+        this.dataBases = new LinkedHashMap<String, DataBaseHandle>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, DataBaseHandle> eldest) {
+                if (size() > maxSize) {
+                    eldest.getValue().evict();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the open database, opening it if it is not in the cache. The
+     * caller must release the database when done with it. Return null if the
+     * database cannot be opened.
+     */
+    public synchronized DataBaseHandle acquire(String fileName) {
+        DataBaseHandle result = dataBases.get(fileName);
+        if (result == null) {
+            long handle = DataBase.open(fileName);
+            if (handle == 0) {
+                Log.e(TAG, "Cannot open " + fileName);
+                return null;
+            }
+            result = new DataBaseHandle(fileName, handle, pgnCache);
+            result.acquire();
+            dataBases.put(fileName, result);
+        } else {
+            result.acquire();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,95 @@
+package com.kalab.database;
+
+/**
+ * A database opened with DataBase.open. The cursors of the database share the
+ * handle, which is closed when the database has been evicted from the
+ * DataBaseCache and the last cursor has released it.
+ */
+public class DataBaseHandle {
+    private final String fileName;
+    private final long handle;
+    private final NameCache nameCache;
+    private final PgnCache pgnCache;
+    // the sort orders read so far and the generation they were read at
+    private final int[][] sortOrders = new int[SortOrder.NUM_SORT_KEYS][];
+    private final int[] sortGenerations = new int[SortOrder.NUM_SORT_KEYS];
+    private int references = 0;
+    private boolean evicted = false;
+    private boolean closed = false;
+
+    DataBaseHandle(String fileName, long handle, PgnCache pgnCache) {
+        this.fileName = fileName;
+        this.handle = handle;
+        this.nameCache = new NameCache(handle);
+        this.pgnCache = pgnCache;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Return the handle to pass to the DataBase methods.
+     */
+    public long getHandle() {
+        return handle;
+    }
+
+    public NameCache getNameCache() {
+        return nameCache;
+    }
+
+    /**
+     * Return the PGN cache shared by the databases of the DataBaseCache.
+     */
+    public PgnCache getPgnCache() {
+        return pgnCache;
+    }
+
+    /**
+     * Return the PGN of the game, or null if it cannot be read.
+     */
+    public String getPgn(int gameId) {
+        return pgnCache.get(this, gameId);
+    }
+
+    /**
+     * Return the IDs of all games in the order of the sort key, see
+     * DataBase.getSortOrder. The array is shared and must not be modified.
+     */
+    public int[] getSortOrder(int sortKey) {
+        synchronized (sortOrders) {
+            int generation = DataBase.getGeneration(handle);
+            if (sortOrders[sortKey] == null
+                    || sortGenerations[sortKey] != generation) {
+                sortOrders[sortKey] = DataBase.getSortOrder(handle, sortKey);
+                sortGenerations[sortKey] = generation;
+            }
+            return sortOrders[sortKey];
+        }
+    }
+
+    synchronized void acquire() {
+        references++;
+    }
+
+    /**
+     * Release a reference obtained from DataBaseCache.acquire.
+     */
+    public synchronized void release() {
+        references--;
+        closeIfUnused();
+    }
+
+    synchronized void evict() {
+        evicted = true;
+        closeIfUnused();
+    }
+
+    private void closeIfUnused() {
+        if (evicted && references <= 0 && !closed) {
+            DataBase.close(handle);
+            closed = true;
+        }
+    }
+}
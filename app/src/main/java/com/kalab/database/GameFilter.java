@@ -4,35 +4,34 @@ import android.util.Log;
 
 import java.util.Arrays;
 
+/**
+ * The games of a filter ordered by ID, with the ply to show for each game.
+ * The IDs are kept compressed: they are split by their high bits into chunks
+ * of 65536 IDs, and a chunk stores the low bits of its games as a sorted
+ * array if it has few games, or as a bitmap otherwise. Most games have ply 1,
+ * so only the positions and plies of the other games are kept.
+ */
 public class GameFilter {
-    int[] id; // id[position]
-    short[] ply; // ply[position]
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_WORDS = CHUNK_SIZE / 64;
+    // chunks with more games are smaller as bitmaps
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int OBJECT_BYTES = 16;
+
+    private final int[] keys; // high bits of the IDs of each chunk, ascending
+    private final Chunk[] chunks;
+    private final int[] firstPositions; // position of the first game of each chunk
+    private final int size;
+    private final int[] plyPositions; // positions of games with ply != 1, ascending
+    private final short[] plies;
 
     /**
      * Create Filter from mask (full-size array with ply or 0 if game is not
      * included
      */
     public GameFilter(short[] plyById) {
-        if (plyById == null) { // TODO: this should not be needed
-            id = new int[0];
-            ply = new short[0];
-        } else {
-            int count = 0;
-            for (short aPlyById : plyById) {
-                if (aPlyById > 0) {
-                    count++;
-                }
-            }
-            id = new int[count];
-            ply = new short[count];
-            for (int i = 0, j = 0; i < plyById.length; i++) {
-                if (plyById[i] > 0) {
-                    id[j] = i;
-                    ply[j] = plyById[i];
-                    j++;
-                }
-            }
-        }
+        this(fromMask(plyById));
     }
 
     /**
@@ -40,11 +39,43 @@ public class GameFilter {
      * assumed to be 1
      */
     public GameFilter(int[] id) {
-        this.id = id;
-        ply = new short[id.length];
-        for (int i = 0; i < ply.length; i++) {
-            ply[i] = 1;
+        this(fromIds(id));
+    }
+
+    private GameFilter(Builder builder) {
+        builder.finishChunk();
+        int count = builder.chunkCount;
+        this.keys = Arrays.copyOf(builder.keys, count);
+        this.chunks = Arrays.copyOf(builder.chunks, count);
+        this.firstPositions = new int[count];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            firstPositions[i] = position;
+            position += chunks[i].size();
         }
+        this.size = position;
+        this.plyPositions = Arrays.copyOf(builder.plyPositions, builder.plyCount);
+        this.plies = Arrays.copyOf(builder.plies, builder.plyCount);
+    }
+
+    private static Builder fromMask(short[] plyById) {
+        Builder builder = new Builder();
+        if (plyById != null) { // TODO: this should not be needed
+            for (int i = 0; i < plyById.length; i++) {
+                if (plyById[i] > 0) {
+                    builder.add(i, plyById[i]);
+                }
+            }
+        }
+        return builder;
+    }
+
+    private static Builder fromIds(int[] id) {
+        Builder builder = new Builder();
+        for (int anId : id) {
+            builder.add(anId, (short) 1);
+        }
+        return builder;
     }
 
     /**
@@ -57,33 +88,48 @@ public class GameFilter {
             for (int i = 0; i < result.length; i++)
                 result[i] = 1;
         } else {
-            for (int i = 0; i < f.id.length; i++)
-                result[f.id[i]] = f.ply[i];
+            long[] words = new long[CHUNK_WORDS];
+            for (int i = 0; i < f.chunks.length; i++) {
+                Arrays.fill(words, 0);
+                f.chunks[i].addTo(words);
+                int base = f.keys[i] << CHUNK_BITS;
+                for (int w = 0; w < CHUNK_WORDS; w++) {
+                    for (long bits = words[w]; bits != 0; bits &= bits - 1) {
+                        result[base + w * 64 + Long.numberOfTrailingZeros(bits)] = 1;
+                    }
+                }
+            }
+            for (int i = 0; i < f.plyPositions.length; i++) {
+                result[f.getGameId(f.plyPositions[i])] = f.plies[i];
+            }
         }
         return result;
     }
 
     public int getSize() {
-        return id.length;
+        return size;
     }
 
     public int getGameId(int position) {
-        if (position < 0 || position >= id.length) { // TODO: this should not be
+        if (position < 0 || position >= size) { // TODO: this should not be
             // needed
             Log.e("GameFilter", "getGameId: bad position " + position);
             return -1;
         } else {
-            return id[position];
+            int chunk = findChunk(position);
+            return keys[chunk] << CHUNK_BITS
+                    | chunks[chunk].select(position - firstPositions[chunk]);
         }
     }
 
     public int getGamePly(int position) {
-        if (position < 0 || position >= ply.length) { // TODO: this should not
+        if (position < 0 || position >= size) { // TODO: this should not
             // be needed
             Log.e("GameFilter", "getGamePly: bad position " + position);
             return -1;
         } else {
-            return ply[position];
+            int index = Arrays.binarySearch(plyPositions, position);
+            return index >= 0 ? plies[index] : 1;
         }
     }
 
@@ -91,6 +137,278 @@ public class GameFilter {
      * returns negative value if id is not present
      */
     public int getPosition(int id) {
-        return Arrays.binarySearch(this.id, id);
+        int chunk = Arrays.binarySearch(keys, id >>> CHUNK_BITS);
+        if (chunk < 0) {
+            int next = -chunk - 1;
+            return -(next < keys.length ? firstPositions[next] : size) - 1;
+        }
+        int low = id & (CHUNK_SIZE - 1);
+        int position = firstPositions[chunk] + chunks[chunk].rank(low);
+        return chunks[chunk].contains(low) ? position : -position - 1;
+    }
+
+    public boolean contains(int id) {
+        return getPosition(id) >= 0;
+    }
+
+    /**
+     * Return the IDs of the filter in the order of a permutation of all IDs,
+     * such as the sort orders of DataBase.getSortOrder. The permutation is
+     * scanned once, looking the IDs up in a bitmap of the filter.
+     */
+    public int[] sort(int[] order) {
+        int words = keys.length > 0 ? (keys[keys.length - 1] + 1) * CHUNK_WORDS : 0;
+        long[] bitmap = new long[words];
+        long[] chunkWords = new long[CHUNK_WORDS];
+        for (int i = 0; i < chunks.length; i++) {
+            Arrays.fill(chunkWords, 0);
+            chunks[i].addTo(chunkWords);
+            System.arraycopy(chunkWords, 0, bitmap, keys[i] * CHUNK_WORDS,
+                    CHUNK_WORDS);
+        }
+        int[] result = new int[size];
+        int count = 0;
+        for (int id : order) {
+            int word = id >>> 6;
+            if (word < words && (bitmap[word] & (1L << id)) != 0) {
+                result[count++] = id;
+            }
+        }
+        return count == size ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Return the estimated memory used by the filter in bytes.
+     */
+    public int getByteSize() {
+        int result = OBJECT_BYTES + 12 * chunks.length + 6 * plies.length;
+        for (Chunk chunk : chunks) {
+            result += chunk.getByteSize();
+        }
+        return result;
+    }
+
+    private int findChunk(int position) {
+        int chunk = Arrays.binarySearch(firstPositions, position);
+        return chunk >= 0 ? chunk : -chunk - 2;
+    }
+
+    /**
+     * Collects the games of a filter, such as those found by a search, without
+     * an array of all games. The builder is not used after build.
+     */
+    public static class Builder {
+        private int[] keys = new int[4];
+        private Chunk[] chunks = new Chunk[4];
+        private int chunkCount = 0;
+        private int size = 0;
+        private int key = -1;
+        private char[] lows;
+        private int lowCount = 0;
+        private int[] plyPositions = new int[16];
+        private short[] plies = new short[16];
+        private int plyCount = 0;
+
+        /**
+         * Add a game, the IDs must be added in ascending order.
+         */
+        public void add(int id, short ply) {
+            int high = id >>> CHUNK_BITS;
+            if (high != key) {
+                finishChunk();
+                key = high;
+            }
+            if (lows == null) {
+                lows = new char[CHUNK_SIZE];
+            }
+            lows[lowCount++] = (char) id;
+            if (ply != 1) {
+                addPly(size, ply);
+            }
+            size++;
+        }
+
+        /**
+         * Return the filter of the games added.
+         */
+        public GameFilter build() {
+            return new GameFilter(this);
+        }
+
+        private void addChunk(int key, Chunk chunk) {
+            if (chunkCount == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * chunkCount);
+                chunks = Arrays.copyOf(chunks, 2 * chunkCount);
+            }
+            keys[chunkCount] = key;
+            chunks[chunkCount++] = chunk;
+        }
+
+        void finishChunk() {
+            if (lowCount > 0) {
+                addChunk(key, lowCount > MAX_ARRAY_SIZE
+                        ? BitmapChunk.of(lows, lowCount)
+                        : new ArrayChunk(Arrays.copyOf(lows, lowCount)));
+                lowCount = 0;
+            }
+        }
+
+        private void addPly(int position, short ply) {
+            if (plyCount == plyPositions.length) {
+                plyPositions = Arrays.copyOf(plyPositions, 2 * plyCount);
+                plies = Arrays.copyOf(plies, 2 * plyCount);
+            }
+            plyPositions[plyCount] = position;
+            plies[plyCount++] = ply;
+        }
+    }
+
+    private abstract static class Chunk {
+        abstract int size();
+
+        abstract boolean contains(int low);
+
+        /**
+         * Return the number of games with lower low bits.
+         */
+        abstract int rank(int low);
+
+        /**
+         * Return the low bits of the game at the index.
+         */
+        abstract int select(int index);
+
+        abstract void addTo(long[] words);
+
+        abstract int getByteSize();
+    }
+
+    private static class ArrayChunk extends Chunk {
+        private final char[] values;
+
+        ArrayChunk(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int size() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return Arrays.binarySearch(values, (char) low) >= 0;
+        }
+
+        @Override
+        int rank(int low) {
+            int index = Arrays.binarySearch(values, (char) low);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        @Override
+        int select(int index) {
+            return values[index];
+        }
+
+        @Override
+        void addTo(long[] words) {
+            for (char value : values) {
+                words[value >>> 6] |= 1L << value;
+            }
+        }
+
+        @Override
+        int getByteSize() {
+            return OBJECT_BYTES + 2 * values.length;
+        }
+    }
+
+    private static class BitmapChunk extends Chunk {
+        // number of words counted together for rank and select
+        private static final int BLOCK_WORDS = 16;
+        private final long[] words;
+        private final int[] blockRanks; // games before each block
+        private final int size;
+
+        BitmapChunk(long[] words) {
+            this.words = words;
+            this.blockRanks = new int[CHUNK_WORDS / BLOCK_WORDS];
+            int count = 0;
+            for (int w = 0; w < CHUNK_WORDS; w++) {
+                if (w % BLOCK_WORDS == 0) {
+                    blockRanks[w / BLOCK_WORDS] = count;
+                }
+                count += Long.bitCount(words[w]);
+            }
+            this.size = count;
+        }
+
+        static BitmapChunk of(char[] values, int count) {
+            long[] words = new long[CHUNK_WORDS];
+            for (int i = 0; i < count; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapChunk(words);
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        int rank(int low) {
+            int word = low >>> 6;
+            int result = blockRanks[word / BLOCK_WORDS];
+            for (int w = word - word % BLOCK_WORDS; w < word; w++) {
+                result += Long.bitCount(words[w]);
+            }
+            return result + Long.bitCount(words[word] & ((1L << low) - 1));
+        }
+
+        @Override
+        int select(int index) {
+            // the last block with at most index games before it
+            int block = 0;
+            int last = blockRanks.length - 1;
+            while (block < last) {
+                int middle = (block + last + 1) / 2;
+                if (blockRanks[middle] <= index) {
+                    block = middle;
+                } else {
+                    last = middle - 1;
+                }
+            }
+            int remaining = index - blockRanks[block];
+            int w = block * BLOCK_WORDS;
+            int count;
+            while ((count = Long.bitCount(words[w])) <= remaining) {
+                remaining -= count;
+                w++;
+            }
+            long bits = words[w];
+            for (int i = 0; i < remaining; i++) {
+                bits &= bits - 1;
+            }
+            return w * 64 + Long.numberOfTrailingZeros(bits);
+        }
+
+        @Override
+        void addTo(long[] words) {
+            for (int w = 0; w < CHUNK_WORDS; w++) {
+                words[w] |= this.words[w];
+            }
+        }
+
+        @Override
+        int getByteSize() {
+            return 2 * OBJECT_BYTES + 8 * CHUNK_WORDS + 4 * blockRanks.length;
+        }
     }
 }
@@ -1,149 +1,280 @@
 package com.kalab.database;
 
+/**
+ * The columns of a cursor row. Numbers, the result and the flags are kept as
+ * primitives. The names, the date and the PGN of a row read from a header
+ * page are only decoded when their column is requested, and the summary and
+ * details are built on first access.
+ */
 public class GameInfo {
-    private String event = "";
-    private String site = "";
-    private String date = "";
-    private String round = "";
-    private String white = "";
-    private String black = "";
-    private String whiteElo = "";
-    private String blackElo = "";
-    private String result = "";
-    private String pgn = "";
+    public static final int COLUMN_ID = 0, COLUMN_EVENT = 1, COLUMN_SITE = 2,
+            COLUMN_DATE = 3, COLUMN_ROUND = 4, COLUMN_WHITE = 5,
+            COLUMN_BLACK = 6, COLUMN_RESULT = 7, COLUMN_PGN = 8,
+            COLUMN_SUMMARY = 9, COLUMN_CURRENT_PLY = 10, COLUMN_DETAILS = 11,
+            COLUMN_IS_FAVORITE = 12, COLUMN_IS_DELETED = 13,
+            COLUMN_WHITE_ELO = 14, COLUMN_BLACK_ELO = 15;
+    private static final String[] RESULTS = {"*", "1-0", "0-1", "1/2"};
+    // the row of the header page, null if the values were set
+    private HeaderPage page;
+    private int position;
+    private NameCache nameCache;
+    private DataBaseHandle dataBase;
+    private boolean loadPgn;
+    private String event;
+    private String site;
+    private String date;
+    private String round;
+    private String white;
+    private String black;
+    private String pgn;
+    private boolean pgnLoaded;
+    private String summary;
+    private String details;
+    private int whiteElo = 0;
+    private int blackElo = 0;
+    private int result = 0;
     private int id = -1;
     private int currentPly = 0;
-    private Boolean isFavorite = false;
-    private Boolean isDeleted = false;
+    private boolean isFavorite = false;
+    private boolean isDeleted = false;
+
+    public GameInfo() {
+        event = site = date = round = white = black = pgn = "";
+        pgnLoaded = true;
+    }
+
+    /**
+     * Create the row at position of the page. If loadPgn is set, the PGN of
+     * the game is read from the PGN cache of the database when it is
+     * requested.
+     */
+    GameInfo(HeaderPage page, int position, NameCache nameCache,
+             DataBaseHandle dataBase, boolean loadPgn) {
+        this.page = page;
+        this.position = position;
+        this.nameCache = nameCache;
+        this.dataBase = dataBase;
+        this.loadPgn = loadPgn;
+        this.id = page.getGameId(position);
+        this.whiteElo = page.getValue(position, DataBase.HEADER_WHITE_ELO);
+        this.blackElo = page.getValue(position, DataBase.HEADER_BLACK_ELO);
+        this.result = page.getValue(position, DataBase.HEADER_RESULT);
+        this.isFavorite = page.isFavorite(position);
+        this.isDeleted = page.isDeleted(position);
+    }
 
     @Override
     public String toString() {
-        StringBuilder info = new StringBuilder();
-        info.append(white);
-        info.append(" - ");
-        info.append(black);
-        if (date.length() > 0) {
-            info.append(' ');
-            info.append(date);
-        }
-        if (round.length() > 0) {
-            info.append(' ');
-            info.append(round);
-        }
-        if (event.length() > 0) {
+        if (summary == null) {
+            StringBuilder info = new StringBuilder();
+            info.append(getWhite());
+            info.append(" - ");
+            info.append(getBlack());
+            appendIfSet(info, getDate());
+            appendIfSet(info, getRound());
+            appendIfSet(info, getEvent());
+            appendIfSet(info, getSite());
             info.append(' ');
-            info.append(event);
+            info.append(getResult());
+            summary = info.toString();
         }
-        if (site.length() > 0) {
+        return summary;
+    }
+
+    private static void appendIfSet(StringBuilder info, String value) {
+        if (value.length() > 0) {
             info.append(' ');
-            info.append(site);
+            info.append(value);
         }
-        info.append(' ');
-        info.append(result);
-        return info.toString();
     }
 
     public String getColumn(int position) {
         switch (position) {
-            case 0:
+            case COLUMN_ID:
                 return "" + id;
-            case 1:
-                return event;
-            case 2:
-                return site;
-            case 3:
-                return date;
-            case 4:
-                return round;
-            case 5:
-                return white;
-            case 6:
-                return black;
-            case 7:
-                return result;
-            case 8:
-                return pgn;
-            case 9:
+            case COLUMN_EVENT:
+                return getEvent();
+            case COLUMN_SITE:
+                return getSite();
+            case COLUMN_DATE:
+                return getDate();
+            case COLUMN_ROUND:
+                return getRound();
+            case COLUMN_WHITE:
+                return getWhite();
+            case COLUMN_BLACK:
+                return getBlack();
+            case COLUMN_RESULT:
+                return getResult();
+            case COLUMN_PGN:
+                return getPgn();
+            case COLUMN_SUMMARY:
                 return this.toString();
-            case 10:
+            case COLUMN_CURRENT_PLY:
                 return "" + currentPly;
-            case 11:
+            case COLUMN_DETAILS:
                 return this.getDetails();
-            case 12:
+            case COLUMN_IS_FAVORITE:
                 return "" + isFavorite;
-            case 13:
+            case COLUMN_IS_DELETED:
                 return "" + isDeleted;
-            case 14:
+            case COLUMN_WHITE_ELO:
+                return "" + whiteElo;
+            case COLUMN_BLACK_ELO:
+                return "" + blackElo;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Return true if the column holds a number, which getLong returns
+     * without converting it to a String.
+     */
+    public static boolean isNumberColumn(int position) {
+        switch (position) {
+            case COLUMN_ID:
+            case COLUMN_CURRENT_PLY:
+            case COLUMN_WHITE_ELO:
+            case COLUMN_BLACK_ELO:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the value of the column as a number. The flags are 1 if set and
+     * 0 otherwise, other text columns are parsed.
+     */
+    public long getLong(int position) {
+        switch (position) {
+            case COLUMN_ID:
+                return id;
+            case COLUMN_CURRENT_PLY:
+                return currentPly;
+            case COLUMN_WHITE_ELO:
                 return whiteElo;
-            case 15:
+            case COLUMN_BLACK_ELO:
                 return blackElo;
+            case COLUMN_IS_FAVORITE:
+                return isFavorite ? 1 : 0;
+            case COLUMN_IS_DELETED:
+                return isDeleted ? 1 : 0;
             default:
-                return null;
+                return Long.parseLong(getColumn(position));
+        }
+    }
+
+    private String getName(int nameType, int header) {
+        if (page == null) {
+            return "";
         }
+        return nameCache.get(nameType, page.getValue(position, header));
     }
 
     public String getEvent() {
+        if (event == null) {
+            event = getName(DataBase.NAME_EVENT, DataBase.HEADER_EVENT);
+        }
         return event;
     }
 
     public void setEvent(String event) {
         this.event = event;
+        clearText();
     }
 
     public String getSite() {
+        if (site == null) {
+            site = getName(DataBase.NAME_SITE, DataBase.HEADER_SITE);
+        }
         return site;
     }
 
     public void setSite(String site) {
         this.site = site;
+        clearText();
     }
 
     public String getDate() {
+        if (date == null) {
+            date = page != null ? page.getDate(position) : "";
+        }
         return date;
     }
 
     public void setDate(String date) {
         this.date = date;
+        clearText();
     }
 
     public String getRound() {
+        if (round == null) {
+            round = getName(DataBase.NAME_ROUND, DataBase.HEADER_ROUND);
+        }
         return round;
     }
 
     public void setRound(String round) {
         this.round = round;
+        clearText();
     }
 
     public String getWhite() {
+        if (white == null) {
+            white = getName(DataBase.NAME_PLAYER, DataBase.HEADER_WHITE);
+        }
         return white;
     }
 
     public void setWhite(String white) {
         this.white = white;
+        clearText();
     }
 
     public String getBlack() {
+        if (black == null) {
+            black = getName(DataBase.NAME_PLAYER, DataBase.HEADER_BLACK);
+        }
         return black;
     }
 
     public void setBlack(String black) {
         this.black = black;
+        clearText();
     }
 
     public String getResult() {
-        return result;
+        return RESULTS[result];
     }
 
-    public void setResult(String result) {
+    /**
+     * Set the result, one of the DataBase result values 0 to 3 for *, 1-0,
+     * 0-1 and 1/2.
+     */
+    public void setResult(int result) {
         this.result = result;
+        clearText();
     }
 
+    /**
+     * Return the PGN, or null if the PGN was not requested or cannot be
+     * read.
+     */
     public String getPgn() {
+        if (!pgnLoaded) {
+            pgnLoaded = true;
+            if (loadPgn) {
+                pgn = dataBase.getPgn(id);
+            }
+        }
         return pgn;
     }
 
     public void setPgn(String pgn) {
         this.pgn = pgn;
+        pgnLoaded = true;
     }
 
     public int getId() {
@@ -163,26 +294,25 @@ public class GameInfo {
     }
 
     public String getDetails() {
-        StringBuilder info = new StringBuilder();
-        info.append("<b>" + result + "</b>");
-        info.append(' ');
-        if (event.length() > 0) {
-            info.append(' ');
-            info.append(event);
-        }
-        if (site.length() > 0) {
-            info.append(' ');
-            info.append(site);
-        }
-        if (round.length() > 0) {
-            info.append(' ');
-            info.append(round);
-        }
-        if (date.length() > 0) {
+        if (details == null) {
+            StringBuilder info = new StringBuilder();
+            info.append("<b>").append(getResult()).append("</b>");
             info.append(' ');
-            info.append(date);
+            appendIfSet(info, getEvent());
+            appendIfSet(info, getSite());
+            appendIfSet(info, getRound());
+            appendIfSet(info, getDate());
+            details = info.toString();
         }
-        return info.toString();
+        return details;
+    }
+
+    /**
+     * Forget the summary and details after a value they contain has changed.
+     */
+    private void clearText() {
+        summary = null;
+        details = null;
     }
 
     public boolean isFavorite() {
@@ -201,19 +331,19 @@ public class GameInfo {
         this.isDeleted = isDeleted;
     }
 
-    public String getWhiteElo() {
+    public int getWhiteElo() {
         return whiteElo;
     }
 
-    public void setWhiteElo(String whiteElo) {
+    public void setWhiteElo(int whiteElo) {
         this.whiteElo = whiteElo;
     }
 
-    public String getBlackElo() {
+    public int getBlackElo() {
         return blackElo;
     }
 
-    public void setBlackElo(String blackElo) {
+    public void setBlackElo(int blackElo) {
         this.blackElo = blackElo;
     }
 }
@@ -0,0 +1,109 @@
+package com.kalab.database;
+
+/**
+ * The index headers of a page of consecutive cursor rows, read with a single
+ * native call.
+ */
+public class HeaderPage {
+    public static final int SIZE = 100;
+    private static final int[] COLUMNS = {DataBase.HEADER_WHITE,
+            DataBase.HEADER_BLACK, DataBase.HEADER_EVENT, DataBase.HEADER_SITE,
+            DataBase.HEADER_ROUND, DataBase.HEADER_DATE, DataBase.HEADER_RESULT,
+            DataBase.HEADER_WHITE_ELO, DataBase.HEADER_BLACK_ELO,
+            DataBase.HEADER_FLAGS};
+    private final int firstPosition;
+    private final int[] gameIds;
+    private final int[][] values;
+
+    private HeaderPage(int firstPosition, int[] gameIds, int[][] values) {
+        this.firstPosition = firstPosition;
+        this.gameIds = gameIds;
+        this.values = values;
+    }
+
+    /**
+     * Load the headers of the games, the first game being at cursor position
+     * firstPosition. Return null if the headers could not be read.
+     */
+    public static HeaderPage load(long handle, int firstPosition,
+                                  int[] gameIds) {
+        int[][] values = new int[COLUMNS.length][gameIds.length];
+        if (!DataBase.getHeaders(handle, gameIds, COLUMNS, values)) {
+            return null;
+        }
+        return new HeaderPage(firstPosition, gameIds, values);
+    }
+
+    public boolean contains(int position) {
+        return position >= firstPosition
+                && position < firstPosition + gameIds.length;
+    }
+
+    public int getGameId(int position) {
+        return gameIds[position - firstPosition];
+    }
+
+    /**
+     * Return the value of a DataBase.HEADER_* column.
+     */
+    public int getValue(int position, int column) {
+        return values[column][position - firstPosition];
+    }
+
+    /**
+     * Return the values of a DataBase.HEADER_* column for all games of the
+     * page.
+     */
+    public int[] getValues(int column) {
+        return values[column];
+    }
+
+    public boolean isFavorite(int position) {
+        return (getValue(position, DataBase.HEADER_FLAGS)
+                & DataBase.HEADER_FLAG_FAVORITE) != 0;
+    }
+
+    public boolean isDeleted(int position) {
+        return (getValue(position, DataBase.HEADER_FLAGS)
+                & DataBase.HEADER_FLAG_DELETED) != 0;
+    }
+
+    /**
+     * Return the date as yyyy.mm.dd, yyyy.mm or yyyy with unknown parts as
+     * "??", or "" if the date is unknown.
+     */
+    public String getDate(int position) {
+        int date = getValue(position, DataBase.HEADER_DATE);
+        int year = date >> SearchHeaderRequest.YEAR_SHIFT;
+        int month = (date >> SearchHeaderRequest.MONTH_SHIFT) & 15;
+        int day = date & 31;
+        if (year == 0 && month == 0 && day == 0) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder(10);
+        appendNumber(result, year, 4);
+        if (month != 0 || day != 0) {
+            result.append('.');
+            appendNumber(result, month, 2);
+            if (day != 0) {
+                result.append('.');
+                appendNumber(result, day, 2);
+            }
+        }
+        return result.toString();
+    }
+
+    private static void appendNumber(StringBuilder result, int value, int digits) {
+        if (value == 0) {
+            for (int i = 0; i < digits; i++) {
+                result.append('?');
+            }
+        } else {
+            String number = Integer.toString(value);
+            for (int i = number.length(); i < digits; i++) {
+                result.append('0');
+            }
+            result.append(number);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.kalab.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values read from databases, keyed by the file name of the database and a
+ * key within it. A value is only used while the generation of its database is
+ * unchanged, see DataBase.getGeneration. The least recently used values are
+ * evicted when the values need more than the given number of bytes.
+ */
+public class LruByteCache<V> {
+    private static final int ENTRY_BYTES = 64;
+    private final int maxBytes;
+    private final Map<String, Entry<V>> entries = new LinkedHashMap<String, Entry<V>>(
+            16, 0.75f, true);
+    private int bytes = 0;
+
+    private static class Entry<V> {
+        final int generation;
+        final V value;
+        final int bytes;
+
+        Entry(String key, int generation, V value, int valueBytes) {
+            this.generation = generation;
+            this.value = value;
+            this.bytes = ENTRY_BYTES + 2 * key.length() + valueBytes;
+        }
+    }
+
+    public LruByteCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the value of the key, or null if it is not cached or the
+     * database has changed since.
+     */
+    public synchronized V get(String fileName, String key, int generation) {
+        String entryKey = getKey(fileName, key);
+        Entry<V> entry = entries.get(entryKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation) {
+            remove(entryKey);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Add the value of the key, read from the database with the given
+     * generation, which needs the given number of bytes.
+     */
+    public synchronized void put(String fileName, String key, int generation,
+                                 V value, int valueBytes) {
+        String entryKey = getKey(fileName, key);
+        Entry<V> entry = new Entry<V>(entryKey, generation, value, valueBytes);
+        remove(entryKey);
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        entries.put(entryKey, entry);
+        bytes += entry.bytes;
+        Iterator<Entry<V>> eldest = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+
+    private void remove(String entryKey) {
+        Entry<V> entry = entries.remove(entryKey);
+        if (entry != null) {
+            bytes -= entry.bytes;
+        }
+    }
+
+    private static String getKey(String fileName, String key) {
+        return fileName + '\n' + key;
+    }
+}
@@ -0,0 +1,100 @@
+package com.kalab.database;
+
+/**
+ * The games in which a move was played in a position, with their results and
+ * the average Elo of the players making the move.
+ */
+public class MoveStatistics {
+    private final String move;
+    private final int games;
+    private final int whiteWins;
+    private final int draws;
+    private final int blackWins;
+    private final int averageElo;
+
+    public MoveStatistics(String move, int games, int whiteWins, int draws,
+                          int blackWins, int averageElo) {
+        this.move = move;
+        this.games = games;
+        this.whiteWins = whiteWins;
+        this.draws = draws;
+        this.blackWins = blackWins;
+        this.averageElo = averageElo;
+    }
+
+    /**
+     * Return the statistics of the moves played in the position, in
+     * descending order of the number of games, or null if the position is
+     * not valid or the search was cancelled. The moves are looked up in the
+     * opening tree of the given depth, and if the position is not in the
+     * tree, they are collected from the games found by a board search.
+     */
+    public static MoveStatistics[] get(DataBaseHandle dataBase, String fen,
+                                       int maxPly, Progress progress) {
+        long handle = dataBase.getHandle();
+        MoveStatistics[] result = DataBase.getOpeningTree(handle, fen, maxPly,
+                progress);
+        if (result == null && !progress.isCancelled()) {
+            short[] filter = GameFilter.getFilterArray(null,
+                    DataBase.getSize(handle));
+            // an exact search, ignoring the filter
+            if (DataBase.searchBoard(handle, fen, 0, 0, filter, progress)
+                    && !progress.isCancelled()) {
+                result = DataBase.getMoveStatistics(handle, fen, filter,
+                        progress);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the move in standard algebraic notation.
+     */
+    public String getMove() {
+        return move;
+    }
+
+    public int getGames() {
+        return games;
+    }
+
+    public int getWhiteWins() {
+        return whiteWins;
+    }
+
+    public int getDraws() {
+        return draws;
+    }
+
+    public int getBlackWins() {
+        return blackWins;
+    }
+
+    /**
+     * Return the average Elo of the players making the move, 0 if no Elo is
+     * known.
+     */
+    public int getAverageElo() {
+        return averageElo;
+    }
+
+    /**
+     * Return the count as a percentage of the games, or 0 if there are no
+     * games.
+     */
+    private double getPercentage(int count) {
+        return games > 0 ? 100.0 * count / games : 0;
+    }
+
+    public double getWhitePercentage() {
+        return getPercentage(whiteWins);
+    }
+
+    public double getDrawPercentage() {
+        return getPercentage(draws);
+    }
+
+    public double getBlackPercentage() {
+        return getPercentage(blackWins);
+    }
+}
@@ -0,0 +1,97 @@
+package com.kalab.database;
+
+import java.util.Arrays;
+
+/**
+ * The decoded and sanitised names of a database, indexed by name type and
+ * NameBase ID. Each name is decoded at most once, so that cursor rows only
+ * have to look up the IDs.
+ */
+public class NameCache {
+    private static final int NUM_NAME_TYPES = 4;
+    private final long handle;
+    private final String[][] names = new String[NUM_NAME_TYPES][0];
+
+    NameCache(long handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Decode the names with the given IDs which are not yet cached with a
+     * single native call.
+     */
+    public synchronized void load(int nameType, int[] ids) {
+        String[] typeNames = getNames(nameType);
+        int[] missing = new int[ids.length];
+        int count = 0;
+        for (int id : ids) {
+            if (id >= 0 && id < typeNames.length && typeNames[id] == null) {
+                missing[count++] = id;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        Arrays.sort(missing, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || missing[unique - 1] != missing[i]) {
+                missing[unique++] = missing[i];
+            }
+        }
+        int[] toLoad = Arrays.copyOf(missing, unique);
+        byte[][] values = DataBase.getNames(handle, nameType, toLoad);
+        if (values != null) {
+            for (int i = 0; i < toLoad.length; i++) {
+                typeNames[toLoad[i]] = sanitize(nameType, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Return the sanitised name, decoding it if it is not yet cached.
+     */
+    public synchronized String get(int nameType, int id) {
+        String[] typeNames = names[nameType];
+        if (id >= 0 && id < typeNames.length && typeNames[id] != null) {
+            return typeNames[id];
+        }
+        typeNames = getNames(nameType);
+        if (id < 0 || id >= typeNames.length) {
+            return "";
+        }
+        String result = typeNames[id];
+        if (result == null) {
+            result = sanitize(nameType, DataBase.getName(handle, nameType, id));
+            typeNames[id] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Return the names of the type, sized to the current number of names of
+     * the database. Names added by saving a game get new IDs, so the
+     * cached names stay valid when the database grows.
+     */
+    private String[] getNames(int nameType) {
+        String[] result = names[nameType];
+        int size = DataBase.getNamesCount(handle, nameType);
+        if (size != result.length) {
+            result = size > result.length ? Arrays.copyOf(result, size)
+                    : new String[size];
+            names[nameType] = result;
+        }
+        return result;
+    }
+
+    private static String sanitize(int nameType, byte[] value) {
+        if (value == null) {
+            return "";
+        }
+        String result = Utf8Converter.convertToUTF8(value);
+        if (nameType != DataBase.NAME_PLAYER && result.equals("?")) {
+            result = "";
+        }
+        return result;
+    }
+}
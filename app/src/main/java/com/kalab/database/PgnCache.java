@@ -0,0 +1,71 @@
+package com.kalab.database;
+
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The PGN of the games shown in cursor rows, so that moving back and forth
+ * between the rows, as list recycling and the previous and next game of a
+ * viewer do, does not decode and render the games again. A PGN is only used
+ * while the generation of its database is unchanged, see
+ * DataBase.getGeneration, so saving a game or changing its flags invalidates
+ * the PGN of the database. The least recently used PGN is evicted when the
+ * PGN needs more than the given number of bytes.
+ */
+public class PgnCache {
+    private static final String TAG = PgnCache.class.getSimpleName();
+    private final LruByteCache<String> pgns;
+    private int hits = 0;
+    private int misses = 0;
+
+    public PgnCache(int maxBytes) {
+        this.pgns = new LruByteCache<String>(maxBytes);
+    }
+
+    /**
+     * Return the PGN of the game, reading it if it is not cached or the
+     * database has changed since, or null if it cannot be read.
+     */
+    public String get(DataBaseHandle dataBase, int gameId) {
+        String key = String.valueOf(gameId);
+        long handle = dataBase.getHandle();
+        int generation = DataBase.getGeneration(handle);
+        String pgn = pgns.get(dataBase.getFileName(), key, generation);
+        synchronized (this) {
+            if (pgn != null) {
+                hits++;
+                return pgn;
+            }
+            misses++;
+        }
+        byte[] dbPgn = DataBase.getGamePGN(handle, gameId);
+        if (dbPgn != null) {
+            try {
+                pgn = new String(dbPgn, DataBase.SCID_ENCODING);
+            } catch (UnsupportedEncodingException e) {
+                Log.e(TAG, "Error converting byte[] to String", e);
+            }
+        }
+        if (pgn != null) {
+            pgns.put(dataBase.getFileName(), key, generation, pgn,
+                    2 * pgn.length());
+        }
+        return pgn;
+    }
+
+    /**
+     * Return the number of PGNs found in the cache.
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * Return the number of PGNs read because they were not cached or their
+     * database had changed.
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,49 @@
+package com.kalab.database;
+
+/**
+ * The results of header and board searches, so that paging through the
+ * results or repeating a query does not search the database again. A result
+ * is only used while the generation of its database is unchanged, see
+ * DataBase.getGeneration. The least recently used results are evicted when
+ * the results need more than the given number of bytes.
+ */
+public class QueryCache {
+    private final LruByteCache<GameFilter> filters;
+
+    public QueryCache(int maxBytes) {
+        this.filters = new LruByteCache<GameFilter>(maxBytes);
+    }
+
+    /**
+     * Return the result of the query, or null if it is not cached or the
+     * database has changed since.
+     */
+    public GameFilter get(String fileName, String query, int generation) {
+        return filters.get(fileName, query, generation);
+    }
+
+    /**
+     * Add the result of a query on the database with the generation it had
+     * before the search.
+     */
+    public void put(String fileName, String query, int generation,
+                    GameFilter filter) {
+        filters.put(fileName, query, generation, filter, filter.getByteSize());
+    }
+
+    /**
+     * Return the normalised query of a board search. The move counters of the
+     * FEN do not change the result.
+     */
+    public static String getBoardQuery(String fen, int searchType,
+                                       int filterOperation) {
+        String[] fields = fen.trim().split("\\s+");
+        int length = fields.length == 6 ? 4 : fields.length;
+        StringBuilder result = new StringBuilder("board");
+        for (int i = 0; i < length; i++) {
+            result.append(' ').append(fields[i]);
+        }
+        return result.append('|').append(searchType).append('|')
+                .append(filterOperation).toString();
+    }
+}
@@ -1,57 +1,123 @@
 package com.kalab.database;
 
 import android.database.AbstractCursor;
+import android.database.CursorWindow;
 import android.os.Bundle;
-import android.util.Log;
+import android.os.CancellationSignal;
 
 import com.kalab.database.ScidProviderMetaData.ScidMetaData;
 
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class ScidCursor extends AbstractCursor {
-    private static final String TAG = ScidCursor.class.getSimpleName();
-    private static GameFilter gameFilter;
+    private static final int MAX_HEADER_PAGES = 64;
+    private static final Executor PREFETCH_EXECUTOR = Executors
+            .newSingleThreadExecutor();
+    private static final Executor SEARCH_EXECUTOR = Executors
+            .newCachedThreadPool();
+    private GameFilter gameFilter;
+    private SortOrder sortOrder;
+    // the IDs of the filter in the sort order, null if in ID order
+    private int[] sortedIds;
+    // the rows found so far while an incremental search is running
+    private boolean searching = false;
+    private int[] foundIds;
+    private short[] foundPlies;
+    private int foundCount;
+    private DataBaseHandle dataBase;
+    private QueryCache queryCache;
+    private CancellationSignal cancellationSignal;
+    private long handle;
     private int count;
     private GameInfo gameInfo;
+    private final Map<Integer, HeaderPage> headerPages = new LinkedHashMap<Integer, HeaderPage>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, HeaderPage> eldest) {
+            return size() > MAX_HEADER_PAGES;
+        }
+    };
+    private NameCache nameCache;
     private int startPosition;
     private int[] projection;
     private boolean loadPGN = false; // True if projection contains pgn column
     private boolean singleGame = false;
     private int limit = -1;
 
-    public ScidCursor(String fileName, String[] projection, int limit) {
+    public ScidCursor(DataBaseHandle dataBase, String[] projection, int limit) {
         super();
-        gameFilter = null;
-        init(fileName, projection, 0, limit);
+        init(dataBase, projection, 0, limit);
     }
 
-    public ScidCursor(String fileName, String[] projection, int startPosition,
-                      int limit) {
-        this(fileName, projection, limit);
+    public ScidCursor(DataBaseHandle dataBase, String[] projection,
+                      int startPosition, int limit) {
+        this(dataBase, projection, limit);
         this.startPosition = startPosition;
     }
 
-    public ScidCursor(String fileName, String[] projection, int startPosition,
-                      String[] selectionArgs, int limit) {
+    /**
+     * Create the cursor of all games, sorted by the sort order, or in ID
+     * order if it is null.
+     */
+    public ScidCursor(DataBaseHandle dataBase, String[] projection, int limit,
+                      SortOrder sortOrder) {
+        this(dataBase, projection, limit);
+        this.sortOrder = sortOrder;
+        this.sortedIds = sort(dataBase, null);
+    }
+
+    /**
+     * Create the cursor of a header search. The games are sorted by the sort
+     * order, or in ID order if it is null. If incremental is set, the search
+     * runs in the background, and the cursor grows as games are found, in ID
+     * order until the search is done. The search stops when the cancellation
+     * signal, which may be null, is cancelled.
+     */
+    public ScidCursor(DataBaseHandle dataBase, QueryCache queryCache,
+                      String[] projection, int startPosition,
+                      String[] selectionArgs, int limit, SortOrder sortOrder,
+                      boolean incremental,
+                      CancellationSignal cancellationSignal) {
         super();
-        init(fileName, projection, startPosition, limit);
-        searchHeader(selectionArgs);
+        this.queryCache = queryCache;
+        this.sortOrder = sortOrder;
+        this.cancellationSignal = cancellationSignal;
+        init(dataBase, projection, startPosition, limit);
+        searchHeader(selectionArgs, incremental);
     }
 
-    public ScidCursor(String fileName, String[] projection, int startPosition,
+    /**
+     * Create the cursor of a board search. The games are sorted by the sort
+     * order, or in ID order if it is null. If incremental is set, the search
+     * runs in the background, and the cursor grows as games are found, in ID
+     * order until the search is done. The search stops when the cancellation
+     * signal, which may be null, is cancelled.
+     */
+    public ScidCursor(DataBaseHandle dataBase, QueryCache queryCache,
+                      String[] projection, int startPosition,
                       String filterOperation, String fen, int searchType,
-                      int limit) {
+                      int limit, SortOrder sortOrder, boolean incremental,
+                      CancellationSignal cancellationSignal) {
         super();
-        init(fileName, projection, startPosition, limit);
-        searchBoard(filterOperation, fen, searchType);
+        this.queryCache = queryCache;
+        this.sortOrder = sortOrder;
+        this.cancellationSignal = cancellationSignal;
+        init(dataBase, projection, startPosition, limit);
+        searchBoard(filterOperation, fen, searchType, incremental);
     }
 
-    private void init(String fileName, String[] projection, int startPosition, int limit) {
+    private void init(DataBaseHandle dataBase, String[] projection, int startPosition, int limit) {
         this.limit = limit;
         this.singleGame = limit == 1;
-        DataBase.loadFile(fileName);
-        this.count = DataBase.getSize();
+        this.dataBase = dataBase;
+        this.handle = dataBase.getHandle();
+        this.nameCache = dataBase.getNameCache();
+        this.count = DataBase.getSize(handle);
         this.startPosition = startPosition;
         handleProjection(projection);
     }
@@ -81,16 +147,16 @@ public class ScidCursor extends AbstractCursor {
         }
         loadPGN = false;
         for (int p : this.projection) {
-            if (p == 8) {
+            if (p == GameInfo.COLUMN_PGN) {
                 loadPGN = true;
                 break;
             }
         }
     }
 
-    private void searchHeader(String[] selectionArgs) {
-        int filterOp = getFilterOperation(selectionArgs[0]);
-        SearchHeaderRequest request = new SearchHeaderRequest();
+    private void searchHeader(String[] selectionArgs, boolean incremental) {
+        final int filterOp = getFilterOperation(selectionArgs[0]);
+        final SearchHeaderRequest request = new SearchHeaderRequest();
 
         request.white = selectionArgs[1];
         request.black = selectionArgs[2];
@@ -110,20 +176,13 @@ public class ScidCursor extends AbstractCursor {
                 getMonthFromDate(dateFrom, 1), getDayFromDate(dateFrom, 1));
         request.dateMax = SearchHeaderRequest.makeDate(getYearFromDate(dateTo, 9999),
                 getMonthFromDate(dateTo, 12), getDayFromDate(dateTo, 31));
-        short[] filter = GameFilter.getFilterArray(null, count);
-        Progress progress = new Progress() {
+        new Search(request.getQuery(filterOp)) {
             @Override
-            public boolean isCancelled() {
-                return false;
+            boolean search(SearchProgress progress) {
+                return DataBase.searchHeader(handle, request, filterOp,
+                        null, progress);
             }
-
-            @Override
-            public void publishProgress(int value) {
-                // ignore
-            }
-        };
-        DataBase.searchHeader(request, filterOp, filter, progress);
-        gameFilter = new GameFilter(filter);
+        }.start(incremental);
     }
 
     private int getDayFromDate(String date, int defaultValue) {
@@ -153,35 +212,162 @@ public class ScidCursor extends AbstractCursor {
     @Override
     public Bundle getExtras() {
         Bundle bundle = new Bundle();
-        if (gameFilter != null) {
-            bundle.putInt("filterSize", gameFilter.getSize());
-            bundle.putInt("count", count);
+        synchronized (this) {
+            if (gameFilter != null) {
+                bundle.putInt("filterSize", gameFilter.getSize());
+                bundle.putInt("count", count);
+            } else if (searching) {
+                bundle.putInt("filterSize", foundCount);
+                bundle.putInt("count", count);
+            }
+            bundle.putBoolean("searching", searching);
+        }
+        if (dataBase != null) {
+            PgnCache pgnCache = dataBase.getPgnCache();
+            bundle.putInt("pgnCacheHits", pgnCache.getHits());
+            bundle.putInt("pgnCacheMisses", pgnCache.getMisses());
         }
         return bundle;
     }
 
     private void searchBoard(String filterOperation,
-                             String fen, int searchType) {
-        short[] filter = GameFilter.getFilterArray(null, count);
-        int filterOp = getFilterOperation(filterOperation);
-        Progress progress = new Progress() {
+                             final String fen, final int searchType,
+                             boolean incremental) {
+        final int filterOp = getFilterOperation(filterOperation);
+        new Search(QueryCache.getBoardQuery(fen, searchType, filterOp)) {
             @Override
-            public boolean isCancelled() {
-                return false;
+            boolean search(SearchProgress progress) {
+                return DataBase.searchBoard(handle, fen, searchType,
+                        filterOp, null, progress);
             }
+        }.start(incremental);
+    }
 
-            @Override
-            public void publishProgress(int value) {
-                // ignore
+    /**
+     * A search setting the filter of the cursor. An incremental search runs
+     * in the background and adds the games found to the cursor in chunks,
+     * notifying the observers of the cursor each time. A search is cancelled
+     * by the cancellation signal, and an incremental search also when the
+     * cursor is closed. A cancelled search keeps the games found so far. The
+     * filter is built from the games passed to publishResults, so that no
+     * array of all games is needed.
+     */
+    private abstract class Search implements SearchProgress, Runnable {
+        private final String fileName = dataBase.getFileName();
+        private final String query;
+        private final int generation = DataBase.getGeneration(handle);
+        private final GameFilter.Builder found = new GameFilter.Builder();
+        private boolean incremental;
+        private DataBaseHandle searchDataBase;
+
+        Search(String query) {
+            this.query = query;
+        }
+
+        abstract boolean search(SearchProgress progress);
+
+        void start(boolean incremental) {
+            gameFilter = queryCache.get(fileName, query, generation);
+            if (gameFilter != null) {
+                sortedIds = sort(dataBase, gameFilter);
+                return;
             }
-        };
-        DataBase.searchBoard(fen, searchType, filterOp, filter, progress);
-        gameFilter = new GameFilter(filter);
+            this.incremental = incremental;
+            if (!incremental) {
+                gameFilter = searchFilter();
+                sortedIds = sort(dataBase, gameFilter);
+                return;
+            }
+            searching = true;
+            foundIds = new int[HeaderPage.SIZE];
+            foundPlies = new short[HeaderPage.SIZE];
+            foundCount = 0;
+            // keep the database open until the search is done
+            searchDataBase = dataBase;
+            searchDataBase.acquire();
+            SEARCH_EXECUTOR.execute(this);
+        }
+
+        /**
+         * Return the games found. The games are only cached if the search
+         * was neither cancelled nor failed.
+         */
+        private GameFilter searchFilter() {
+            boolean completed = search(this) && !isCancelled();
+            GameFilter result = found.build();
+            if (completed) {
+                queryCache.put(fileName, query, generation, result);
+            }
+            return result;
+        }
+
+        @Override
+        public void run() {
+            try {
+                GameFilter result = searchFilter();
+                int[] sorted = isClosed() ? null
+                        : sort(searchDataBase, result);
+                synchronized (ScidCursor.this) {
+                    gameFilter = result;
+                    sortedIds = sorted;
+                    searching = false;
+                    foundIds = null;
+                    foundPlies = null;
+                }
+                onChange(false);
+            } finally {
+                searchDataBase.release();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isClosed() || cancellationSignal != null
+                    && cancellationSignal.isCanceled();
+        }
+
+        @Override
+        public void publishProgress(int value) {
+            // ignore
+        }
+
+        @Override
+        public void publishResults(int[] gameIds, short[] plies) {
+            for (int i = 0; i < gameIds.length; i++) {
+                found.add(gameIds[i], plies[i]);
+            }
+            if (!incremental) {
+                return;
+            }
+            synchronized (ScidCursor.this) {
+                int size = foundCount + gameIds.length;
+                if (size > foundIds.length) {
+                    int capacity = Math.max(size, 2 * foundIds.length);
+                    foundIds = Arrays.copyOf(foundIds, capacity);
+                    foundPlies = Arrays.copyOf(foundPlies, capacity);
+                }
+                System.arraycopy(gameIds, 0, foundIds, foundCount,
+                        gameIds.length);
+                System.arraycopy(plies, 0, foundPlies, foundCount,
+                        plies.length);
+                foundCount = size;
+            }
+            onChange(false);
+        }
+    }
+
+    /**
+     * Return the games of the filter in the sort order of the cursor, or null
+     * if the games are in ID order.
+     */
+    private int[] sort(DataBaseHandle dataBase, GameFilter filter) {
+        return sortOrder != null ? sortOrder.getGameIds(dataBase, filter)
+                : null;
     }
 
     private int getFilterOperation(String filterOperation) {
         int filterOp = 0;
-        if (gameFilter != null && filterOperation != null) {
+        if (filterOperation != null) {
             filterOp = Integer.parseInt(filterOperation);
         }
         return filterOp;
@@ -204,10 +390,14 @@ public class ScidCursor extends AbstractCursor {
      * @see android.database.AbstractCursor#getCount()
      */
     @Override
-    public int getCount() {
+    public synchronized int getCount() {
         int result;
-        if (gameFilter != null) {
+        if (sortedIds != null) {
+            result = sortedIds.length;
+        } else if (gameFilter != null) {
             result = gameFilter.getSize();
+        } else if (searching) {
+            result = foundCount;
         } else {
             result = this.count;
         }
@@ -217,97 +407,180 @@ public class ScidCursor extends AbstractCursor {
         return result;
     }
 
-    private void setGameInfo(int gameNo, boolean isFavorite) {
-        this.gameInfo = new GameInfo();
+    private GameInfo createGameInfo(HeaderPage page, int position) {
+        GameInfo gameInfo = new GameInfo(page, position, nameCache, dataBase,
+                loadPGN);
+        gameInfo.setCurrentPly(getGamePly(position));
+        return gameInfo;
+    }
+
+    /**
+     * @param oldPosition the position that we're moving from
+     * @param newPosition the position that we're moving to
+     * @return true if the move is successful, false otherwise
+     */
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        HeaderPage page = getHeaderPage(newPosition);
+        if (page == null || page.getGameId(newPosition) < 0) {
+            return false;
+        }
+        this.gameInfo = createGameInfo(page, newPosition);
+        return true;
+    }
+
+    /**
+     * Fill the window with the rows from position on, reading the headers a
+     * page at a time, and with the numeric columns as integers. The rows
+     * following the window are prefetched in the background, since the
+     * window is filled again from there when scrolling on.
+     */
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        int count = getCount();
+        if (position < 0 || position >= count) {
+            return;
+        }
+        window.acquireReference();
         try {
-            gameInfo.setEvent(getSanitizedString(DataBase.getEvent()));
-            if (gameInfo.getEvent().equals("?")) {
-                gameInfo.setEvent("");
-            }
-            gameInfo.setSite(getSanitizedString(DataBase.getSite()));
-            if (gameInfo.getSite().equals("?")) {
-                gameInfo.setSite("");
-            }
-            String date = DataBase.getDate();
-            if (date == null) {
-                date = "";
-            } else if (date.endsWith(".??.??")) {
-                date = date.substring(0, date.length() - 6);
-            } else if (date.endsWith(".??")) {
-                date = date.substring(0, date.length() - 3);
-            }
-            if (date.equals("?") || date.equals("????")) {
-                date = "";
+            window.clear();
+            window.setStartPosition(position);
+            window.setNumColumns(projection.length);
+            int row = position;
+            while (row < count && window.allocRow()) {
+                HeaderPage page = getHeaderPage(row);
+                if (page == null || page.getGameId(row) < 0
+                        || !putRow(window, page, row)) {
+                    window.freeLastRow();
+                    break;
+                }
+                row++;
             }
-            gameInfo.setDate(date);
-            gameInfo.setRound(getSanitizedString(DataBase.getRound()));
-            if (gameInfo.getRound().equals("?")) {
-                gameInfo.setRound("");
+            prefetch(row, row + (row - position));
+        } finally {
+            window.releaseReference();
+        }
+    }
+
+    private boolean putRow(CursorWindow window, HeaderPage page, int position) {
+        GameInfo info = createGameInfo(page, position);
+        for (int i = 0; i < projection.length; i++) {
+            int column = projection[i];
+            boolean success;
+            if (GameInfo.isNumberColumn(column)) {
+                success = window.putLong(info.getLong(column), position, i);
+            } else {
+                String value = info.getColumn(column);
+                success = value == null ? window.putNull(position, i)
+                        : window.putString(value, position, i);
             }
-            gameInfo.setWhite(getSanitizedString(DataBase.getWhite()));
-            gameInfo.setBlack(getSanitizedString(DataBase.getBlack()));
-            String[] results = {"*", "1-0", "0-1", "1/2"};
-            gameInfo.setResult(results[DataBase.getResult()]);
-            byte[] dbPgn = DataBase.getPGN();
-            if (dbPgn != null) {
-                gameInfo.setPgn(loadPGN ? new String(DataBase.getPGN(),
-                        DataBase.SCID_ENCODING) : null);
+            if (!success) {
+                return false;
             }
-            gameInfo.setWhiteElo("" + DataBase.getWhiteElo());
-            gameInfo.setBlackElo("" + DataBase.getBlackElo());
-        } catch (UnsupportedEncodingException e) {
-            Log.e("SCID", "Error converting byte[] to String", e);
         }
-        gameInfo.setId(gameNo);
-        gameInfo.setFavorite(isFavorite);
-        gameInfo.setDeleted(DataBase.isDeleted());
+        return true;
     }
 
-    private String getSanitizedString(byte[] value)
-            throws UnsupportedEncodingException {
-        if (value == null) {
-            return "";
-        } else {
-            try {
-                return Utf8Converter.convertToUTF8(new String(value,
-                        DataBase.SCID_ENCODING));
-            } catch (UnsupportedEncodingException e) {
-                return "";
+    /**
+     * Load the header pages of the rows from up to to in the background.
+     */
+    private void prefetch(final int from, int to) {
+        final int end = Math.min(Math.min(to, getCount()),
+                from + MAX_HEADER_PAGES / 2 * HeaderPage.SIZE);
+        final DataBaseHandle prefetchDataBase = dataBase;
+        if (from >= end || prefetchDataBase == null) {
+            return;
+        }
+        // keep the database open until the prefetch is done
+        prefetchDataBase.acquire();
+        PREFETCH_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int first = from - from % HeaderPage.SIZE; first < end;
+                         first += HeaderPage.SIZE) {
+                        getHeaderPage(first);
+                    }
+                } finally {
+                    prefetchDataBase.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the page of headers containing the position, reading the
+     * headers of the whole page at once if it is not cached.
+     */
+    private HeaderPage getHeaderPage(int position) {
+        int first = position - position % HeaderPage.SIZE;
+        HeaderPage page;
+        synchronized (headerPages) {
+            page = headerPages.get(first);
+        }
+        // the rows of a page read during an incremental search move when
+        // the games found are sorted
+        if (page == null || !page.contains(position)
+                || page.getGameId(position) != getGameId(position)) {
+            int size = Math.max(Math.min(HeaderPage.SIZE, getCount() - first),
+                    position - first + 1);
+            int[] gameIds = new int[size];
+            for (int i = 0; i < size; i++) {
+                gameIds[i] = getGameId(first + i);
+            }
+            page = HeaderPage.load(handle, first, gameIds);
+            if (page != null) {
+                loadNames(page);
+                synchronized (headerPages) {
+                    headerPages.put(first, page);
+                }
             }
         }
+        return page;
     }
 
     /**
-     * @param oldPosition the position that we're moving from
-     * @param newPosition the position that we're moving to
-     * @return true if the move is successful, false otherwise
+     * Decode the names of the page not yet in the name cache, one native
+     * call per name type.
      */
-    @Override
-    public boolean onMove(int oldPosition, int newPosition) {
-        boolean result = true;
-        if (gameFilter != null) {
-            result = this.onFilterMove(newPosition);
-        } else {
-            int gameNo = startPosition + newPosition;
-            boolean onlyHeaders = !loadPGN;
-            boolean isFavorite = DataBase.loadGame(gameNo, onlyHeaders);
-            setGameInfo(gameNo, isFavorite);
+    private void loadNames(HeaderPage page) {
+        int[] white = page.getValues(DataBase.HEADER_WHITE);
+        int[] black = page.getValues(DataBase.HEADER_BLACK);
+        int[] players = Arrays.copyOf(white, white.length + black.length);
+        System.arraycopy(black, 0, players, white.length, black.length);
+        nameCache.load(DataBase.NAME_PLAYER, players);
+        nameCache.load(DataBase.NAME_EVENT,
+                page.getValues(DataBase.HEADER_EVENT));
+        nameCache.load(DataBase.NAME_SITE,
+                page.getValues(DataBase.HEADER_SITE));
+        nameCache.load(DataBase.NAME_ROUND,
+                page.getValues(DataBase.HEADER_ROUND));
+    }
+
+    private synchronized int getGameId(int position) {
+        if (sortedIds != null) {
+            return sortedIds[startPosition + position];
+        } else if (gameFilter != null) {
+            return gameFilter.getGameId(startPosition + position);
+        } else if (searching) {
+            return foundIds[startPosition + position];
         }
-        return result;
+        return startPosition + position;
     }
 
-    private boolean onFilterMove(int newPosition) {
-        boolean result = false;
-        int gameNo = gameFilter.getGameId(startPosition + newPosition);
-        if (gameNo >= 0) {
-            boolean onlyHeaders = !loadPGN;
-            boolean isFavorite = DataBase.loadGame(gameNo, onlyHeaders);
-            setGameInfo(gameNo, isFavorite);
-            gameInfo.setCurrentPly(gameFilter.getGamePly(startPosition
-                    + newPosition));
-            result = true;
+    private synchronized int getGamePly(int position) {
+        if (sortedIds != null) {
+            if (gameFilter == null) {
+                return 0;
+            }
+            int id = sortedIds[startPosition + position];
+            return gameFilter.getGamePly(gameFilter.getPosition(id));
+        } else if (gameFilter != null) {
+            return gameFilter.getGamePly(startPosition + position);
+        } else if (searching) {
+            return foundPlies[startPosition + position];
         }
-        return result;
+        return 0;
     }
 
     @Override
@@ -320,11 +593,18 @@ public class ScidCursor extends AbstractCursor {
         return 0;
     }
 
+    @Override
+    public int getType(int position) {
+        if (GameInfo.isNumberColumn(projection[position])) {
+            return FIELD_TYPE_INTEGER;
+        }
+        return super.getType(position);
+    }
+
     @Override
     public int getInt(int position) {
         if (this.gameInfo != null) {
-            return Integer.parseInt(this.gameInfo
-                    .getColumn(projection[position]));
+            return (int) this.gameInfo.getLong(projection[position]);
         }
         return 0;
     }
@@ -332,8 +612,7 @@ public class ScidCursor extends AbstractCursor {
     @Override
     public long getLong(int position) {
         if (this.gameInfo != null) {
-            return Long
-                    .parseLong(this.gameInfo.getColumn(projection[position]));
+            return this.gameInfo.getLong(projection[position]);
         }
         return 0;
     }
@@ -341,8 +620,7 @@ public class ScidCursor extends AbstractCursor {
     @Override
     public short getShort(int position) {
         if (this.gameInfo != null) {
-            return Short.parseShort(this.gameInfo
-                    .getColumn(projection[position]));
+            return (short) this.gameInfo.getLong(projection[position]);
         }
         return 0;
     }
@@ -358,7 +636,36 @@ public class ScidCursor extends AbstractCursor {
 
     @Override
     public boolean isNull(int position) {
-        return this.gameInfo == null || "".equals(this.gameInfo.getColumn(projection[position]));
+        if (this.gameInfo == null) {
+            return true;
+        }
+        int column = projection[position];
+        return !GameInfo.isNumberColumn(column)
+                && "".equals(this.gameInfo.getColumn(column));
+    }
+
+    /**
+     * Write the games of the cursor in ID order as PGN to the file
+     * descriptor. Return false if not all games could be written.
+     */
+    boolean exportPgn(int fd, Progress progress) {
+        short[] filter;
+        synchronized (this) {
+            filter = GameFilter.getFilterArray(gameFilter, count);
+        }
+        return DataBase.exportFilterToFd(handle, fd, filter, progress);
+    }
+
+    /**
+     * Release the database, which may close it if it is no longer cached.
+     */
+    @Override
+    public void close() {
+        super.close();
+        if (dataBase != null) {
+            dataBase.release();
+            dataBase = null;
+        }
     }
 
     @Override
@@ -1,137 +1,63 @@
 package com.kalab.database;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.UriMatcher;
-import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
-import android.preference.PreferenceManager;
-import android.util.Log;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
 
 import com.kalab.database.ScidProviderMetaData.ScidMetaData;
+import com.kalab.database.ScidProviderMetaData.ScidNameMetaData;
+import com.kalab.database.ScidProviderMetaData.ScidPgnMetaData;
+import com.kalab.database.ScidProviderMetaData.ScidTreeMetaData;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.FileNotFoundException;
 
 public class ScidProvider extends ContentProvider {
-    private static final String TAG = ScidProvider.class.getSimpleName();
     private static final String DB_FOLDER = "db";
     private static final UriMatcher sUriMatcher;
     private static final int INCOMING_GAME_COLLECTION_URI_INDICATOR = 1;
     private static final int INCOMING_SINGLE_GAME_URI_INDICATOR = 2;
+    private static final int INCOMING_NAMES_URI_INDICATOR = 3;
+    private static final int INCOMING_TREE_URI_INDICATOR = 4;
+    private static final int INCOMING_PGN_URI_INDICATOR = 5;
 
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(ScidProviderMetaData.AUTHORITY, "games", INCOMING_GAME_COLLECTION_URI_INDICATOR);
         sUriMatcher.addURI(ScidProviderMetaData.AUTHORITY, "games/#", INCOMING_SINGLE_GAME_URI_INDICATOR);
+        sUriMatcher.addURI(ScidProviderMetaData.AUTHORITY, "names/#", INCOMING_NAMES_URI_INDICATOR);
+        sUriMatcher.addURI(ScidProviderMetaData.AUTHORITY, "games/tree", INCOMING_TREE_URI_INDICATOR);
+        sUriMatcher.addURI(ScidProviderMetaData.AUTHORITY, "games/pgn", INCOMING_PGN_URI_INDICATOR);
     }
 
     private static final int SELECTION_COUNT_BOARD_SEARCH = 3;
-    private static final String CURRENT_VERSION_KEY = "currentVersion";
+    private static final int MAX_OPEN_DATABASES = 4;
+    private static final int QUERY_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final int PGN_CACHE_BYTES = 2 * 1024 * 1024;
+    private final DataBaseCache dataBases = new DataBaseCache(MAX_OPEN_DATABASES,
+            PGN_CACHE_BYTES);
+    private final QueryCache queryCache = new QueryCache(QUERY_CACHE_BYTES);
+    private AssetExtractor assetExtractor;
 
     @Override
     public boolean onCreate() {
-        copyAssetsToFilesDir();
-        return true;
-    }
-
-    private void copyAssetsToFilesDir() {
-        final Context context = getContext();
+        Context context = getContext();
         if (context != null) {
-            AssetManager assetManager = context.getAssets();
-            if (assetManager != null) {
-                try {
-                    boolean needsUpdate = !isUpToDate();
-                    final String[] files = assetManager.list(DB_FOLDER);
-                    if (files != null) {
-                        for (String fileName : files) {
-                            updateFile(assetManager, fileName, needsUpdate);
-                        }
-                        if (needsUpdate) {
-                            setCurrentVersion();
-                        }
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage());
-                }
-            }
-        }
-    }
-
-    private void updateFile(AssetManager assetManager, String fileName, boolean needsUpdate) {
-        String strippedFileName = fileName.substring(0, fileName.lastIndexOf("."));
-        File outputFile = getFileInFilesDir(strippedFileName);
-        if (!outputFile.exists() || needsUpdate) {
-            Log.d(TAG, "copying " + fileName);
-            InputStream input = null;
-            OutputStream output = null;
-            try {
-                input = assetManager.open(new File(DB_FOLDER, fileName).toString());
-                output = new FileOutputStream(outputFile);
-                copyFile(input, output);
-                input.close();
-                output.flush();
-                output.close();
-            } catch (IOException e) {
-                Log.e(TAG, e.getMessage(), e);
-            } finally {
-                if (input != null) {
-                    try {
-                        input.close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                }
-                if (output != null) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                }
-            }
-        }
-    }
-
-    private void setCurrentVersion() {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getContext());
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putString(CURRENT_VERSION_KEY, getCurrentAppVersion());
-        editor.commit();
-    }
-
-    private boolean isUpToDate() {
-        SharedPreferences preferences = PreferenceManager
-                .getDefaultSharedPreferences(getContext());
-        return preferences.getString(CURRENT_VERSION_KEY, "").equals(
-                getCurrentAppVersion());
-    }
-
-    private String getCurrentAppVersion() {
-        String result = "";
-        try {
-            result = getContext().getPackageManager().getPackageInfo(
-                    getContext().getPackageName(), 0).versionName;
-        } catch (PackageManager.NameNotFoundException e) {
-            Log.v(TAG, e.getMessage());
-        }
-        return result;
-    }
-
-
-    private void copyFile(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[1024];
-        int read;
-        while ((read = input.read(buffer)) != -1) {
-            output.write(buffer, 0, read);
+            assetExtractor = new AssetExtractor(context, DB_FOLDER,
+                    context.getFilesDir(), true);
+            assetExtractor.start();
         }
+        return true;
     }
 
     @Override
@@ -143,6 +69,15 @@ public class ScidProvider extends ContentProvider {
             case INCOMING_SINGLE_GAME_URI_INDICATOR:
                 return ScidMetaData.CONTENT_ITEM_TYPE;
 
+            case INCOMING_NAMES_URI_INDICATOR:
+                return ScidNameMetaData.CONTENT_TYPE;
+
+            case INCOMING_TREE_URI_INDICATOR:
+                return ScidTreeMetaData.CONTENT_TYPE;
+
+            case INCOMING_PGN_URI_INDICATOR:
+                return ScidPgnMetaData.CONTENT_TYPE;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -151,25 +86,208 @@ public class ScidProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String fileName,
                         String[] selectionArgs, String sortOrder) {
-        ScidCursor result;
+        return query(uri, projection, fileName, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Query the games. The search of the games stops when the cancellation
+     * signal is cancelled, in which case OperationCanceledException is thrown
+     * unless the search is incremental and the query has returned already.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String fileName,
+                        String[] selectionArgs, String sortOrder,
+                        CancellationSignal cancellationSignal) {
+        Cursor result;
         switch (sUriMatcher.match(uri)) {
             case INCOMING_GAME_COLLECTION_URI_INDICATOR:
-                result = createCursorForGameCollection(projection, fileName, selectionArgs, sortOrder);
+                result = createCursorForGameCollection(projection, fileName, selectionArgs, sortOrder,
+                        uri.getBooleanQueryParameter(ScidMetaData.INCREMENTAL, false),
+                        cancellationSignal);
                 break;
             case INCOMING_SINGLE_GAME_URI_INDICATOR:
                 result = createCursorForSingleGame(uri, projection, fileName);
                 break;
+            case INCOMING_NAMES_URI_INDICATOR:
+                result = createCursorForNames(uri, projection, fileName, selectionArgs, sortOrder);
+                break;
+            case INCOMING_TREE_URI_INDICATOR:
+                result = createCursorForTree(uri, projection, fileName, selectionArgs, cancellationSignal);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+            if (result != null) {
+                result.close();
+            }
+            throw new OperationCanceledException();
+        }
         return result;
     }
 
     private ScidCursor createCursorForSingleGame(Uri uri, String[] projection, String fileName) {
         assertFileNameIsNotNull(fileName);
-        String scidFileName = getFileInFilesDir(fileName).getAbsolutePath();
+        DataBaseHandle dataBase = acquireDataBase(fileName);
+        if (dataBase == null) {
+            return null;
+        }
         int startPosition = Integer.parseInt(uri.getLastPathSegment());
-        return new ScidCursor(scidFileName, projection, startPosition, 1);
+        return new ScidCursor(dataBase, projection, startPosition, 1);
+    }
+
+    /**
+     * Return the names matching the prefix. The names are read at once, so
+     * that the database is not kept open by the cursor.
+     */
+    private Cursor createCursorForNames(Uri uri, String[] projection, String fileName,
+                                        String[] selectionArgs, String sortOrder) {
+        assertFileNameIsNotNull(fileName);
+        int nameType = Integer.parseInt(uri.getLastPathSegment());
+        if (nameType < DataBase.NAME_PLAYER || nameType > DataBase.NAME_ROUND) {
+            throw new IllegalArgumentException("Unknown name type " + nameType);
+        }
+        String prefix = selectionArgs != null && selectionArgs.length > 0
+                && selectionArgs[0] != null ? selectionArgs[0] : "";
+        int offset = 0;
+        int limit = -1;
+        try {
+            String offsetParameter = uri.getQueryParameter(ScidNameMetaData.OFFSET);
+            if (offsetParameter != null) {
+                offset = Integer.parseInt(offsetParameter);
+            }
+            if (sortOrder != null) {
+                limit = Integer.parseInt(sortOrder);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad offset or limit " + uri + " " + sortOrder);
+        }
+        if (projection == null) {
+            projection = ScidNameMetaData.columns;
+        }
+        DataBaseHandle dataBase = acquireDataBase(fileName);
+        if (dataBase == null) {
+            return null;
+        }
+        try {
+            int[] ids = DataBase.getMatchingNames(dataBase.getHandle(), nameType,
+                    prefix, offset, limit);
+            if (ids == null) {
+                ids = new int[0];
+            }
+            NameCache nameCache = dataBase.getNameCache();
+            nameCache.load(nameType, ids);
+            MatrixCursor result = new MatrixCursor(projection, ids.length);
+            for (int id : ids) {
+                Object[] row = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    if (ScidNameMetaData._ID.equals(projection[i])) {
+                        row[i] = id;
+                    } else if (ScidNameMetaData.NAME.equals(projection[i])) {
+                        row[i] = nameCache.get(nameType, id);
+                    }
+                }
+                result.addRow(row);
+            }
+            return result;
+        } finally {
+            dataBase.release();
+        }
+    }
+
+    /**
+     * Return the moves played in the position. The moves are read at once,
+     * so that the database is not kept open by the cursor.
+     */
+    private Cursor createCursorForTree(Uri uri, String[] projection, String fileName,
+                                       String[] selectionArgs,
+                                       final CancellationSignal cancellationSignal) {
+        assertFileNameIsNotNull(fileName);
+        if (selectionArgs == null || selectionArgs.length == 0 || selectionArgs[0] == null) {
+            throw new IllegalArgumentException("The FEN must be the selection argument.");
+        }
+        int maxPly = DataBase.OPENING_TREE_DEFAULT_MAX_PLY;
+        String maxPlyParameter = uri.getQueryParameter(ScidTreeMetaData.MAX_PLY);
+        if (maxPlyParameter != null) {
+            try {
+                maxPly = Integer.parseInt(maxPlyParameter);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad maximum ply " + uri);
+            }
+            if (maxPly <= 0) {
+                throw new IllegalArgumentException("Bad maximum ply " + uri);
+            }
+            maxPly = Math.min(maxPly, DataBase.OPENING_TREE_MAX_PLY);
+        }
+        if (projection == null) {
+            projection = ScidTreeMetaData.columns;
+        }
+        DataBaseHandle dataBase = acquireDataBase(fileName);
+        if (dataBase == null) {
+            return null;
+        }
+        MoveStatistics[] moves;
+        try {
+            moves = MoveStatistics.get(dataBase, selectionArgs[0], maxPly, new Progress() {
+                @Override
+                public boolean isCancelled() {
+                    return cancellationSignal != null && cancellationSignal.isCanceled();
+                }
+
+                @Override
+                public void publishProgress(int value) {
+                    // ignore
+                }
+            });
+        } finally {
+            dataBase.release();
+        }
+        if (moves == null) {
+            moves = new MoveStatistics[0];
+        }
+        MatrixCursor result = new MatrixCursor(projection, moves.length);
+        for (int id = 0; id < moves.length; id++) {
+            MoveStatistics move = moves[id];
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                String column = projection[i];
+                if (ScidTreeMetaData._ID.equals(column)) {
+                    row[i] = id;
+                } else if (ScidTreeMetaData.MOVE.equals(column)) {
+                    row[i] = move.getMove();
+                } else if (ScidTreeMetaData.GAMES.equals(column)) {
+                    row[i] = move.getGames();
+                } else if (ScidTreeMetaData.WHITE_WINS.equals(column)) {
+                    row[i] = move.getWhiteWins();
+                } else if (ScidTreeMetaData.DRAWS.equals(column)) {
+                    row[i] = move.getDraws();
+                } else if (ScidTreeMetaData.BLACK_WINS.equals(column)) {
+                    row[i] = move.getBlackWins();
+                } else if (ScidTreeMetaData.WHITE_PERCENTAGE.equals(column)) {
+                    row[i] = move.getWhitePercentage();
+                } else if (ScidTreeMetaData.DRAW_PERCENTAGE.equals(column)) {
+                    row[i] = move.getDrawPercentage();
+                } else if (ScidTreeMetaData.BLACK_PERCENTAGE.equals(column)) {
+                    row[i] = move.getBlackPercentage();
+                } else if (ScidTreeMetaData.AVERAGE_ELO.equals(column)) {
+                    row[i] = move.getAverageElo();
+                }
+            }
+            result.addRow(row);
+        }
+        return result;
+    }
+
+    /**
+     * Return the open database from the cache, the cursor using it has to
+     * release it when it is closed. Waits until the files of a bundled
+     * database have been copied.
+     */
+    private DataBaseHandle acquireDataBase(String fileName) {
+        if (assetExtractor != null) {
+            assetExtractor.await(fileName);
+        }
+        return dataBases.acquire(getFileInFilesDir(fileName).getAbsolutePath());
     }
 
     private void assertFileNameIsNotNull(String fileName) {
@@ -183,20 +301,43 @@ public class ScidProvider extends ContentProvider {
         return new File(getContext().getFilesDir(), fileName);
     }
 
-    private ScidCursor createCursorForGameCollection(String[] projection, String fileName, String[] selectionArgs, String sortOrder) {
+    private ScidCursor createCursorForGameCollection(String[] projection, String fileName, String[] selectionArgs, String sortOrder,
+                                                     boolean incremental, CancellationSignal cancellationSignal) {
         ScidCursor result;
         assertFileNameIsNotNull(fileName);
-        String scidFileName = getFileInFilesDir(fileName).getAbsolutePath();
+        DataBaseHandle dataBase = acquireDataBase(fileName);
+        if (dataBase == null) {
+            return null;
+        }
+        // a number as sort order is the limit of games in ID order
         int limit = -1;
+        SortOrder order = null;
         try {
             limit = Integer.valueOf(sortOrder);
         } catch (NumberFormatException e) {
-            // ignore
+            if (sortOrder != null && sortOrder.trim().length() > 0) {
+                try {
+                    order = SortOrder.parse(sortOrder);
+                } catch (IllegalArgumentException iae) {
+                    dataBase.release();
+                    throw iae;
+                }
+                limit = order.getLimit();
+            }
         }
-        if (selectionArgs != null && isBoardSearch(selectionArgs)) {
-            result = getCursorForBoardSearch(scidFileName, projection, selectionArgs, limit);
-        } else {
-            result = getCursorForHeaderSearch(scidFileName, projection, selectionArgs, limit);
+        try {
+            if (selectionArgs == null) {
+                result = new ScidCursor(dataBase, projection, limit, order);
+            } else if (isBoardSearch(selectionArgs)) {
+                result = getCursorForBoardSearch(dataBase, projection, selectionArgs, limit, order, incremental,
+                        cancellationSignal);
+            } else {
+                result = getCursorForHeaderSearch(dataBase, projection, selectionArgs, limit, order, incremental,
+                        cancellationSignal);
+            }
+        } catch (RuntimeException e) {
+            dataBase.release();
+            throw e;
         }
         return result;
     }
@@ -205,15 +346,113 @@ public class ScidProvider extends ContentProvider {
         return selectionArgs.length == SELECTION_COUNT_BOARD_SEARCH;
     }
 
-    private ScidCursor getCursorForHeaderSearch(String scidFileName, String[] projection, String[] selectionArgs, int limit) {
-        return new ScidCursor(scidFileName, projection, 0,
-                selectionArgs, limit);
+    private ScidCursor getCursorForHeaderSearch(DataBaseHandle dataBase, String[] projection, String[] selectionArgs, int limit,
+                                                SortOrder sortOrder, boolean incremental,
+                                                CancellationSignal cancellationSignal) {
+        return new ScidCursor(dataBase, queryCache, projection, 0,
+                selectionArgs, limit, sortOrder, incremental, cancellationSignal);
     }
 
-    private ScidCursor getCursorForBoardSearch(String scidFileName, String[] projection, String[] selectionArgs, int limit) {
-        return new ScidCursor(scidFileName, projection, 0,
+    private ScidCursor getCursorForBoardSearch(DataBaseHandle dataBase, String[] projection, String[] selectionArgs, int limit,
+                                               SortOrder sortOrder, boolean incremental,
+                                               CancellationSignal cancellationSignal) {
+        return new ScidCursor(dataBase, queryCache, projection, 0,
                 selectionArgs[0], selectionArgs[1],
-                Integer.valueOf(selectionArgs[2]), limit);
+                Integer.valueOf(selectionArgs[2]), limit, sortOrder, incremental,
+                cancellationSignal);
+    }
+
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) == INCOMING_PGN_URI_INDICATOR
+                && ClipDescription.compareMimeTypes(ScidPgnMetaData.CONTENT_TYPE, mimeTypeFilter)) {
+            return new String[]{ScidPgnMetaData.CONTENT_TYPE};
+        }
+        return null;
+    }
+
+    /**
+     * Open the PGN of all games of the database.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != INCOMING_PGN_URI_INDICATOR) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        return openPgn(uri, null);
+    }
+
+    /**
+     * Open the PGN of the games found by the search with the selection
+     * arguments of the options, or of all games if there are none.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) == INCOMING_PGN_URI_INDICATOR
+                && ClipDescription.compareMimeTypes(ScidPgnMetaData.CONTENT_TYPE, mimeTypeFilter)) {
+            String[] selectionArgs = opts != null
+                    ? opts.getStringArray(ScidPgnMetaData.SELECTION_ARGS) : null;
+            return new AssetFileDescriptor(openPgn(uri, selectionArgs), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    /**
+     * Return the read end of a pipe to which the games are written in the
+     * background. The writer blocks while the reader is behind and stops when
+     * the reader closes the pipe, so the games are never held in memory.
+     */
+    private ParcelFileDescriptor openPgn(Uri uri, String[] selectionArgs)
+            throws FileNotFoundException {
+        String fileName = uri.getQueryParameter(ScidPgnMetaData.FILE_NAME);
+        if (fileName == null) {
+            throw new IllegalArgumentException("The scid file name must be the "
+                    + ScidPgnMetaData.FILE_NAME + " query parameter.");
+        }
+        // the cursor only holds the games to write
+        String[] projection = new String[]{ScidMetaData._ID};
+        ScidCursor cursor;
+        if (selectionArgs != null) {
+            cursor = createCursorForGameCollection(projection, fileName, selectionArgs,
+                    null, false, null);
+        } else {
+            DataBaseHandle dataBase = acquireDataBase(fileName);
+            cursor = dataBase != null ? new ScidCursor(dataBase, projection, -1) : null;
+        }
+        if (cursor == null) {
+            throw new FileNotFoundException("Cannot open " + fileName);
+        }
+        try {
+            return openPipeHelper(uri, ScidPgnMetaData.CONTENT_TYPE, null, cursor,
+                    new PipeDataWriter<ScidCursor>() {
+                        @Override
+                        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                                                    String mimeType, Bundle opts,
+                                                    ScidCursor cursor) {
+                            try {
+                                // false if the reader has stopped early
+                                cursor.exportPgn(output.getFd(), new Progress() {
+                                    @Override
+                                    public boolean isCancelled() {
+                                        return false;
+                                    }
+
+                                    @Override
+                                    public void publishProgress(int value) {
+                                        // ignore
+                                    }
+                                });
+                            } finally {
+                                cursor.close();
+                            }
+                        }
+                    });
+        } catch (FileNotFoundException e) {
+            cursor.close();
+            throw e;
+        }
     }
 
     @Override
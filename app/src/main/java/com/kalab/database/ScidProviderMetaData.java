@@ -32,8 +32,100 @@ public class ScidProviderMetaData {
         public static final String[] columns = new String[]{_ID, EVENT, SITE,
                 DATE, ROUND, WHITE, BLACK, RESULT, PGN, SUMMARY, CURRENT_PLY,
                 DETAILS, IS_FAVORITE, IS_DELETED, WHITE_ELO, BLACK_ELO};
+        /**
+         * Query parameter of CONTENT_URI: if "true", a search returns at once
+         * with the games found so far, and the cursor notifies its content
+         * observers as more games are found. The "searching" extra of the
+         * cursor is false when the search is done.
+         */
+        public static final String INCREMENTAL = "incremental";
+        /**
+         * Sort columns which are not cursor columns. The sort order of a
+         * query is one of DATE, WHITE_ELO, BLACK_ELO, AVERAGE_ELO, WHITE,
+         * BLACK, EVENT and ECO, optionally followed by ASC or DESC and by
+         * LIMIT and the maximum number of rows. A sort order that is just a
+         * number is the maximum number of rows of games in ID order.
+         */
+        public static final String AVERAGE_ELO = "average_elo";
+        public static final String ECO = "eco";
 
         private ScidMetaData() {
         }
     }
+
+    /**
+     * The names starting with a prefix, ignoring case and accents, for
+     * autocompletion. The URI is CONTENT_URI followed by the name type, one
+     * of the DataBase.NAME_ constants. The selection is the scid file name,
+     * the only selection argument is the prefix, and the sort order is the
+     * maximum number of names. The names are in alphabetical order.
+     */
+    public static final class ScidNameMetaData implements BaseColumns {
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.scid.name";
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+                + AUTHORITY + "/names");
+        public static final String NAME = "name";
+        public static final String[] columns = new String[]{_ID, NAME};
+        /**
+         * Query parameter: the number of matching names to skip, for paging
+         * through the names.
+         */
+        public static final String OFFSET = "offset";
+
+        private ScidNameMetaData() {
+        }
+    }
+
+    /**
+     * The moves played in a position with the number of games, the result
+     * percentages and the average Elo of the players making the move, in
+     * descending order of the number of games. The selection is the scid file
+     * name and the only selection argument is the FEN of the position.
+     */
+    public static final class ScidTreeMetaData implements BaseColumns {
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.scid.tree";
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+                + AUTHORITY + "/games/tree");
+        public static final String MOVE = "move";
+        public static final String GAMES = "games";
+        public static final String WHITE_WINS = "white_wins";
+        public static final String DRAWS = "draws";
+        public static final String BLACK_WINS = "black_wins";
+        public static final String WHITE_PERCENTAGE = "white_percentage";
+        public static final String DRAW_PERCENTAGE = "draw_percentage";
+        public static final String BLACK_PERCENTAGE = "black_percentage";
+        public static final String AVERAGE_ELO = "average_elo";
+        public static final String[] columns = new String[]{_ID, MOVE, GAMES,
+                WHITE_WINS, DRAWS, BLACK_WINS, WHITE_PERCENTAGE,
+                DRAW_PERCENTAGE, BLACK_PERCENTAGE, AVERAGE_ELO};
+        /**
+         * Query parameter: the number of plies of each game in the opening
+         * tree, DataBase.OPENING_TREE_DEFAULT_MAX_PLY if it is missing and
+         * at most DataBase.OPENING_TREE_MAX_PLY. Positions which only occur
+         * later in the games are searched.
+         */
+        public static final String MAX_PLY = "max_ply";
+
+        private ScidTreeMetaData() {
+        }
+    }
+
+    /**
+     * The games of a database as PGN, streamed through a pipe, so that no
+     * temporary file is written and the games are not held in memory. The
+     * scid file name is the FILE_NAME query parameter. ContentResolver
+     * openInputStream reads all games, openTypedAssetFileDescriptor with the
+     * selection arguments of a game query in the SELECTION_ARGS string array
+     * of the options reads the games found by that search, in ID order.
+     */
+    public static final class ScidPgnMetaData {
+        public static final String CONTENT_TYPE = "application/x-chess-pgn";
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+                + AUTHORITY + "/games/pgn");
+        public static final String FILE_NAME = "file";
+        public static final String SELECTION_ARGS = "selection_args";
+
+        private ScidPgnMetaData() {
+        }
+    }
 }
@@ -21,4 +21,31 @@ public class SearchHeaderRequest {
     public static int makeDate(int y, int m, int d) {
         return (y == 0) ? 0 : (y << YEAR_SHIFT) | (m << MONTH_SHIFT) | d;
     }
+
+    /**
+     * Return the normalised query of the request for the QueryCache. All
+     * fields of the request are part of the query.
+     */
+    public String getQuery(int filterOperation) {
+        StringBuilder result = new StringBuilder("header");
+        for (String value : new String[]{white, black, event, site, round,
+                ecoFrom, ecoTo}) {
+            // the length prefix keeps the strings apart whatever they contain
+            String s = value == null ? "" : value;
+            result.append('|').append(s.length()).append(':').append(s);
+        }
+        for (boolean value : new boolean[]{ignoreColors, whiteExact,
+                blackExact, eventExact, siteExact, roundExact, resultNone,
+                resultWhiteWins, resultBlackWins, resultDraw, halfMovesEven,
+                halfMovesOdd, allowEcoNone, allowUnknownElo, annotatedOnly}) {
+            result.append(value ? '1' : '0');
+        }
+        for (int value : new int[]{dateMin, dateMax, idMin, idMax,
+                halfMovesMin, halfMovesMax, whiteEloMin, whiteEloMax,
+                blackEloMin, blackEloMax, diffEloMin, diffEloMax, minEloMin,
+                minEloMax, maxEloMin, maxEloMax, filterOperation}) {
+            result.append('|').append(value);
+        }
+        return result.toString();
+    }
 }
@@ -0,0 +1,13 @@
+package com.kalab.database;
+
+/**
+ * The progress of a search which also receives the games found so far. The
+ * games are passed in ascending order of their IDs, each game once, and the
+ * filter entries of the games passed are final.
+ */
+public interface SearchProgress extends Progress {
+    /**
+     * Receive the next games found, with the ply of each game.
+     */
+    void publishResults(int[] gameIds, short[] plies);
+}
@@ -0,0 +1,102 @@
+package com.kalab.database;
+
+import com.kalab.database.ScidProviderMetaData.ScidMetaData;
+
+import java.util.Locale;
+
+/**
+ * The sort order of a query: a sort column, optionally followed by ASC or
+ * DESC, and optionally by LIMIT and the maximum number of rows. The games are
+ * sorted by picking the games of the filter from the sort order of the
+ * database, so that no headers have to be read.
+ */
+public class SortOrder {
+    // the sort columns, indexed by the sort keys of DataBase.getSortOrder
+    private static final String[] COLUMNS = {ScidMetaData.DATE,
+            ScidMetaData.WHITE_ELO, ScidMetaData.BLACK_ELO,
+            ScidMetaData.AVERAGE_ELO, ScidMetaData.WHITE, ScidMetaData.BLACK,
+            ScidMetaData.EVENT, ScidMetaData.ECO};
+    public static final int NUM_SORT_KEYS = COLUMNS.length;
+    private final int sortKey;
+    private final boolean descending;
+    private final int limit;
+
+    public SortOrder(int sortKey, boolean descending, int limit) {
+        this.sortKey = sortKey;
+        this.descending = descending;
+        this.limit = limit;
+    }
+
+    /**
+     * Parse the sort order of a query, for example "date DESC LIMIT 100".
+     *
+     * @throws IllegalArgumentException if the sort order is not valid
+     */
+    public static SortOrder parse(String sortOrder) {
+        String[] words = sortOrder.trim().split("\\s+");
+        int sortKey = getSortKey(words[0]);
+        int word = 1;
+        boolean descending = false;
+        if (word < words.length && isKeyword(words[word], "DESC")) {
+            descending = true;
+            word++;
+        } else if (word < words.length && isKeyword(words[word], "ASC")) {
+            word++;
+        }
+        int limit = -1;
+        if (word + 1 < words.length && isKeyword(words[word], "LIMIT")) {
+            try {
+                limit = Integer.parseInt(words[word + 1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad limit " + sortOrder);
+            }
+            word += 2;
+        }
+        if (sortKey < 0 || word != words.length) {
+            throw new IllegalArgumentException("Unknown sort order "
+                    + sortOrder);
+        }
+        return new SortOrder(sortKey, descending, limit);
+    }
+
+    private static int getSortKey(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isKeyword(String word, String keyword) {
+        return word.toUpperCase(Locale.US).equals(keyword);
+    }
+
+    /**
+     * Return the maximum number of rows, or -1 if there is no limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Return the IDs of the games of the filter, or of all games if the filter
+     * is null, in this order. Return null if the sort order of the database
+     * cannot be read.
+     */
+    public int[] getGameIds(DataBaseHandle dataBase, GameFilter filter) {
+        int[] order = dataBase.getSortOrder(sortKey);
+        if (order == null) {
+            return null;
+        }
+        int[] result = filter != null ? filter.sort(order) : order;
+        if (descending) {
+            int[] reversed = new int[result.length];
+            for (int i = 0; i < result.length; i++) {
+                reversed[i] = result[result.length - 1 - i];
+            }
+            result = reversed;
+        }
+        return result;
+    }
+}
@@ -1,82 +1,158 @@
 package com.kalab.database;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.Charset;
 
+/**
+ * Decodes the names stored by SCID. Most databases contain UTF-8 names, but
+ * SCID stores bytes, so names may also be in CP1252. The bytes are decoded
+ * as UTF-8 in a single pass, and every byte which does not start a valid
+ * UTF-8 sequence is decoded as CP1252.
+ */
 public class Utf8Converter {
-    private static final Map<String, String> CP1252_CONVERSION = new HashMap<String, String>() {
-        {
-            put("\u00C3\u20AC", "À");
-            put("\u00C3\uFFFD", "Á");
-            put("\u00C3\u201A", "Â");
-            put("\u00C3\u0192", "Ã");
-            put("\u00C3\u201E", "Ä");
-            put("\u00C3\u2026", "Å");
-            put("\u00C3\u2020", "Æ");
-            put("\u00C3\u2021", "Ç");
-            put("\u00C3\u02C6", "È");
-            put("\u00C3\u2030", "É");
-            put("\u00C3\u0160", "Ê");
-            put("\u00C3\u2039", "Ë");
-            put("\u00C3\u0152", "Ì");
-            put("\u00C3\uFFFD", "Í");
-            put("\u00C3\u017D", "Î");
-            put("\u00C3\uFFFD", "Ï");
-            put("\u00C3\uFFFD", "Ð");
-            put("\u00C3\u2018", "Ñ");
-            put("\u00C3\u2019", "Ò");
-            put("\u00C3\u201C", "Ó");
-            put("\u00C3\u201D", "Ô");
-            put("\u00C3\u2022", "Õ");
-            put("\u00C3\u2013", "Ö");
-            put("\u00C3\u02DC", "Ø");
-            put("\u00C3\u2122", "Ù");
-            put("\u00C3\u0161", "Ú");
-            put("\u00C3\u203A", "Û");
-            put("\u00C3\u0153", "Ü");
-            put("\u00C3\uFFFD", "Ý");
-            put("\u00C3\u017E", "Þ");
-            put("\u00C3\u0178", "ß");
-            put("\u00C3\u00A0", "à");
-            put("\u00C3\u00A1", "á");
-            put("\u00C3\u00A2", "â");
-            put("\u00C3\u00A3", "ã");
-            put("\u00C3\u00A4", "ä");
-            put("\u00C3\u00A5", "å");
-            put("\u00C3\u00A6", "æ");
-            put("\u00C3\u00A7", "ç");
-            put("\u00C3\u00A8", "è");
-            put("\u00C3\u00A9", "é");
-            put("\u00C3\u00AA", "ê");
-            put("\u00C3\u00AB", "ë");
-            put("\u00C3\u00AC", "ì");
-            put("\u00C3\u00AD", "í");
-            put("\u00C3\u00AE", "î");
-            put("\u00C3\u00AF", "ï");
-            put("\u00C3\u00B0", "ð");
-            put("\u00C3\u00B1", "ñ");
-            put("\u00C3\u00B2", "ò");
-            put("\u00C3\u00B3", "ó");
-            put("\u00C3\u00B4", "ô");
-            put("\u00C3\u00B5", "õ");
-            put("\u00C3\u00B6", "ö");
-            // put("\u00C3\u0153", "œ"); TODO: find correct values
-            put("\u00C3\u00B8", "ø");
-            put("\u00C3\u00B9", "ù");
-            put("\u00C3\u00BA", "ú");
-            put("\u00C3\u00BB", "û");
-            put("\u00C3\u00BC", "ü");
-            put("\u00C3\u00BD", "ý");
-            put("\u00C3\u00BE", "þ");
-            put("\u00C3\u00BF", "ÿ");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * CP1252 characters of the bytes 0x80 to 0x9F, undefined bytes are
+     * decoded as the replacement character like Java's CP1252 decoder does.
+     */
+    private static final char[] CP1252_HIGH = {
+            '\u20AC', '\uFFFD', '\u201A', '\u0192', '\u201E', '\u2026',
+            '\u2020', '\u2021', '\u02C6', '\u2030', '\u0160', '\u2039',
+            '\u0152', '\uFFFD', '\u017D', '\uFFFD', '\uFFFD', '\u2018',
+            '\u2019', '\u201C', '\u201D', '\u2022', '\u2013', '\u2014',
+            '\u02DC', '\u2122', '\u0161', '\u203A', '\u0153', '\uFFFD',
+            '\u017E', '\u0178'};
+
+    /**
+     * Decode the bytes of a name as UTF-8 with CP1252 fallback. Pure ASCII
+     * names are converted without any intermediate allocation.
+     */
+    public static String convertToUTF8(byte[] value) {
+        int length = value.length;
+        int i = 0;
+        while (i < length && value[i] >= 0) {
+            i++;
+        }
+        if (i == length) {
+            return new String(value, ISO_8859_1);
+        }
+        char[] result = new char[length];
+        for (int j = 0; j < i; j++) {
+            result[j] = (char) value[j];
+        }
+        int resultLength = i;
+        while (i < length) {
+            int b = value[i] & 0xFF;
+            if (b < 0x80) {
+                result[resultLength++] = (char) b;
+                i++;
+                continue;
+            }
+            int sequenceLength = getSequenceLength(value, i);
+            if (sequenceLength == 0) {
+                result[resultLength++] = decodeCp1252(b);
+                i++;
+            } else if (sequenceLength == 2) {
+                result[resultLength++] = (char) (((b & 0x1F) << 6)
+                        | (value[i + 1] & 0x3F));
+                i += 2;
+            } else if (sequenceLength == 3) {
+                result[resultLength++] = (char) (((b & 0x0F) << 12)
+                        | ((value[i + 1] & 0x3F) << 6) | (value[i + 2] & 0x3F));
+                i += 3;
+            } else {
+                int codePoint = ((b & 0x07) << 18)
+                        | ((value[i + 1] & 0x3F) << 12)
+                        | ((value[i + 2] & 0x3F) << 6) | (value[i + 3] & 0x3F);
+                resultLength += Character.toChars(codePoint, result,
+                        resultLength);
+                i += 4;
+            }
         }
-    };
+        return new String(result, 0, resultLength);
+    }
 
+    /**
+     * Convert a name which was decoded as CP1252 but contains UTF-8. Strings
+     * without non ASCII characters are returned as they are.
+     */
     public static String convertToUTF8(String value) {
-        for (String source : CP1252_CONVERSION.keySet()) {
-            value = value.replace(source, CP1252_CONVERSION.get(source));
+        int length = value.length();
+        int i = 0;
+        while (i < length && value.charAt(i) < 0x80) {
+            i++;
+        }
+        if (i == length) {
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        for (int j = 0; j < length; j++) {
+            bytes[j] = encodeCp1252(value.charAt(j));
+        }
+        return convertToUTF8(bytes);
+    }
+
+    /**
+     * Return the length of the well-formed UTF-8 sequence at offset, or 0 if
+     * there is none.
+     */
+    private static int getSequenceLength(byte[] value, int offset) {
+        int b = value[offset] & 0xFF;
+        int length;
+        int min = 0x80;
+        int max = 0xBF;
+        if (b >= 0xC2 && b <= 0xDF) {
+            length = 2;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            length = 3;
+            if (b == 0xE0) {
+                min = 0xA0; // overlong
+            } else if (b == 0xED) {
+                max = 0x9F; // surrogates
+            }
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            length = 4;
+            if (b == 0xF0) {
+                min = 0x90; // overlong
+            } else if (b == 0xF4) {
+                max = 0x8F; // above U+10FFFF
+            }
+        } else {
+            return 0;
+        }
+        if (offset + length > value.length) {
+            return 0;
+        }
+        int second = value[offset + 1] & 0xFF;
+        if (second < min || second > max) {
+            return 0;
+        }
+        for (int i = offset + 2; i < offset + length; i++) {
+            if ((value[i] & 0xC0) != 0x80) {
+                return 0;
+            }
+        }
+        return length;
+    }
+
+    private static char decodeCp1252(int b) {
+        if (b >= 0x80 && b < 0xA0) {
+            return CP1252_HIGH[b - 0x80];
         }
-        return value;
+        return (char) b;
     }
 
+    private static byte encodeCp1252(char c) {
+        if (c < 0x80 || (c >= 0xA0 && c <= 0xFF)) {
+            return (byte) c;
+        }
+        if (c != '\uFFFD') {
+            for (int i = 0; i < CP1252_HIGH.length; i++) {
+                if (CP1252_HIGH[i] == c) {
+                    return (byte) (0x80 + i);
+                }
+            }
+        }
+        return '?';
+    }
 }
@@ -3,7 +3,8 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := jni
-LOCAL_SRC_FILES := jniscid.cpp
+LOCAL_SRC_FILES := jniscid.cpp headercolumns.cpp nameindex.cpp openingtree.cpp \
+    pgnimport.cpp posindex.cpp sortedfile.cpp sortindex.cpp trigramindex.cpp
 LOCAL_LDLIBS    := -llog
 
 LOCAL_STATIC_LIBRARIES := scid
@@ -0,0 +1,204 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       headercolumns.cpp
+//              HeaderColumns methods
+//
+//  The loops combine comparisons with & instead of && so that they
+//  have no branches.
+//
+//////////////////////////////////////////////////////////////////////
+
+#include "headercolumns.h"
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// HeaderColumns::Build():
+//      Copies the header fields of all games of the loaded index.
+void
+HeaderColumns::Build (Index * idx, NameBase * nb)
+{
+    Clear();
+    uint numGames = idx->GetNumGames();
+    for (uint c = 0; c < HEADERCOLUMNS_NUM_NAMES; c++) {
+        Names[c].resize (numGames);
+    }
+    Date.resize (numGames);
+    WhiteElo.resize (numGames);
+    BlackElo.resize (numGames);
+    Eco.resize (numGames);
+    HalfMoves.resize (numGames);
+    Result.resize (numGames);
+    Flags.resize (numGames);
+    for (gameNumberT g = 0; g < numGames; g++) {
+        IndexEntry * ie = idx->FetchEntry (g);
+        Names[HEADERCOLUMNS_WHITE][g] = ie->GetWhite();
+        Names[HEADERCOLUMNS_BLACK][g] = ie->GetBlack();
+        Names[HEADERCOLUMNS_EVENT][g] = ie->GetEvent();
+        Names[HEADERCOLUMNS_SITE][g] = ie->GetSite();
+        Names[HEADERCOLUMNS_ROUND][g] = ie->GetRound();
+        Date[g] = ie->GetDate();
+        eloT elo = ie->GetWhiteElo();
+        WhiteElo[g] = elo != 0 ? elo : nb->GetElo (ie->GetWhite());
+        elo = ie->GetBlackElo();
+        BlackElo[g] = elo != 0 ? elo : nb->GetElo (ie->GetBlack());
+        Eco[g] = ie->GetEcoCode();
+        HalfMoves[g] = ie->GetNumHalfMoves();
+        Result[g] = ie->GetResult();
+        byte flags = 0;
+        if (ie->GetLength() != 0) { flags |= HEADERCOLUMNS_RECORD; }
+        if (ie->GetStartFlag()) { flags |= HEADERCOLUMNS_START; }
+        if (ie->GetCommentsFlag()  ||  ie->GetVariationsFlag()
+                ||  ie->GetNagsFlag()) {
+            flags |= HEADERCOLUMNS_ANNOTATED;
+        }
+        Flags[g] = flags;
+    }
+    Built = true;
+}
+
+void
+HeaderColumns::Clear ()
+{
+    for (uint c = 0; c < HEADERCOLUMNS_NUM_NAMES; c++) {
+        std::vector<idNumberT>().swap (Names[c]);
+    }
+    std::vector<dateT>().swap (Date);
+    std::vector<eloT>().swap (WhiteElo);
+    std::vector<eloT>().swap (BlackElo);
+    std::vector<ecoT>().swap (Eco);
+    std::vector<ushort>().swap (HalfMoves);
+    std::vector<resultT>().swap (Result);
+    std::vector<byte>().swap (Flags);
+    Built = false;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// HeaderColumns::MatchName():
+//      Keeps the games whose name in the column is selected in names,
+//      which has an entry for each name ID.
+void
+HeaderColumns::MatchName (uint column, const byte * names, byte * mask,
+                          gameNumberT first, gameNumberT end)
+{
+    const idNumberT * ids = &Names[column][first];
+    for (uint i = 0; i < end - first; i++) {
+        mask[i] &= names[ids[i]];
+    }
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// HeaderColumns::MatchEitherPlayer():
+//      Keeps the games with a selected white or black player.
+void
+HeaderColumns::MatchEitherPlayer (const byte * names, byte * mask,
+                                  gameNumberT first, gameNumberT end)
+{
+    const idNumberT * white = &Names[HEADERCOLUMNS_WHITE][first];
+    const idNumberT * black = &Names[HEADERCOLUMNS_BLACK][first];
+    for (uint i = 0; i < end - first; i++) {
+        mask[i] &= names[white[i]] | names[black[i]];
+    }
+}
+
+void
+HeaderColumns::MatchResult (const bool * results, byte * mask,
+                            gameNumberT first, gameNumberT end)
+{
+    const resultT * result = &Result[first];
+    for (uint i = 0; i < end - first; i++) {
+        mask[i] &= results[result[i]];
+    }
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// HeaderColumns::MatchHalfMoves():
+//      Keeps the games with a number of half moves in the range and
+//      ending with White to move (even) or Black to move (odd).
+void
+HeaderColumns::MatchHalfMoves (uint min, uint max, bool even, bool odd,
+                               byte * mask, gameNumberT first,
+                               gameNumberT end)
+{
+    const ushort * halfMoves = &HalfMoves[first];
+    uint parities = (even ? 1 : 0) | (odd ? 2 : 0);
+    for (uint i = 0; i < end - first; i++) {
+        uint h = halfMoves[i];
+        mask[i] &= (h >= min) & (h <= max) & (parities >> (h & 1));
+    }
+}
+
+void
+HeaderColumns::MatchDate (dateT min, dateT max, byte * mask,
+                          gameNumberT first, gameNumberT end)
+{
+    const dateT * date = &Date[first];
+    for (uint i = 0; i < end - first; i++) {
+        mask[i] &= (date[i] >= min) & (date[i] <= max);
+    }
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// HeaderColumns::MatchElo():
+//      Keeps the games with a white or black Elo in the range, or with
+//      an unknown Elo if allowUnknown is true.
+void
+HeaderColumns::MatchElo (bool white, int min, int max, bool allowUnknown,
+                         byte * mask, gameNumberT first, gameNumberT end)
+{
+    const eloT * elo = white ? &WhiteElo[first] : &BlackElo[first];
+    int unknown = allowUnknown ? 1 : 0;
+    for (uint i = 0; i < end - first; i++) {
+        int e = elo[i];
+        mask[i] &= (e == 0) ? unknown : (e >= min) & (e <= max);
+    }
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// HeaderColumns::MatchBothElo():
+//      Keeps the games with the lower Elo, the higher Elo and their
+//      difference in the ranges, or with an unknown Elo if
+//      allowUnknown is true.
+void
+HeaderColumns::MatchBothElo (int minMin, int minMax, int maxMin, int maxMax,
+                             int diffMin, int diffMax, bool allowUnknown,
+                             byte * mask, gameNumberT first, gameNumberT end)
+{
+    const eloT * white = &WhiteElo[first];
+    const eloT * black = &BlackElo[first];
+    int unknown = allowUnknown ? 1 : 0;
+    for (uint i = 0; i < end - first; i++) {
+        int w = white[i], b = black[i];
+        int low = w < b ? w : b, high = w < b ? b : w, diff = high - low;
+        int known = (low >= minMin) & (low <= minMax)
+            & (high >= maxMin) & (high <= maxMax)
+            & (diff >= diffMin) & (diff <= diffMax);
+        mask[i] &= (low == 0) ? unknown : known;
+    }
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// HeaderColumns::MatchEco():
+//      Keeps the games without their own start position that have an
+//      ECO code in the range, or no ECO code if allowNone is true.
+void
+HeaderColumns::MatchEco (ecoT min, ecoT max, bool allowNone, byte * mask,
+                         gameNumberT first, gameNumberT end)
+{
+    const ecoT * eco = &Eco[first];
+    const byte * flags = &Flags[first];
+    int none = allowNone ? 1 : 0;
+    for (uint i = 0; i < end - first; i++) {
+        int e = eco[i];
+        int match = (e == ECO_None) ? none : (e >= min) & (e <= max);
+        mask[i] &= match & ((flags[i] & HEADERCOLUMNS_START) == 0);
+    }
+}
+
+void
+HeaderColumns::MatchAnnotated (byte * mask, gameNumberT first,
+                               gameNumberT end)
+{
+    const byte * flags = &Flags[first];
+    for (uint i = 0; i < end - first; i++) {
+        mask[i] &= (flags[i] & HEADERCOLUMNS_ANNOTATED) != 0;
+    }
+}
@@ -0,0 +1,81 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       headercolumns.h
+//              Columnar copy (HeaderColumns) of the index for header searches
+//
+//  The header fields searchHeader compares are kept in one array per
+//  field instead of one IndexEntry per game, with the Elo ratings the
+//  games lack already taken from the name base. Each criterion of a
+//  search is a short loop over one array that clears the games not
+//  matching it in a mask of one byte per game, which compilers can
+//  vectorise and which reads only the memory the criterion needs.
+//
+//////////////////////////////////////////////////////////////////////
+
+#ifndef JNI_HEADERCOLUMNS_H
+#define JNI_HEADERCOLUMNS_H
+
+#include "scid/common.h"
+#include "scid/index.h"
+#include "scid/namebase.h"
+
+#include <vector>
+
+// Name columns:
+const uint HEADERCOLUMNS_WHITE = 0, HEADERCOLUMNS_BLACK = 1,
+    HEADERCOLUMNS_EVENT = 2, HEADERCOLUMNS_SITE = 3,
+    HEADERCOLUMNS_ROUND = 4;
+const uint HEADERCOLUMNS_NUM_NAMES = 5;
+
+// Bits of the flags column:
+const byte HEADERCOLUMNS_RECORD = 1,    // the game has a game file record
+    HEADERCOLUMNS_START = 2,            // the game has its own start position
+    HEADERCOLUMNS_ANNOTATED = 4;        // comments, variations or NAGs
+
+class HeaderColumns
+{
+  private:
+    std::vector<idNumberT> Names [HEADERCOLUMNS_NUM_NAMES];
+    std::vector<dateT>     Date;
+    std::vector<eloT>      WhiteElo;    // from the name base if the game
+    std::vector<eloT>      BlackElo;    // has none
+    std::vector<ecoT>      Eco;
+    std::vector<ushort>    HalfMoves;
+    std::vector<resultT>   Result;
+    std::vector<byte>      Flags;
+    bool                   Built;
+
+  public:
+    HeaderColumns() : Built(false) {}
+
+    bool IsBuilt () { return Built; }
+    void Build (Index * idx, NameBase * nb);
+    void Clear ();
+
+    bool HasRecord (gameNumberT g) {
+        return Flags[g] & HEADERCOLUMNS_RECORD;
+    }
+
+    // Each Match method clears mask[g - first] for the games g from
+    // first to end - 1 not matching the criterion:
+    void MatchName (uint column, const byte * names, byte * mask,
+                    gameNumberT first, gameNumberT end);
+    void MatchEitherPlayer (const byte * names, byte * mask,
+                            gameNumberT first, gameNumberT end);
+    void MatchResult (const bool * results, byte * mask,
+                      gameNumberT first, gameNumberT end);
+    void MatchHalfMoves (uint min, uint max, bool even, bool odd,
+                         byte * mask, gameNumberT first, gameNumberT end);
+    void MatchDate (dateT min, dateT max, byte * mask,
+                    gameNumberT first, gameNumberT end);
+    void MatchElo (bool white, int min, int max, bool allowUnknown,
+                   byte * mask, gameNumberT first, gameNumberT end);
+    void MatchBothElo (int minMin, int minMax, int maxMin, int maxMax,
+                       int diffMin, int diffMax, bool allowUnknown,
+                       byte * mask, gameNumberT first, gameNumberT end);
+    void MatchEco (ecoT min, ecoT max, bool allowNone, byte * mask,
+                   gameNumberT first, gameNumberT end);
+    void MatchAnnotated (byte * mask, gameNumberT first, gameNumberT end);
+};
+
+#endif  // JNI_HEADERCOLUMNS_H
@@ -4,9 +4,20 @@
 #include "scid/gfile.h"
 #include "scid/game.h"
 #include "scid/pgnparse.h"
+#include "headercolumns.h"
+#include "nameindex.h"
+#include "openingtree.h"
+#include "pgnimport.h"
+#include "posindex.h"
+#include "sortindex.h"
+#include "trigramindex.h"
 
 #include <android/log.h>
 #include <jni.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <pthread.h>
+#include <sys/mman.h>
 #include <sys/stat.h>
 #include <time.h>
 #include <unistd.h>
@@ -41,14 +52,16 @@ using namespace std;
         return 0;                               \
     }
 
-#define FILE_LOADED                             \
-    if(not fileLoaded){                         \
-        LOGE("%s: no file loaded", __func__);   \
-        return 0;                               \
+#define DATABASE_OPEN                                       \
+    scidDatabaseT* db = (scidDatabaseT*) intptr_t(handle);  \
+    if(not db){                                             \
+        LOGE("%s: no database", __func__);                  \
+        return 0;                                           \
     }
 
 #define GAME_LOADED                             \
-    if(not gameLoaded){                         \
+    GAME_LOCK;                                  \
+    if(not db->gameLoaded){                     \
         LOGE("%s: no game loaded", __func__);   \
         return 0;                               \
     }
@@ -59,9 +72,13 @@ using namespace std;
         return 0;                                           \
     }
 
+// The progress is published every percent, while cancellation is checked
+// every CANCEL_CHECK_DELTA games, so that a cancelled search stops at once.
+const uint CANCEL_CHECK_DELTA = 1024;
+
 #define PREPARE_PROGRESS(noGames)                                       \
     jmethodID midIsCanceled, midPublishProgress;                        \
-    uint progressDelta, nextCallbackGameNo;                             \
+    uint progressDelta, nextCallbackGameNo, nextCancelCheckGameNo;      \
     if(progress){                                                       \
         jclass cls = env->GetObjectClass(progress);                     \
         midPublishProgress = env->GetMethodID(cls, "publishProgress", "(I)V"); \
@@ -69,21 +86,50 @@ using namespace std;
         env->DeleteLocalRef(cls);                                       \
         progressDelta = (noGames) / 100;                                \
         nextCallbackGameNo = progressDelta;                             \
+        nextCancelCheckGameNo = min(progressDelta, CANCEL_CHECK_DELTA); \
     } else {                                                            \
         LOGD("No progress");                                            \
     }
 
 #define DO_PROGRESS(gameNum, noGames)                               \
-    if(progress and (gameNum) >= nextCallbackGameNo){               \
-        nextCallbackGameNo = (gameNum) + progressDelta;             \
-        int percent = double(gameNum)*100/(noGames);                \
-        env->CallVoidMethod(progress, midPublishProgress, percent); \
+    if(progress and (gameNum) >= nextCancelCheckGameNo){            \
+        nextCancelCheckGameNo = (gameNum) + CANCEL_CHECK_DELTA;     \
+        if((gameNum) >= nextCallbackGameNo){                        \
+            nextCallbackGameNo = (gameNum) + progressDelta;         \
+            int percent = double(gameNum)*100/(noGames);            \
+            env->CallVoidMethod(progress, midPublishProgress, percent); \
+        }                                                           \
         if(env->CallBooleanMethod(progress, midIsCanceled)){        \
             LOGI("canceled");                                       \
             break;                                                  \
         }                                                           \
     }
 
+// Searches also pass the games found so far to a SearchProgress. The games
+// with an ID before searched are final, publishing them in ascending order.
+#define PREPARE_SEARCH_PROGRESS                                         \
+    jmethodID midPublishResults = 0;                                    \
+    gameNumberT published = 0;                                          \
+    if(progress){                                                       \
+        jclass cls = env->FindClass("com/kalab/database/SearchProgress"); \
+        if(not cls)                                                     \
+            env->ExceptionClear();                                      \
+        else{                                                           \
+            if(env->IsInstanceOf(progress, cls))                        \
+                midPublishResults = env->GetMethodID(cls, "publishResults", "([I[S)V"); \
+            env->DeleteLocalRef(cls);                                   \
+        }                                                               \
+    }
+#define PUBLISH_RESULTS(searched)                                       \
+    if(midPublishResults)                                               \
+        publishResults(env, progress, midPublishResults, filter, &published, (searched))
+#define DO_SEARCH_PROGRESS(gameNum, searched, noGames)                  \
+    if(progress and (gameNum) >= nextCancelCheckGameNo                 \
+       and (gameNum) >= nextCallbackGameNo){                            \
+        PUBLISH_RESULTS(searched);                                      \
+    }                                                                   \
+    DO_PROGRESS(gameNum, noGames)
+
 class AutoJString {             // automatic release of jstring chars
     JNIEnv* env;
     jstring j;                  // java string
@@ -107,194 +153,607 @@ public:
 
 class AutoJArray {              // automatic release of short[] chars
     JNIEnv* env;
-    jshortArray j;              // java array
+    jshortArray j;              // java array, may be null
     jshort* c;                  // C array
 public:
     AutoJArray(JNIEnv* env, jshortArray j)
         :env(env),
          j(j),
-         c(env->GetShortArrayElements(j,0)){}
+         c(j ? env->GetShortArrayElements(j,0) : 0){}
     ~AutoJArray(){
-        env->ReleaseShortArrayElements(j, c, 0);
+        if(c)
+            env->ReleaseShortArrayElements(j, c, 0);
     }
     operator jshort* () { return c; }
 };
 #define AJA(name) AutoJArray name(env, j##name) // local "arr" from parameter "jarr"
 
+// The in-out filter of a search. Without a filter all games are searched,
+// and the games found are only passed to the SearchProgress.
+#define SEARCH_FILTER(function)                                         \
+    gameNumberT noGames = db->index.GetNumGames();                      \
+    AutoJArray filterElements(env, jfilter);                            \
+    vector<jshort> allGames;                                            \
+    jshort* filter = filterElements;                                    \
+    if(not jfilter){                                                    \
+        allGames.assign(noGames + 1, 1);                                \
+        filter = &allGames[0];                                          \
+    }else if(not filter){                                               \
+        LOGE(function ": filter is null");                              \
+        return false;                                                   \
+    }else if(noGames != env->GetArrayLength(jfilter)){                  \
+        LOGE(function ": filter has wrong length");                     \
+        return false;                                                   \
+    }
+
+// Pass the games of the filter with IDs from published up to searched to
+// the publishResults method of a SearchProgress.
+static void publishResults(JNIEnv* env, jobject progress, jmethodID midPublishResults,
+                           const jshort* filter, uint* published, uint searched){
+    vector<jint> gameIds;
+    vector<jshort> plies;
+    for(uint id = *published; id < searched; ++id){
+        if(filter[id]){
+            gameIds.push_back(id);
+            plies.push_back(filter[id]);
+        }
+    }
+    *published = max(*published, searched);
+    if(gameIds.empty())
+        return;
+    jsize length = gameIds.size();
+    jintArray jgameIds = env->NewIntArray(length);
+    jshortArray jplies = env->NewShortArray(length);
+    if(jgameIds and jplies){
+        env->SetIntArrayRegion(jgameIds, 0, length, &gameIds[0]);
+        env->SetShortArrayRegion(jplies, 0, length, &plies[0]);
+        env->CallVoidMethod(progress, midPublishResults, jgameIds, jplies);
+    }
+    env->DeleteLocalRef(jgameIds);
+    env->DeleteLocalRef(jplies);
+}
+
 /// Global state
+// Make sure the following is in sync with DataBase.java
+enum headerColumnT {
+    HEADER_WHITE = 0, HEADER_BLACK, HEADER_EVENT, HEADER_SITE, HEADER_ROUND,
+    HEADER_DATE, HEADER_RESULT, HEADER_WHITE_ELO, HEADER_BLACK_ELO, HEADER_FLAGS,
+    NUM_HEADER_COLUMNS
+};
+const jint HEADER_FLAG_FAVORITE = 1, HEADER_FLAG_DELETED = 2;
+
 typedef uint filterOpT;
 const filterOpT FILTEROP_RESET = 0, FILTEROP_OR = 1, FILTEROP_AND = 2, FILTEROP_SUBTRACT = 3;
 const int MAX_JSHORT = (1<<15) - 1; // 2**15 - 1
 
-static Index sourceIndex;
-static NameBase sourceNameBase;
-static GFile sourceGFile;
-static ByteBuffer bbuf;
-static bool fileLoaded = false;
+// Everything that belongs to one open database, including its loaded
+// game. The Java side keeps a pointer to it as an opaque long handle.
+//
+// Any number of threads may read a database at the same time, while
+// modifications take the lock exclusively. Readers only share data that
+// does not change after it has been loaded: the index once it is in
+// memory, the name base and the position index. Games are decoded
+// directly from the mapped game file, or read with pread from a
+// separate descriptor of the game file into the reader's own buffer if
+// it is not mapped, since GFile keeps a single block cache. The loaded
+// game has a lock of its own.
+//
+// The files of a database bundled with the app may be read in place
+// from the APK, see MFile::RegisterRegion. They are copied to their own
+// files before the first modification.
+struct scidDatabaseT {
+    Index index;
+    NameBase nameBase;
+    GFile gfile;
+    PosIndex posIndex;
+    int gameFd;                 // for positional reads of the game file
+    off_t gameOffset;           // of the game file in gameFd
+    uint generation;            // changed by every modification
+    pthread_mutex_t scanLock;   // guards scans
+    int scans;                  // running sequential scans of the game file
+
+    pthread_rwlock_t lock;      // read lock for reading, write lock for changes
+    pthread_mutex_t indexLock;  // loading the index into memory
+    pthread_mutex_t posIndexLock; // opening or building the position index
+    pthread_mutex_t sortIndexLock; // reading or building sort orders
+    pthread_mutex_t nameIndexLock; // building or using the name indexes
+    NameIndex nameIndex[NUM_NAME_TYPES]; // built on first use
+    pthread_mutex_t trigramIndexLock; // building the trigram indexes
+    TrigramIndex trigramIndex[NUM_NAME_TYPES]; // built on first use
+    pthread_mutex_t columnsLock; // building the header columns
+    HeaderColumns columns;      // built on first use
+    pthread_mutex_t openingTreeLock; // opening, building or using the tree
+    OpeningTree openingTree;
+    uint openingTreeGeneration; // of the database when the tree was opened
+
+    pthread_mutex_t gameLock;   // the loaded game
+    bool gameLoaded;
+    gameNumberT gameId;
+    IndexEntry ie;
+    Game game;
+
+    scidDatabaseT() : gameFd(-1), gameOffset(0), generation(0), scans(0), openingTreeGeneration(0), gameLoaded(false), gameId(0) {
+        pthread_mutex_init(&scanLock, NULL);
+        pthread_rwlock_init(&lock, NULL);
+        pthread_mutex_init(&indexLock, NULL);
+        pthread_mutex_init(&posIndexLock, NULL);
+        pthread_mutex_init(&sortIndexLock, NULL);
+        pthread_mutex_init(&nameIndexLock, NULL);
+        pthread_mutex_init(&trigramIndexLock, NULL);
+        pthread_mutex_init(&columnsLock, NULL);
+        pthread_mutex_init(&openingTreeLock, NULL);
+        pthread_mutex_init(&gameLock, NULL);
+    }
+    ~scidDatabaseT(){
+        if(gameFd >= 0)
+            ::close(gameFd);
+        pthread_mutex_destroy(&scanLock);
+        pthread_rwlock_destroy(&lock);
+        pthread_mutex_destroy(&indexLock);
+        pthread_mutex_destroy(&posIndexLock);
+        pthread_mutex_destroy(&sortIndexLock);
+        pthread_mutex_destroy(&nameIndexLock);
+        pthread_mutex_destroy(&trigramIndexLock);
+        pthread_mutex_destroy(&columnsLock);
+        pthread_mutex_destroy(&openingTreeLock);
+        pthread_mutex_destroy(&gameLock);
+    }
+};
 
-static bool gameLoaded = false;
-static gameNumberT gameId;
-static IndexEntry ie;
-static Game game;
+class AutoRWLock {              // automatic release of a read or write lock
+    pthread_rwlock_t* lock;
+public:
+    AutoRWLock(pthread_rwlock_t* lock, bool write) : lock(lock) {
+        if(write)
+            pthread_rwlock_wrlock(lock);
+        else
+            pthread_rwlock_rdlock(lock);
+    }
+    ~AutoRWLock(){ pthread_rwlock_unlock(lock); }
+};
+class AutoMutex {               // automatic release of a mutex
+    pthread_mutex_t* mutex;
+public:
+    AutoMutex(pthread_mutex_t* mutex) : mutex(mutex) { pthread_mutex_lock(mutex); }
+    ~AutoMutex(){ pthread_mutex_unlock(mutex); }
+};
+// Generations are unique across all databases, so that a reopened
+// database never has the generation of an earlier handle:
+static pthread_mutex_t generationLock = PTHREAD_MUTEX_INITIALIZER;
+static uint lastGeneration = 0;
+static uint newGeneration(){
+    AutoMutex autoLock(&generationLock);
+    return ++lastGeneration;
+}
+
+// Advises the game file for sequential reading while a scan reads all
+// games, and for random reading of single games otherwise.
+class SequentialScan {
+    scidDatabaseT* db;          // 0 if the scan reads only some games
+public:
+    SequentialScan(scidDatabaseT* db, bool allGames = true) : db(allGames ? db : 0) {
+        if(not this->db)
+            return;
+        AutoMutex autoLock(&db->scanLock);
+        if(db->scans++ == 0)
+            db->gfile.Advise(MADV_SEQUENTIAL);
+    }
+    ~SequentialScan(){
+        if(not db)
+            return;
+        AutoMutex autoLock(&db->scanLock);
+        if(--db->scans == 0)
+            db->gfile.Advise(MADV_RANDOM);
+    }
+};
+#define READ_LOCK AutoRWLock autoLock(&db->lock, false)
+#define WRITE_LOCK AutoRWLock autoLock(&db->lock, true)
+#define GAME_LOCK AutoMutex autoGameLock(&db->gameLock)
+
+// The decode context of one reader: the game record is read with pread
+// into a buffer of its own.
+class GameReader {
+    vector<byte> data;
+public:
+    ByteBuffer bbuf;
+
+    errorT ReadGame(scidDatabaseT* db, IndexEntry* ie){
+        uint length = ie->GetLength();
+        off_t offset = ie->GetOffset();
+        const byte* mapped = db->gfile.GetMappedData();
+        if(mapped and offset + length <= db->gfile.GetMappedSize()){
+            // decode the mapped bytes without copying them
+            bbuf.ProvideExternal((byte*) mapped + offset, length);
+            return OK;
+        }
+        data.resize(length + 1);
+        uint done = 0;
+        while(done < length){
+            ssize_t n = pread(db->gameFd, &data[done], length - done,
+                              db->gameOffset + offset + done);
+            if(n < 0 and errno == EINTR)
+                continue;
+            if(n <= 0)
+                return ERROR_FileRead;
+            done += n;
+        }
+        bbuf.ProvideExternal(&data[0], length);
+        return OK;
+    }
+};
+
+struct ProgressData{
+    JNIEnv* env;
+    jobject progress;
+    jmethodID midIsCanceled, midPublishProgress;
+};
+static errorT readEntireIndexCallback(void* data, uint progress, uint total){
+    ProgressData* pd = (ProgressData*) data;
+    pd->env->CallVoidMethod(pd->progress, pd->midPublishProgress,
+                            jint(double(progress)*100 / total));
+    if(pd->env->CallBooleanMethod(pd->progress, pd->midIsCanceled)){
+        LOGI("canceled");
+        return ERROR;
+    }else{
+        return OK;
+    }
+}
+// Read the index into memory, where readers can share it. Progress data
+// may be null.
+static errorT loadIndex(scidDatabaseT* db, int reportFrequency, ProgressData* pd){
+    AutoMutex autoMutex(&db->indexLock);
+    if(db->index.AllInMemory())
+        return OK;
+    return db->index.ReadEntireFile(reportFrequency,
+                                    pd ? readEntireIndexCallback : 0, pd);
+}
 
-static void unloadGame(){
-    if(gameLoaded){
-        game.Clear();
-        gameLoaded = false;
+static void unloadGame(scidDatabaseT* db){
+    if(db->gameLoaded){
+        db->game.Clear();
+        db->gameLoaded = false;
     }
 }
-static void unloadFile(){
-    unloadGame();
-    if(fileLoaded){
-        LOGI("unloading index");
-        sourceIndex.CloseIndexFile();
-        sourceIndex.Clear();
-        sourceNameBase.Clear();
-        sourceGFile.Close();
-        fileLoaded = false;
+static void closeDatabase(scidDatabaseT* db){
+    unloadGame(db);
+    LOGI("closing %s", db->index.GetFileName());
+    db->index.CloseIndexFile();
+    db->index.Clear();
+    db->nameBase.Clear();
+    db->gfile.Close();
+    db->posIndex.Close();
+    db->openingTree.Close();
+    delete db;
+}
+// Opens the game file, or the region it is read from, for positional
+// reads.
+static errorT openGameFd(scidDatabaseT* db, const char* fname){
+    string gname = string(fname) + GFILE_SUFFIX;
+    uint offset = 0, length = 0;
+    int fd = MFile::OpenRegion(gname.c_str(), &offset, &length);
+    if(fd < 0)
+        fd = ::open(gname.c_str(), O_RDONLY);
+    if(fd < 0)
+        return ERROR_FileOpen;
+    if(db->gameFd >= 0)
+        ::close(db->gameFd);
+    db->gameFd = fd;
+    db->gameOffset = offset;
+    return OK;
+}
+// Copies the files of a database that are read from regions of another
+// file to their own files, so that they can be modified. The files
+// opened for reading keep reading the regions, which have the same
+// contents.
+static errorT extractRegions(scidDatabaseT* db){
+    string fname = db->index.GetFileName();
+    string gname = fname + GFILE_SUFFIX;
+    if(not MFile::IsRegion(gname.c_str()))
+        return OK;
+    LOGI("copying %s for writing", fname.c_str());
+    // the game file last, as it tells whether the copy is complete
+    if(MFile::ExtractRegion((fname + INDEX_SUFFIX).c_str()) != OK
+       or MFile::ExtractRegion((fname + NAMEBASE_SUFFIX).c_str()) != OK
+       or MFile::ExtractRegion(gname.c_str()) != OK){
+        LOGE("cannot copy %s", fname.c_str());
+        return ERROR_FileWrite;
     }
+    return openGameFd(db, fname.c_str());
 }
-static errorT reopenIndexForWriting(){
-    if(sourceIndex.GetFileMode() != FMODE_Both){
-        sourceIndex.CloseIndexFile();
-        if(sourceIndex.OpenIndexFile(FMODE_Both) != OK){
+static errorT reopenIndexForWriting(scidDatabaseT* db){
+    if(db->index.GetFileMode() != FMODE_Both){
+        if(extractRegions(db) != OK)
+            return ERROR;
+        db->index.CloseIndexFile();
+        if(db->index.OpenIndexFile(FMODE_Both) != OK){
             LOGE("cannot open index for writing");
-            sourceIndex.OpenIndexFile(FMODE_ReadOnly);
+            db->index.OpenIndexFile(FMODE_ReadOnly);
             return ERROR;
         }
     }
     return OK;
 }
-static errorT reopenGFileForWriting(){
-    if(sourceGFile.GetFileMode() != FMODE_Both){
-        sourceGFile.Close();
-        string fname = sourceGFile.GetFileNameWithSuffix();
-        if(sourceGFile.Open(fname.c_str(), FMODE_Both, "") != OK){
+static errorT reopenGFileForWriting(scidDatabaseT* db){
+    if(db->gfile.GetFileMode() != FMODE_Both){
+        if(extractRegions(db) != OK)
+            return ERROR;
+        db->gfile.Close();
+        string fname = db->gfile.GetFileNameWithSuffix();
+        if(db->gfile.Open(fname.c_str(), FMODE_Both, "") != OK){
             LOGE("cannot open game file for writing");
-            sourceGFile.Open(fname.c_str(), FMODE_ReadOnly, "");
+            db->gfile.Open(fname.c_str(), FMODE_ReadOnly, "");
             return ERROR;
         }
     }
     return OK;
 }
-
-/// Loading and operations with loaded file
-JCM(jboolean, loadFile, jstring jfname){
-    AJS(fname);
-    if(fileLoaded and strcmp(fname, sourceIndex.GetFileName()) == 0){
-        LOGI("loadFile: file %s is already loaded", fname.c_str());
-        return true;
-    }
 
-    unloadFile();
-    LOGI("loadFile: %s\n", fname.c_str());
-    sourceIndex.SetFileName(fname);
+static void reopenGFileForReading(scidDatabaseT* db){
+    if(db->gfile.GetFileMode() != FMODE_ReadOnly){
+        db->gfile.Close();
+        string fname = db->gfile.GetFileNameWithSuffix();
+        if(db->gfile.Open(fname.c_str(), FMODE_ReadOnly, "") != OK){
+            LOGE("cannot open game file for reading");
+            return;
+        }
+        db->gfile.Advise(MADV_RANDOM);
+    }
+}
 
-    sourceNameBase.SetFileName(fname);
-    CHECKL(sourceIndex.OpenIndexFile(FMODE_ReadOnly), "OpenIndexFile");
-    CHECKL(sourceNameBase.ReadNameFile(),"ReadNameFile");
-    CHECKL(sourceGFile.Open(fname, FMODE_ReadOnly),"Open");
-    bbuf.SetBufferSize(BBUF_SIZE);
-    LOGI("file loaded\n");
-    fileLoaded = true;
-    return true;
+/// Opening databases and operations with an open database
+JCM(void, registerAsset, jstring jfname, jint fd, jlong offset, jlong length){
+    AJS(fname);
+    LOGI("registerAsset: %s at %lld\n", fname.c_str(), (long long) offset);
+    MFile::RegisterRegion(fname, fd, uint(offset), uint(length));
+}
+JCM(jlong, open, jstring jfname){
+    AJS(fname);
+    LOGI("open: %s\n", fname.c_str());
+    scidDatabaseT* db = new scidDatabaseT;
+    db->index.SetFileName(fname);
+    db->nameBase.SetFileName(fname);
+    if(db->index.OpenIndexFile(FMODE_ReadOnly) != OK
+       or db->nameBase.ReadNameFile() != OK
+       or db->gfile.Open(fname, FMODE_ReadOnly) != OK
+       or openGameFd(db, fname) != OK){
+        LOGW("open: cannot open %s", fname.c_str());
+        db->gfile.Close();
+        delete db; // the index and name base close their files
+        return 0;
+    }
+    db->generation = newGeneration();
+    // Cursors read single games, scans advise sequential reading:
+    db->gfile.Advise(MADV_RANDOM);
+    LOGI("file opened\n");
+    return jlong(intptr_t(db));
+}
+JCM(void, close, jlong handle){
+    if(handle)
+        closeDatabase((scidDatabaseT*) intptr_t(handle));
 }
-JCM(jint, getSize){
-    FILE_LOADED;
-    return sourceIndex.GetNumGames();
+JCM(jint, getGeneration, jlong handle){
+    DATABASE_OPEN;
+    READ_LOCK;
+    return db->generation;
 }
-JCM(jint, getNamesCount, jint nameType){
+JCM(jint, getSize, jlong handle){
+    DATABASE_OPEN;
+    READ_LOCK;
+    return db->index.GetNumGames();
+}
+JCM(jint, getNamesCount, jlong handle, jint nameType){
     PROPER_NAME_TYPE;
-    FILE_LOADED;
-    return sourceNameBase.GetNumNames(nameType);
+    DATABASE_OPEN;
+    READ_LOCK;
+    return db->nameBase.GetNumNames(nameType);
 }
-JCM(jbyteArray, getName, jint nameType, jint id){
+JCM(jbyteArray, getName, jlong handle, jint nameType, jint id){
     PROPER_NAME_TYPE;
-    FILE_LOADED;
-    char* name = sourceNameBase.GetName(nameType, id);
+    DATABASE_OPEN;
+    READ_LOCK;
+    char* name = db->nameBase.GetName(nameType, id);
     int length = strlen(name);
     jbyteArray result = env->NewByteArray(length);
     env->SetByteArrayRegion(result, 0, length, (const jbyte*) name);
     return result;
 }
-// getMatchingNames must be reentrant and use case-insensitive
-// comparison (thus we cannot use the name tree)
-struct CaseCmp{
-    nameT nameType;
-    const char* name(jint id){
-        return sourceNameBase.GetName(nameType, id);
+JCM(jobjectArray, getNames, jlong handle, jint nameType, jintArray jids){
+    PROPER_NAME_TYPE;
+    DATABASE_OPEN;
+    READ_LOCK;
+    if(not jids){
+        LOGE("getNames: null argument");
+        return 0;
     }
-    bool operator()(jint a, jint b){
-        return strcasecmp(name(a),name(b)) < 0;
+    jsize count = env->GetArrayLength(jids);
+    vector<jint> ids(count + 1);
+    env->GetIntArrayRegion(jids, 0, count, &ids[0]);
+    jobjectArray result = env->NewObjectArray(count, env->FindClass("[B"), NULL);
+    if(not result)
+        return 0;
+    uint numNames = db->nameBase.GetNumNames(nameType);
+    for(jsize i = 0; i < count; ++i){
+        if(ids[i] < 0 or uint(ids[i]) >= numNames)
+            continue; // leave null for invalid IDs
+        const char* name = db->nameBase.GetName(nameType, ids[i]);
+        int length = strlen(name);
+        jbyteArray bytes = env->NewByteArray(length);
+        if(not bytes)
+            return 0;
+        env->SetByteArrayRegion(bytes, 0, length, (const jbyte*) name);
+        env->SetObjectArrayElement(result, i, bytes);
+        env->DeleteLocalRef(bytes);
     }
-};
-JCM(jintArray, getMatchingNames, jint nameType, jstring jprefix){
+    return result;
+}
+// Return the IDs of the names starting with the prefix ignoring case and
+// accents, in the order of their folded names, from the match with the
+// offset on and at most limit IDs if limit is not negative.
+JCM(jintArray, getMatchingNames, jlong handle, jint nameType, jstring jprefix,
+    jint offset, jint limit){
     PROPER_NAME_TYPE;
-    FILE_LOADED;
+    DATABASE_OPEN;
+    READ_LOCK;
+    if(not jprefix){
+        LOGE("getMatchingNames: prefix is null");
+        return 0;
+    }
     AJS(prefix);
-    vector<jint> matches; // idNumberT is uint and thus compatible with jint
-    uint numNames = sourceNameBase.GetNumNames(nameType);
-    if(size_t len = strlen(prefix)){
-        for(uint i = 0; i < numNames; ++i){
-            if(strncasecmp(prefix, sourceNameBase.GetName(nameType, i), len) == 0)
-                matches.push_back(i);
+    AutoMutex autoMutex(&db->nameIndexLock);
+    NameIndex* nameIndex = &db->nameIndex[nameType];
+    if(not nameIndex->IsBuilt())
+        nameIndex->Build(&db->nameBase, nameType);
+    uint first, end;
+    nameIndex->Lookup(prefix, &first, &end);
+    if(offset > 0)
+        first = min(end, first + offset);
+    if(limit >= 0 and uint(limit) < end - first)
+        end = first + limit;
+    vector<jint> matches(end - first + 1); // idNumberT is uint and thus compatible with jint
+    for(uint i = first; i < end; ++i)
+        matches[i - first] = nameIndex->GetId(i);
+    jintArray result = env->NewIntArray(end - first);
+    if(result)
+        env->SetIntArrayRegion(result, 0, end - first, &matches[0]);
+    return result;
+}
+
+// Fill the header columns of a page of games straight from the index,
+// so that no game has to be loaded. Name columns get NameBase IDs.
+JCM(jboolean, getHeaders, jlong handle, jintArray jgameIds, jintArray jcolumns, jobjectArray jvalues){
+    DATABASE_OPEN;
+    READ_LOCK;
+    if(not (jgameIds and jcolumns and jvalues)){
+        LOGE("getHeaders: null argument");
+        return false;
+    }
+    jsize noRows = env->GetArrayLength(jgameIds);
+    jsize noColumns = env->GetArrayLength(jcolumns);
+    if(env->GetArrayLength(jvalues) != noColumns){
+        LOGE("getHeaders: values must have one array per column");
+        return false;
+    }
+    vector<jint> gameIds(noRows), columns(noColumns);
+    if(noRows == 0 or noColumns == 0)
+        return true;
+    env->GetIntArrayRegion(jgameIds, 0, noRows, &gameIds[0]);
+    env->GetIntArrayRegion(jcolumns, 0, noColumns, &columns[0]);
+
+    CHECK(loadIndex(db, 0, 0));
+    vector<jint> values(noRows * noColumns);
+    gameNumberT noGames = db->index.GetNumGames();
+    for(jsize row = 0; row < noRows; ++row){
+        jint id = gameIds[row];
+        if(id < 0 or gameNumberT(id) >= noGames)
+            continue; // leave the row zeroed
+        IndexEntry* ie = db->index.FetchEntry(id);
+        for(jsize c = 0; c < noColumns; ++c){
+            jint value;
+            switch(columns[c]){
+            case HEADER_WHITE: value = ie->GetWhite(); break;
+            case HEADER_BLACK: value = ie->GetBlack(); break;
+            case HEADER_EVENT: value = ie->GetEvent(); break;
+            case HEADER_SITE: value = ie->GetSite(); break;
+            case HEADER_ROUND: value = ie->GetRound(); break;
+            case HEADER_DATE: value = ie->GetDate(); break;
+            case HEADER_RESULT: value = ie->GetResult(); break;
+            case HEADER_WHITE_ELO: value = ie->GetWhiteElo(); break;
+            case HEADER_BLACK_ELO: value = ie->GetBlackElo(); break;
+            case HEADER_FLAGS:
+                value = (ie->GetUserFlag() ? HEADER_FLAG_FAVORITE : 0)
+                    | (ie->GetDeleteFlag() ? HEADER_FLAG_DELETED : 0);
+                break;
+            default:
+                LOGE("getHeaders: bad column %d", columns[c]);
+                return false;
+            }
+            values[c * noRows + row] = value;
         }
-    }else{                      // if prefix is "", then return all names
-        matches.resize(numNames);
-        for(uint i = 0; i < numNames; ++i)
-            matches[i] = i;
     }
-    //LOGD("getNames: got %d", matches.size());
-
-    CaseCmp caseCmp = {nameType};
-    sort(matches.begin(), matches.end(), caseCmp);
+    for(jsize c = 0; c < noColumns; ++c){
+        jintArray column = jintArray(env->GetObjectArrayElement(jvalues, c));
+        if(not column or env->GetArrayLength(column) < noRows){
+            LOGE("getHeaders: values[%d] is too short", c);
+            return false;
+        }
+        env->SetIntArrayRegion(column, 0, noRows, &values[c * noRows]);
+        env->DeleteLocalRef(column);
+    }
+    return true;
+}
 
-    jintArray result = env->NewIntArray(matches.size());
-    env->SetIntArrayRegion(result, 0, matches.size(), &matches[0]);
+// Set the tags and PGN style of a game read from the database
+static void prepareGame(scidDatabaseT* db, Game* game, IndexEntry* ie){
+    game->LoadStandardTags(ie, &db->nameBase);
+    game->AddPgnStyle(PGN_STYLE_TAGS);
+    game->AddPgnStyle(PGN_STYLE_COMMENTS);
+    game->AddPgnStyle(PGN_STYLE_VARS);
+    game->SetPgnFormat(PGN_FORMAT_Plain);
+}
+static jbyteArray writePGN(JNIEnv* env, Game* game){
+    TextBuffer tbuf;
+    tbuf.SetBufferSize(TBUF_SIZE);
+    tbuf.Empty();
+    tbuf.SetWrapColumn(99999);
+    game->WriteToPGN(&tbuf);
+    int length = strlen(tbuf.GetBuffer()); // TODO: why strlen?
+    jbyteArray result = env->NewByteArray(length);
+    env->SetByteArrayRegion(result, 0, length,(const jbyte*) tbuf.GetBuffer());
     return result;
 }
-
+// Read the PGN of a game without touching the loaded game, so that
+// several threads can read games at the same time.
+JCM(jbyteArray, getGamePGN, jlong handle, jint gameId){
+    DATABASE_OPEN;
+    READ_LOCK;
+    if(gameId < 0 or gameId >= db->index.GetNumGames()){
+        LOGE("getGamePGN: %d is out of range", gameId);
+        return 0;
+    }
+    CHECK(loadIndex(db, 0, 0));
+    IndexEntry* ie = db->index.FetchEntry(gameId);
+    GameReader reader;
+    Game game;
+    CHECK(reader.ReadGame(db, ie));
+    CHECKL(game.Decode(&reader.bbuf, GAME_DECODE_ALL), "Unable to decode game.");
+    prepareGame(db, &game, ie);
+    return writePGN(env, &game);
+}
+
 /// Loading and operations with the loaded game
-JCM(jboolean, loadGame, jint gameId, jboolean onlyHeaders){
-    FILE_LOADED;
-    unloadGame();
-    if(gameId < 0 or gameId >= sourceIndex.GetNumGames()){
+JCM(jboolean, loadGame, jlong handle, jint gameId, jboolean onlyHeaders){
+    DATABASE_OPEN;
+    READ_LOCK;
+    GAME_LOCK;
+    unloadGame(db);
+    if(gameId < 0 or gameId >= db->index.GetNumGames()){
         LOGE("loadGame: %d is out of range", gameId);
         return false;
     }
-    ::gameId = gameId;
-    CHECK(sourceIndex.ReadEntries(&ie, gameId, 1));
-    bbuf.Empty();
-    CHECK(sourceGFile.ReadGame(&bbuf, ie.GetOffset(), ie.GetLength()));
+    CHECK(loadIndex(db, 0, 0));
+    db->gameId = gameId;
+    CHECK(db->index.ReadEntries(&db->ie, gameId, 1));
+    GameReader reader;
+    CHECK(reader.ReadGame(db, &db->ie));
     if(onlyHeaders){
-        game.SetNumHalfMoves(ie.GetNumHalfMoves());
+        db->game.SetNumHalfMoves(db->ie.GetNumHalfMoves());
     } else {
-        CHECKL(game.Decode(&bbuf, GAME_DECODE_ALL), "Unable to decode game.");
+        CHECKL(db->game.Decode(&reader.bbuf, GAME_DECODE_ALL), "Unable to decode game.");
     }
-    game.LoadStandardTags(&ie, &sourceNameBase);
-    game.AddPgnStyle(PGN_STYLE_TAGS);
-    game.AddPgnStyle(PGN_STYLE_COMMENTS);
-    game.AddPgnStyle(PGN_STYLE_VARS);
-    game.SetPgnFormat(PGN_FORMAT_Plain);
+    prepareGame(db, &db->game, &db->ie);
 
-    gameLoaded = true;
+    db->gameLoaded = true;
     return true;
 }
-JCM(jbyteArray, getPGN){
+JCM(jbyteArray, getPGN, jlong handle){
+    DATABASE_OPEN;
     GAME_LOADED;
-    TextBuffer tbuf;
-    tbuf.SetBufferSize(TBUF_SIZE);
-    tbuf.Empty();
-    tbuf.SetWrapColumn(99999);
-    game.WriteToPGN(&tbuf);
-    int length = strlen(tbuf.GetBuffer()); // TODO: why strlen?
-    jbyteArray result = env->NewByteArray(length);
-    env->SetByteArrayRegion(result, 0, length,(const jbyte*) tbuf.GetBuffer());
-    return result;
+    return writePGN(env, &db->game);
 }
-JCM(jstring, getMoves){
+JCM(jstring, getMoves, jlong handle){
+    DATABASE_OPEN;
     GAME_LOADED;
-    if(game.GetNumHalfMoves() == 0)
+    if(db->game.GetNumHalfMoves() == 0)
         return env->NewStringUTF("");
 
     TextBuffer tbuf;
@@ -302,7 +761,7 @@ JCM(jstring, getMoves){
     tbuf.Empty();
     tbuf.SetWrapColumn(99999);
 
-    game.MoveToPly(0);
+    db->game.MoveToPly(0);
     moveT m;
     m.prev = m.next = m.varParent = m.varChild = 0;
     m.numVariations = 0;
@@ -311,23 +770,25 @@ JCM(jstring, getMoves){
     m.nags[0] = 0;
     m.marker = NO_MARKER;
     m.san[0] = 0;
-    game.WriteMoveList(&tbuf, 0, &m, true, false);
-    tbuf.PrintWord(RESULT_LONGSTR[game.GetResult()]);
+    db->game.WriteMoveList(&tbuf, 0, &m, true, false);
+    tbuf.PrintWord(RESULT_LONGSTR[db->game.GetResult()]);
 
     return env->NewStringUTF(tbuf.GetBuffer());
 }
-JCM(jint, getResult){
+JCM(jint, getResult, jlong handle){
+    DATABASE_OPEN;
     GAME_LOADED;
-    return game.GetResult();
+    return db->game.GetResult();
 }
-#define _(funcionName, fieldAccessor)                                   \
-    JCM(jbyteArray, funcionName){                                       \
-        GAME_LOADED;                                                    \
-        int length = strlen(game.fieldAccessor());                      \
-        jbyteArray result = env->NewByteArray(length);                  \
-        env->SetByteArrayRegion(result, 0, length,                      \
-                                (const jbyte*) game.fieldAccessor());   \
-        return result;                                                  \
+#define _(funcionName, fieldAccessor)                                       \
+    JCM(jbyteArray, funcionName, jlong handle){                             \
+        DATABASE_OPEN;                                                      \
+        GAME_LOADED;                                                        \
+        int length = strlen(db->game.fieldAccessor());                      \
+        jbyteArray result = env->NewByteArray(length);                      \
+        env->SetByteArrayRegion(result, 0, length,                          \
+                                (const jbyte*) db->game.fieldAccessor());   \
+        return result;                                                      \
     }
 _(getWhite, GetWhiteStr)
 _(getBlack, GetBlackStr)
@@ -335,27 +796,32 @@ _(getEvent, GetEventStr)
 _(getSite, GetSiteStr)
 _(getRound, GetRoundStr)
 #undef _
-JCM(jstring, getDate){
+JCM(jstring, getDate, jlong handle){
+    DATABASE_OPEN;
     GAME_LOADED;
     char dateStr[20];
-    date_DecodeToString(game.GetDate(), dateStr);
+    date_DecodeToString(db->game.GetDate(), dateStr);
     return env->NewStringUTF(dateStr);
 }
-JCM(jint, getWhiteElo){
+JCM(jint, getWhiteElo, jlong handle){
+    DATABASE_OPEN;
     GAME_LOADED;
-    return game.GetWhiteElo();
+    return db->game.GetWhiteElo();
 }
-JCM(jint, getBlackElo){
+JCM(jint, getBlackElo, jlong handle){
+    DATABASE_OPEN;
     GAME_LOADED;
-    return game.GetBlackElo();
+    return db->game.GetBlackElo();
 }
-JCM(jboolean, isFavorite){
+JCM(jboolean, isFavorite, jlong handle){
+    DATABASE_OPEN;
     GAME_LOADED;
-    return ie.GetUserFlag();
+    return db->ie.GetUserFlag();
 }
-JCM(jboolean, isDeleted){
+JCM(jboolean, isDeleted, jlong handle){
+    DATABASE_OPEN;
     GAME_LOADED;
-    return ie.GetDeleteFlag();
+    return db->ie.GetDeleteFlag();
 }
 
 /// Create database (new or import)
@@ -390,8 +856,9 @@ JCM(jstring, create, jstring jtargetFileName){
     targetIndex.CloseIndexFile();
     _(targetGFile.Close(), "Error closing game file.");
 
-    // Remove any treefile for this database:
+    // Remove any treefile and position index for this database:
     removeFile(targetFileName, TREEFILE_SUFFIX);
+    removeFile(targetFileName, POSINDEX_SUFFIX);
 #undef _
     return env->NewStringUTF("");
 }
@@ -403,13 +870,16 @@ JCM(jstring, importPgn, jstring jpgnName, jobject progress){
 
     MFile pgnFile;
     _(pgnFile.Open(pgnName, FMODE_ReadOnly), "Could not open pgn file");
-    PgnParser pgnParser(&pgnFile);
+    PgnImporter * importer = 0;
+    pgnImportGameT * g;
+    uint errorCount;
+    vector<byte> pgnData;
     ByteBuffer bbuf;
     Index idx;
-    Game game;
     GFile gameFile;
     NameBase nb;
     IndexEntry ie;
+    PosIndexBuilder posIndexBuilder;
     uint t = 0;   // = time(0);
     int lastCallbackPercent = -1;
     uint pgnFileSize = fileSize(pgnName, "");
@@ -444,20 +914,37 @@ JCM(jstring, importPgn, jstring jpgnName, jobject progress){
     }
     idx.SetFileName(baseName);
     idx.CreateIndexFile(FMODE_WriteOnly);
+    if(posIndexBuilder.Start(baseName, POSINDEX_DEFAULT_MAX_PLY) != OK){
+        LOGW("importPgn: cannot build position index");
+    }
     gameNumberT gNumber;
 
-    bbuf.SetBufferSize(BBUF_SIZE); // 32768
-
-    pgnParser.SetErrorFile(logFile);
-    pgnParser.SetPreGameText(true);
-
-    // TODO: Add command line option for ignored tags, rather than
-    //       just hardcoding PlyCount as the only ignored tag.
-    pgnParser.AddIgnoredTag("PlyCount");
+    {
+        // The games are parsed and encoded by one worker per core, and
+        // added to the database in the order of the file by this thread.
+        // A file that cannot be mapped is read into memory:
+        const byte * data = pgnFile.GetMappedData();
+        uint dataSize = pgnFile.GetMappedSize();
+        if(not data){
+            dataSize = fileSize(pgnName, "");
+            pgnData.resize(dataSize);
+            if(dataSize > 0 and
+               pgnFile.ReadNBytes((char *) &pgnData[0], dataSize) != OK){
+                resultString.append("Could not read pgn file");
+                goto cleanup;
+            }
+            data = dataSize > 0 ? &pgnData[0] : 0;
+        }
+        long noThreads = sysconf(_SC_NPROCESSORS_ONLN);
+        noThreads = max(noThreads, 1L);
+        noThreads = min(noThreads, long(PGNIMPORT_MAX_THREADS));
+        importer = new PgnImporter(data, dataSize, pgnName, logFile,
+                                   POSINDEX_DEFAULT_MAX_PLY, noThreads);
+    }
 
     // Add each game found to the database:
-    while(pgnParser.ParseGame(&game) != ERROR_NotFound){
-        ie.Init();
+    while(importer->NextGame(&g) != ERROR_NotFound){
+        ie = g->ie;
 
         if(idx.AddGame(&gNumber, &ie) != OK){
             resultString.append("Too many games!");
@@ -467,51 +954,51 @@ JCM(jstring, importPgn, jstring jpgnName, jobject progress){
         // Add the names to the namebase:
         idNumberT id = 0;
 
-        if(nb.AddName(NAME_PLAYER, game.GetWhiteStr(), &id) != OK){
+        if(nb.AddName(NAME_PLAYER, g->names[PGNIMPORT_WHITE].c_str(), &id) != OK){
             resultString.append("Too many names: ");
-            resultString.append(game.GetWhiteStr());
+            resultString.append(g->names[PGNIMPORT_WHITE]);
             goto cleanup;
         }
         nb.IncFrequency(NAME_PLAYER, id, 1);
         ie.SetWhite(id);
 
-        if(nb.AddName(NAME_PLAYER, game.GetBlackStr(), &id) != OK){
+        if(nb.AddName(NAME_PLAYER, g->names[PGNIMPORT_BLACK].c_str(), &id) != OK){
             resultString.append("Too many names: ");
-            resultString.append(game.GetBlackStr());
+            resultString.append(g->names[PGNIMPORT_BLACK]);
             goto cleanup;
         }
         nb.IncFrequency(NAME_PLAYER, id, 1);
         ie.SetBlack(id);
 
-        if(nb.AddName(NAME_EVENT, game.GetEventStr(), &id) != OK){
+        if(nb.AddName(NAME_EVENT, g->names[PGNIMPORT_EVENT].c_str(), &id) != OK){
             resultString.append("Too many names: ");
-            resultString.append(game.GetEventStr());
+            resultString.append(g->names[PGNIMPORT_EVENT]);
             goto cleanup;
         }
         nb.IncFrequency(NAME_EVENT, id, 1);
         ie.SetEvent(id);
 
-        if(nb.AddName(NAME_SITE, game.GetSiteStr(), &id) != OK){
+        if(nb.AddName(NAME_SITE, g->names[PGNIMPORT_SITE].c_str(), &id) != OK){
             resultString.append("Too many names: ");
-            resultString.append(game.GetSiteStr());
+            resultString.append(g->names[PGNIMPORT_SITE]);
             goto cleanup;
         }
         nb.IncFrequency(NAME_SITE, id, 1);
         ie.SetSite(id);
 
-        if(nb.AddName(NAME_ROUND, game.GetRoundStr(), &id) != OK){
+        if(nb.AddName(NAME_ROUND, g->names[PGNIMPORT_ROUND].c_str(), &id) != OK){
             resultString.append("Too many names: ");
-            resultString.append(game.GetRoundStr());
+            resultString.append(g->names[PGNIMPORT_ROUND]);
             goto cleanup;
         }
         nb.IncFrequency(NAME_ROUND, id, 1);
         ie.SetRound(id);
 
-        bbuf.Empty();
-        if(game.Encode(&bbuf, &ie) != OK){
+        if(g->encodeError != OK){
             resultString.append("Fatal error encoding game!\n");
             goto cleanup;
         }
+        bbuf.ProvideExternal(g->data.empty() ? 0 : &g->data[0], g->data.size());
         uint offset = 0;
         if(gameFile.AddGame(&bbuf, &offset) != OK){
             resultString.append("Fatal error writing game file!\n");
@@ -520,10 +1007,14 @@ JCM(jstring, importPgn, jstring jpgnName, jobject progress){
         ie.SetOffset(offset);
         ie.SetLength(bbuf.GetByteCount());
         idx.WriteEntries(&ie, gNumber, 1);
+        posIndexBuilder.AddGame(gNumber, &g->positions);
 
-        int bytesSeen = pgnParser.BytesUsed();
-        DO_PROGRESS(bytesSeen, pgnFileSize);
+        DO_PROGRESS(g->end, pgnFileSize);
     }
+    // Stop the workers before reading the error file:
+    errorCount = importer->ErrorCount();
+    delete importer;
+    importer = 0;
 
     nb.SetTimeStamp(t);
     nb.SetFileName(baseName);
@@ -536,7 +1027,7 @@ JCM(jstring, importPgn, jstring jpgnName, jobject progress){
       baseName, idx.GetNumGames(), nb.GetNumNames(NAME_PLAYER),
       nb.GetNumNames(NAME_EVENT), nb.GetNumNames(NAME_SITE));*/
     fclose(logFile);
-    if(pgnParser.ErrorCount() > 0){
+    if(errorCount > 0){
         FILE * errFile = fopen(fname, "r");
         char line[100];
         while( fgets(line, sizeof(line), errFile) != 0 ){
@@ -545,6 +1036,9 @@ JCM(jstring, importPgn, jstring jpgnName, jobject progress){
         fclose(errFile);
     }
     removeFile(baseName, ".err");
+    if(posIndexBuilder.Finish(gameFile.GetFileSize()) != OK){
+        LOGW("importPgn: position index not written");
+    }
     gameFile.Close();
     idx.CloseIndexFile();
     idx.Clear();
@@ -554,88 +1048,137 @@ JCM(jstring, importPgn, jstring jpgnName, jobject progress){
     pgnFile.Close();
 #undef _
  cleanup:
+    delete importer;
     return env->NewStringUTF(resultString.c_str());
 }
 
 /// Filtering
-struct ProgressData{
-    JNIEnv* env;
-    jobject progress;
-    jmethodID midIsCanceled, midPublishProgress;
-};
-static errorT readEntireIndexCallback(void* data, uint progress, uint total){
-    ProgressData* pd = (ProgressData*) data;
-    pd->env->CallVoidMethod(pd->progress, pd->midPublishProgress,
-                            jint(double(progress)*100 / total));
-    if(pd->env->CallBooleanMethod(pd->progress, pd->midIsCanceled)){
-        LOGI("canceled");
-        return ERROR;
-    }else{
+// Open the position index of the database, building it first if it
+// is missing or out of date.
+static errorT openPosIndex(scidDatabaseT* db, JNIEnv* env, jobject progress){
+    AutoMutex autoMutex(&db->posIndexLock);
+    gameNumberT noGames = db->index.GetNumGames();
+    uint gfileSize = db->gfile.GetFileSize();
+    if(db->posIndex.IsOpen() or
+       db->posIndex.Open(db->index.GetFileName(), noGames, gfileSize) == OK)
         return OK;
-    }
-}
-JCM(jboolean, searchBoard,
-    jstring jfen, jint/*gameExactMatchT*/ searchType,
-    jint filterOperation, jshortArray/*in-out*/ jfilter, jobject progress){
-    FILE_LOADED;
 
-    AJS(fen);
-    if(not fen){
-        LOGE("searchBoard: fen is null");
-        return false;
+    LOGI("building position index");
+    PosIndexBuilder builder;
+    if(builder.Start(db->index.GetFileName(), POSINDEX_DEFAULT_MAX_PLY) != OK){
+        LOGW("openPosIndex: cannot create position index");
+        return ERROR_FileOpen;
     }
-    // setup FEN position
-    Position pos;
-    if(not ((pos.ReadFromFEN(fen) == OK or pos.ReadFromLongStr(fen) == OK)
-         and pos.IsLegal())){
-        LOGE("searchBoard: invalid FEN '%s'", fen.c_str());
-        return false;
+    PREPARE_PROGRESS(noGames);
+    SequentialScan scan(db);
+    GameReader reader;
+    Game g;
+    gameNumberT id;
+    for(id = 0; id < noGames; ++id){
+        DO_PROGRESS(id, noGames);
+        IndexEntry* ie = db->index.FetchEntry(id);
+        bool decoded = ie and ie->GetLength()
+            and reader.ReadGame(db, ie) == OK
+            and g.Decode(&reader.bbuf, GAME_DECODE_NONE) == OK;
+        if(builder.AddGame(id, decoded ? &g : 0) != OK){
+            LOGW("openPosIndex: cannot add game %d", id);
+            return ERROR_FileWrite;
+        }
     }
-    matSigT msig = matsig_Make(pos.GetMaterial());
+    if(id < noGames) // canceled
+        return ERROR;
+    errorT err = builder.Finish(gfileSize);
+    if(err == OK)
+        err = db->posIndex.Open(db->index.GetFileName(), noGames, gfileSize);
+    return err;
+}
+/// Board search in several threads
+// Number of games a search thread takes at once
+const gameNumberT SEARCH_RANGE_SIZE = 1024;
+const long MAX_SEARCH_THREADS = 8;
+
+// The state shared by the threads of a board search. The threads take
+// disjoint ranges of games, so each entry of filter is only written by
+// one thread.
+struct boardSearchT {
+    scidDatabaseT* db;
+    Position* pos;
+    matSigT msig;
     uint hpSig;
     bool useHpSigSpeedup;
-    switch(searchType){
-    case GAME_EXACT_MATCH_Exact:
-    case GAME_EXACT_MATCH_Pawns:
-        hpSig = pos.GetHPSig();
-        useHpSigSpeedup = true;
-        break;
-    case GAME_EXACT_MATCH_Fyles:
-    case GAME_EXACT_MATCH_Material:
-        useHpSigSpeedup = false;
-        break;
-    default:
-        LOGE("searchBoard: wrong searchType %d", searchType);
-        return false;
+    gameExactMatchT searchType;
+    jint filterOperation;
+    jshort* filter;
+    gameNumberT noGames;
+    vector<posIndexPostingT>* candidates; // 0 if the position index is not used
+
+    pthread_mutex_t mutex;      // guards the following
+    gameNumberT nextGame;       // first game of the next range
+    bool cancelled;
+    vector<char> rangeDone;     // for each range
+    gameNumberT searched;       // all games before it have been searched
+
+    boardSearchT() : nextGame(0), cancelled(false), searched(0) {
+        pthread_mutex_init(&mutex, 0);
     }
+    ~boardSearchT(){
+        pthread_mutex_destroy(&mutex);
+    }
+};
 
-    AJA(filter);
-    if(not filter){
-        LOGE("searchBoard: filter is null");
-        return false;
+struct postingBefore {
+    bool operator()(const posIndexPostingT& posting, gameNumberT id) const {
+        return posting.gameId < id;
     }
-    gameNumberT noGames = sourceIndex.GetNumGames();
-    if(noGames != env->GetArrayLength(jfilter)){
-        LOGE("searchBoard: filter has wrong length");
+};
+
+static bool nextSearchRange(boardSearchT* s, gameNumberT* first, gameNumberT* end){
+    AutoMutex autoLock(&s->mutex);
+    if(s->cancelled or s->nextGame >= s->noGames)
         return false;
-    }
+    *first = s->nextGame;
+    *end = *first + min(SEARCH_RANGE_SIZE, s->noGames - *first);
+    s->nextGame = *end;
+    return true;
+}
 
-    PREPARE_PROGRESS(noGames);
-    // read index with progress, instead of doing it silently in FetchEntry
-#define READ_INDEX_FILE                                                   \
-    ProgressData pd = {env, progress, midIsCanceled, midPublishProgress}; \
-    CHECK(sourceIndex.ReadEntireFile(progressDelta, readEntireIndexCallback, &pd))
-    // TODO: change progress title, so that progress does not go 0..100
-    // twice with the same title
-    READ_INDEX_FILE;
+// Mark the range starting at first as searched.
+static void finishSearchRange(boardSearchT* s, gameNumberT first){
+    AutoMutex autoLock(&s->mutex);
+    s->rangeDone[first / SEARCH_RANGE_SIZE] = true;
+    while(s->searched < s->noGames and s->rangeDone[s->searched / SEARCH_RANGE_SIZE])
+        s->searched = min(s->searched + SEARCH_RANGE_SIZE, s->noGames);
+}
 
-    /// the loop that goes thru each game
+// Return the number of games before which all games have been searched,
+// the filter entries of which are final.
+static gameNumberT searchedGames(boardSearchT* s){
+    AutoMutex autoLock(&s->mutex);
+    return s->searched;
+}
+
+static void cancelSearch(boardSearchT* s){
+    AutoMutex autoLock(&s->mutex);
+    s->cancelled = true;
+}
+
+static void searchBoardRange(boardSearchT* s, Position* pos, GameReader* reader, Game* g,
+                             posIndexFrontierCacheT* frontiers,
+                             gameNumberT first, gameNumberT end){
+    scidDatabaseT* db = s->db;
+    jint filterOperation = s->filterOperation;
+    jshort* filter = s->filter;
+    bool usePosIndex = s->candidates != 0;
+    vector<posIndexPostingT>::iterator nextCandidate;
+    if(usePosIndex)
+        nextCandidate = lower_bound(s->candidates->begin(), s->candidates->end(),
+                                    first, postingBefore());
+
+    /// the loop that goes thru each game of the range
     IndexEntry* ie;
-    Game g;
     uint ply;
-    for(gameNumberT id = 0; id < noGames; ++id){
-        DO_PROGRESS(id, noGames);
-#define APPLY_FILTER_OPERATION /* also used in searchHeader */          \
+    for(gameNumberT id = first; id < end; ++id){
+        #define APPLY_FILTER_OPERATION /* also used in searchHeader */          \
         if(((filterOperation == FILTEROP_AND or filterOperation == FILTEROP_SUBTRACT) \
             and not filter[id])                                         \
            or filterOperation == FILTEROP_OR and filter[id]){           \
@@ -645,7 +1188,7 @@ JCM(jboolean, searchBoard,
         APPLY_FILTER_OPERATION;
 
 #define FETCH_ENTRY                                                 \
-        ie = sourceIndex.FetchEntry(id);                            \
+        ie = db->index.FetchEntry(id);                            \
         if(not (ie and ie->GetLength())){                           \
             /* Skip games with no gamefile record */                \
             LOGW("search*: game %d has no gamefile record", id);    \
@@ -660,27 +1203,35 @@ JCM(jboolean, searchBoard,
         // TODO: allow user to search in variations
         // Apply speedups if we are not searching in variations
         if(not ie->GetStartFlag() /* if game does not have its own start position */
-           and useHpSigSpeedup and hpSig != 0xFFFF)
-            CI(hpSig_PossibleMatch(hpSig, ie->GetHomePawnData()));
+           and s->useHpSigSpeedup and s->hpSig != 0xFFFF)
+            CI(hpSig_PossibleMatch(s->hpSig, ie->GetHomePawnData()));
 
         // If this game has no promotions, check the material of its final
         // position, since the searched position might be unreachable
-        CI(matsig_isReachable(msig, ie->GetFinalMatSig(),
+        CI(matsig_isReachable(s->msig, ie->GetFinalMatSig(),
                               ie->GetPromotionsFlag(),
                               ie->GetUnderPromoFlag()));
 
+        if(usePosIndex){
+            while(nextCandidate != s->candidates->end()
+                  and nextCandidate->gameId < id)
+                ++nextCandidate;
+            if(not (nextCandidate != s->candidates->end()
+                    and nextCandidate->gameId == id))
+                CI(PosIndex::FrontierMayMatch(db->posIndex.GetFrontier(id, frontiers), pos));
+        }
+
         // At this point, the game needs to be loaded:
-        bbuf.Empty();
-        if(sourceGFile.ReadGame(&bbuf, ie->GetOffset(), ie->GetLength()) != OK){
+        if(reader->ReadGame(db, ie) != OK){
             LOGW("searchBoard: cannot read game %d", id);
             goto really_no_match;
         }
 
         // No searching in variations
-        CI(g.ExactMatch(&pos, &bbuf, 0, gameExactMatchT(searchType)));
+        CI(g->ExactMatch(pos, &reader->bbuf, 0, s->searchType));
 
         // Set its auto-load move number to the matching move:
-        ply = g.GetCurrentPly() + 1;
+        ply = g->GetCurrentPly() + 1;
         if(ply > MAX_JSHORT) ply = MAX_JSHORT;
 
     match:
@@ -697,11 +1248,154 @@ JCM(jboolean, searchBoard,
         filter[id] = 0;
         continue; // to next game
     } // for each game
+}
+
+// Search ranges until all games are searched or the search is cancelled.
+static void* searchBoardThread(void* arg){
+    boardSearchT* s = (boardSearchT*) arg;
+    Position pos;
+    pos.CopyFrom(s->pos);
+    GameReader reader;
+    Game g;
+    posIndexFrontierCacheT frontiers;
+    gameNumberT first, end;
+    while(nextSearchRange(s, &first, &end)){
+        searchBoardRange(s, &pos, &reader, &g, &frontiers, first, end);
+        finishSearchRange(s, first);
+    }
+    return 0;
+}
+
+JCM(jboolean, searchBoard, jlong handle,
+    jstring jfen, jint/*gameExactMatchT*/ searchType,
+    jint filterOperation, jshortArray/*in-out*/ jfilter, jobject progress){
+    DATABASE_OPEN;
+    READ_LOCK;
+
+    AJS(fen);
+    if(not fen){
+        LOGE("searchBoard: fen is null");
+        return false;
+    }
+    // setup FEN position
+    Position pos;
+    if(not ((pos.ReadFromFEN(fen) == OK or pos.ReadFromLongStr(fen) == OK)
+         and pos.IsLegal())){
+        LOGE("searchBoard: invalid FEN '%s'", fen.c_str());
+        return false;
+    }
+    matSigT msig = matsig_Make(pos.GetMaterial());
+    uint hpSig;
+    bool useHpSigSpeedup;
+    switch(searchType){
+    case GAME_EXACT_MATCH_Exact:
+    case GAME_EXACT_MATCH_Pawns:
+        hpSig = pos.GetHPSig();
+        useHpSigSpeedup = true;
+        break;
+    case GAME_EXACT_MATCH_Fyles:
+    case GAME_EXACT_MATCH_Material:
+        useHpSigSpeedup = false;
+        break;
+    default:
+        LOGE("searchBoard: wrong searchType %d", searchType);
+        return false;
+    }
+
+    SEARCH_FILTER("searchBoard");
+
+    PREPARE_PROGRESS(noGames);
+    PREPARE_SEARCH_PROGRESS;
+    // read index with progress, instead of doing it silently in FetchEntry
+#define READ_INDEX_FILE                                                   \
+    ProgressData pd = {env, progress, midIsCanceled, midPublishProgress}; \
+    CHECK(loadIndex(db, progressDelta, &pd))
+    // TODO: change progress title, so that progress does not go 0..100
+    // twice with the same title
+    READ_INDEX_FILE;
+
+    // Exact and pawn searches only need to decode the games that the
+    // position index lists, plus those that may reach the position
+    // after the indexed plies.
+    bool usePosIndex = useHpSigSpeedup and openPosIndex(db, env, progress) == OK;
+    vector<posIndexPostingT> candidates;
+    if(usePosIndex){
+        uint key = searchType == GAME_EXACT_MATCH_Exact
+            ? PosIndex::ExactKey(&pos) : PosIndex::PawnKey(&pos);
+        usePosIndex = db->posIndex.Lookup(key, &candidates) == OK;
+    }
+    boardSearchT search;
+    search.db = db;
+    search.pos = &pos;
+    search.msig = msig;
+    search.hpSig = hpSig;
+    search.useHpSigSpeedup = useHpSigSpeedup;
+    search.searchType = gameExactMatchT(searchType);
+    search.filterOperation = filterOperation;
+    search.filter = filter;
+    search.noGames = noGames;
+    search.candidates = usePosIndex ? &candidates : 0;
+    search.rangeDone.resize((noGames + SEARCH_RANGE_SIZE - 1) / SEARCH_RANGE_SIZE);
+
+    // Without the position index, most games are read:
+    SequentialScan scan(db, not usePosIndex);
+
+    // Every core searches ranges of games. Only this thread may call
+    // Java, so it reports the progress and the games found, and checks
+    // for cancellation before each of its ranges.
+    long noThreads = sysconf(_SC_NPROCESSORS_ONLN);
+    noThreads = min(noThreads, MAX_SEARCH_THREADS);
+    noThreads = min(noThreads, long((noGames + SEARCH_RANGE_SIZE - 1) / SEARCH_RANGE_SIZE));
+    vector<pthread_t> threads;
+    for(long i = 1; i < noThreads; ++i){
+        pthread_t thread;
+        if(pthread_create(&thread, 0, searchBoardThread, &search) != 0){
+            LOGW("searchBoard: cannot create search thread");
+            break;
+        }
+        threads.push_back(thread);
+    }
+
+    GameReader reader;
+    Game g;
+    posIndexFrontierCacheT frontiers;
+    gameNumberT first, end;
+    while(nextSearchRange(&search, &first, &end)){
+        DO_SEARCH_PROGRESS(first, searchedGames(&search), noGames);
+        searchBoardRange(&search, &pos, &reader, &g, &frontiers, first, end);
+        finishSearchRange(&search, first);
+    }
+    cancelSearch(&search); // also if DO_PROGRESS stopped the loop
+    for(size_t i = 0; i < threads.size(); ++i)
+        pthread_join(threads[i], 0);
+    if(search.searched == noGames) // not cancelled
+        PUBLISH_RESULTS(noGames);
     return true;
 }
-JCM(jboolean, searchHeader,
+// Returns the trigram index of the name type, built on first use. The
+// caller holds the read lock, so it is not cleared while in use.
+static TrigramIndex* getTrigramIndex(scidDatabaseT* db, nameT nameType){
+    AutoMutex autoMutex(&db->trigramIndexLock);
+    TrigramIndex* trigramIndex = &db->trigramIndex[nameType];
+    if(not trigramIndex->IsBuilt())
+        trigramIndex->Build(&db->nameBase, nameType);
+    return trigramIndex;
+}
+
+// Returns the header columns, built on first use from the loaded index.
+static HeaderColumns* getHeaderColumns(scidDatabaseT* db){
+    AutoMutex autoMutex(&db->columnsLock);
+    if(not db->columns.IsBuilt())
+        db->columns.Build(&db->index, &db->nameBase);
+    return &db->columns;
+}
+
+const gameNumberT HEADER_SEARCH_RANGE_SIZE = 1 << 16;
+
+JCM(jboolean, searchHeader, jlong handle,
     jobject request, jint filterOperation, jshortArray/*in-out*/ jfilter, jobject progress){
-    FILE_LOADED;
+    DATABASE_OPEN;
+    READ_LOCK;
 
     /// unpack request data
     jclass requestClass = env->GetObjectClass(request);
@@ -754,16 +1448,7 @@ JCM(jboolean, searchHeader,
 #undef BF
 
     /// prepare to the loop
-    AJA(filter);
-    if(not filter){
-        LOGE("searchHeader: filter is null");
-        return false;
-    }
-    gameNumberT noGames = sourceIndex.GetNumGames();
-    if(noGames != env->GetArrayLength(jfilter)){
-        LOGE("searchHeader: filter has wrong length");
-        return false;
-    }
+    SEARCH_FILTER("searchHeader");
 
     bool results[NUM_RESULT_TYPES] = // order from RESULT_None, ...
         {resultNone, resultWhiteWins, resultBlackWins, resultDraw};
@@ -794,24 +1479,29 @@ JCM(jboolean, searchHeader,
     */
 
     bool namesActive = false;
+    vector<idNumberT> matches;
 #define _(name, Name, TYPE)                                             \
-    bit_vector m##Name;                                                 \
+    vector<byte> m##Name;                                               \
     if(name[0]){                                                        \
         namesActive = true;                                             \
-        idNumberT numNames = sourceNameBase.GetNumNames(NAME_##TYPE);   \
+        idNumberT numNames = db->nameBase.GetNumNames(NAME_##TYPE);   \
         m##Name.resize(numNames);                                       \
         if(name##Exact){                                                \
             idNumberT id;                                               \
-            if(sourceNameBase.FindExactName(NAME_##TYPE, name, &id) == OK) \
+            if(db->nameBase.FindExactName(NAME_##TYPE, name, &id) == OK) \
                 m##Name[id] = true;                                     \
             else{                                                       \
                 LOGW("searchHeader: " #name " does not match exactly"); \
                 return false;                                           \
             }                                                           \
+        }else if(getTrigramIndex(db, NAME_##TYPE)->Search              \
+                 (&db->nameBase, NAME_##TYPE, name, &matches)){         \
+            for(size_t i = 0; i < matches.size(); ++i)                  \
+                m##Name[matches[i]] = true;                             \
         }else{                                                          \
             for(idNumberT i = 0; i < numNames; ++i)                     \
                 m##Name[i] = strAlphaContains                           \
-                    (sourceNameBase.GetName(NAME_##TYPE, i), name);     \
+                    (db->nameBase.GetName(NAME_##TYPE, i), name);     \
         }                                                               \
     }
     _(white, White, PLAYER);
@@ -822,129 +1512,116 @@ JCM(jboolean, searchHeader,
 #undef _
 
     PREPARE_PROGRESS(noGames);
+    PREPARE_SEARCH_PROGRESS;
     READ_INDEX_FILE;
+    HeaderColumns* columns = getHeaderColumns(db);
 
-    /// the loop that goes thru each game
-    IndexEntry* ie;
-    for(uint id = 0; id < noGames; ++id){
-        DO_PROGRESS(id, noGames);
-        APPLY_FILTER_OPERATION; // the macros defined in searchBoard above
-        CIIR(id);
-        FETCH_ENTRY;
-
-        /* TODO
-        bool flag;
+    /* TODO
+    bool flag;
 #define _(flagName)                                     \
-        flag = ie->Get##flagName##Flag();               \
-        CI(flag and flag_Yes(f##flagName) or            \
-           not flag and flag_No(f##flagName))
-
-        _(Start); _(Promotions); _(Comments); _(Variations); _(Nags);
-        _(Delete); _(WhiteOp); _(BlackOp); _(Middlegame); _(Endgame);
-        _(Novelty); _(PawnStruct); _(Tactics); _(Kingside); _(Queenside);
-        _(Brilliancy); _(Blunder); _(User);
+    flag = ie->Get##flagName##Flag();                   \
+    CI(flag and flag_Yes(f##flagName) or                \
+       not flag and flag_No(f##flagName))
+
+    _(Start); _(Promotions); _(Comments); _(Variations); _(Nags);
+    _(Delete); _(WhiteOp); _(BlackOp); _(Middlegame); _(Endgame);
+    _(Novelty); _(PawnStruct); _(Tactics); _(Kingside); _(Queenside);
+    _(Brilliancy); _(Blunder); _(User);
 #undef _
 #define _(n)                                    \
-        flag = ie->GetCustomFlag(n);            \
-        CI(flag and flag_Yes(fCustom##n) or     \
-           not flag and flag_No(fCustom##n))
-        _(1); _(2); _(3); _(4); _(5); _(6);
+    flag = ie->GetCustomFlag(n);                \
+    CI(flag and flag_Yes(fCustom##n) or         \
+       not flag and flag_No(fCustom##n))
+    _(1); _(2); _(3); _(4); _(5); _(6);
 #undef _
-        */
+    */
+
+    /// the loop that goes thru the games, a range at a time: each
+    /// criterion clears the games of the range not matching it in mask
+    vector<byte> mask(min(noGames, HEADER_SEARCH_RANGE_SIZE));
+    gameNumberT first, end;
+    for(first = 0; first < noGames; first = end){
+        DO_SEARCH_PROGRESS(first, first, noGames);
+        end = min(noGames, first + HEADER_SEARCH_RANGE_SIZE);
+        fill(mask.begin(), mask.end(), 1);
+        byte* m = &mask[0];
 
         if(namesActive){
-#define _(Name) CI(m##Name.empty() or m##Name[ie->Get##Name()])
+#define _(Name, NAME)                                                   \
+            if(not m##Name.empty())                                     \
+                columns->MatchName(HEADERCOLUMNS_##NAME, &m##Name[0], m, first, end)
             if(ignoreColors){
-                CI(mWhite.empty() or (mWhite[ie->GetWhite()] or mWhite[ie->GetBlack()]));
-                CI(mBlack.empty() or (mBlack[ie->GetWhite()] or mBlack[ie->GetBlack()]));
+                if(not mWhite.empty())
+                    columns->MatchEitherPlayer(&mWhite[0], m, first, end);
+                if(not mBlack.empty())
+                    columns->MatchEitherPlayer(&mBlack[0], m, first, end);
             }else{
-                _(White); _(Black);
+                _(White, WHITE); _(Black, BLACK);
             }
-            _(Event); _(Site); _(Round);
+            _(Event, EVENT); _(Site, SITE); _(Round, ROUND);
 #undef _
         }
 
-        CI(results[ie->GetResult()]);
+        columns->MatchResult(results, m, first, end);
 
-        if(halfMovesActive){
-            uint halfMoves = ie->GetNumHalfMoves(); CIIR(halfMoves);
-            if((halfMoves % 2) == 0){
-                // This game ends with White to move *if* White moves first
-                CI(halfMovesEven);
-            } else {
-                CI(halfMovesOdd);
-            }
-        }
+        if(halfMovesActive)
+            columns->MatchHalfMoves(halfMovesMin, halfMovesMax,
+                                    halfMovesEven, halfMovesOdd, m, first, end);
 
-        {
-            dateT date = ie->GetDate(); CIIR(date);
-        }
+        columns->MatchDate(dateMin, dateMax, m, first, end);
 
         if(eloActive){
-            int whiteElo = ie->GetWhiteElo();
-            int blackElo = ie->GetBlackElo();
-            if(whiteElo == 0){ whiteElo = sourceNameBase.GetElo(ie->GetWhite()); }
-            if(blackElo == 0){ blackElo = sourceNameBase.GetElo(ie->GetBlack()); }
-#define _(a)                                    \
-            if(a##EloActive){                   \
-                if(a##Elo)                      \
-                    CIIR(a##Elo);               \
-                else                            \
-                    CI(allowUnknownElo);        \
-            }
-            _(white); _(black);
-#undef _
-            if(bothEloActive){
-                if(whiteElo and blackElo){
-                    int minElo = min(whiteElo, blackElo); CIIR(minElo);
-                    int maxElo = max(whiteElo, blackElo); CIIR(maxElo);
-                    int diffElo = maxElo - minElo; CIIR(diffElo);
-                }else{ // there are unknown ELOs
-                    CI(allowUnknownElo);
-                }
-            }
+            if(whiteEloActive)
+                columns->MatchElo(true, whiteEloMin, whiteEloMax,
+                                  allowUnknownElo, m, first, end);
+            if(blackEloActive)
+                columns->MatchElo(false, blackEloMin, blackEloMax,
+                                  allowUnknownElo, m, first, end);
+            if(bothEloActive)
+                columns->MatchBothElo(minEloMin, minEloMax, maxEloMin, maxEloMax,
+                                      diffEloMin, diffEloMax, allowUnknownElo,
+                                      m, first, end);
         }
 
-        if(ecoActive){
-            if (ie->GetStartFlag()){
-                goto no_match;
-            }
-            ecoT eco = ie->GetEcoCode();
-            if(eco == ECO_None){
-                CI(allowEcoNone);
-            } else {
-                CIIR(eco);
-            }
-        }
+        if(ecoActive)
+            columns->MatchEco(ecoMin, ecoMax, allowEcoNone, m, first, end);
 
         if(annotatedOnly)
-            CI(ie->GetCommentsFlag() or ie->GetVariationsFlag() or ie->GetNagsFlag());
-
-    match:
-        // If we reach here, this game matches all criteria, but we
-        // also need to support subtraction that inverts the meaning
-        // of the result. In addition to what we do in searchBoard
-        // above, we need to preserve filter[id] value if we want it
-        // to be non-zero and it is already non-zero.
-        if(filterOperation == FILTEROP_SUBTRACT) goto really_no_match;
-    really_match:
-        if(filter[id] == 0)
-            filter[id] = 1;
-        continue; // to next game
-    no_match: // Get here if one of CI, CIIR fails
-        if(filterOperation == FILTEROP_SUBTRACT) goto really_match;
-    really_no_match:
-        filter[id] = 0;
-        continue; // to next game
-    } // for each game
+            columns->MatchAnnotated(m, first, end);
+
+        for(gameNumberT id = first; id < end; ++id){
+            APPLY_FILTER_OPERATION; // the macro defined in searchBoard above
+            bool match = false;
+            if(id >= idMin and id <= idMax){
+                if(not columns->HasRecord(id)){
+                    // Skip games with no gamefile record
+                    filter[id] = 0;
+                    continue;
+                }
+                match = mask[id - first];
+            }
+            // In addition to what we do in searchBoard above, we need
+            // to preserve filter[id] value if we want it to be non-zero
+            // and it is already non-zero.
+            if(filterOperation == FILTEROP_SUBTRACT)
+                match = not match;
+            if(not match)
+                filter[id] = 0;
+            else if(filter[id] == 0)
+                filter[id] = 1;
+        }
+    }
+    if(first == noGames) // not cancelled
+        PUBLISH_RESULTS(noGames);
     return true;
 }
-JCM(jintArray, getFavorites, jobject progress){
-    FILE_LOADED;
+JCM(jintArray, getFavorites, jlong handle, jobject progress){
+    DATABASE_OPEN;
+    READ_LOCK;
     vector<int> result;
-    int noGames = sourceIndex.GetNumGames();
+    int noGames = db->index.GetNumGames();
     if(noGames <= 0){
-        LOGI("getFavorites: no games in sourceIndex");
+        LOGI("getFavorites: no games in db->index");
         return env->NewIntArray(0);
     }
 
@@ -954,7 +1631,7 @@ JCM(jintArray, getFavorites, jobject progress){
     /// the loop that goes thru each game
     for(uint id = 0; id < noGames; ++id){
         DO_PROGRESS(id, noGames);
-        IndexEntry * ie = sourceIndex.FetchEntry(id);
+        IndexEntry * ie = db->index.FetchEntry(id);
         if(ie->GetLength() != 0 and ie->GetUserFlag()){
             // game has record and the user flag is set
             result.push_back(id);
@@ -966,27 +1643,20 @@ JCM(jintArray, getFavorites, jobject progress){
         env->SetIntArrayRegion(jresult, 0, result.size(), &result[0]);
     return jresult;
 }
-JCM(jboolean, exportFilter, jstring jpgnName, jshortArray jfilter, jobject progress){
-    FILE_LOADED;
+// Write the games of the filter as PGN to the file. Stops at the first
+// write error, e.g. when the reader of a pipe has closed it, which fails
+// with EPIPE as the runtime ignores SIGPIPE.
+static jboolean exportGames(JNIEnv* env, scidDatabaseT* db, jshortArray jfilter,
+                            FILE* exportFile, jobject progress){
+    READ_LOCK;
 
-    AJS(pgnName);
-    if(not pgnName){
-        LOGE("exportFilter: pgnName is null");
-        return false;
-    }
     AJA(filter);
     if(not filter){
         LOGE("exportFilter: filter is null");
         return false;
     }
 
-    FILE * exportFile = fopen(pgnName, "w");
-    if (exportFile == NULL) {
-        LOGE("exportFilter: error opening file for exporting games");
-        return false;
-    }
-
-    gameNumberT noGames = sourceIndex.GetNumGames();
+    gameNumberT noGames = db->index.GetNumGames();
     if(noGames != env->GetArrayLength(jfilter)){
         LOGE("exportFilter: filter has wrong length");
         return false;
@@ -999,65 +1669,333 @@ JCM(jboolean, exportFilter, jstring jpgnName, jshortArray jfilter, jobject progr
     tbuf.SetBufferSize(TBUF_SIZE);
     /// the loop that goes thru each game
     IndexEntry* ie;
+    SequentialScan scan(db);
+    GameReader reader;
+    Game game;
 
     for(gameNumberT id = 0; id < noGames; ++id){
         DO_PROGRESS(id, noGames);
         if(filter[id]) {
             FETCH_ENTRY;
             // load the game
-            bbuf.Empty();
-            if(sourceGFile.ReadGame(&bbuf, ie->GetOffset(), ie->GetLength()) != OK){
+            if(reader.ReadGame(db, ie) != OK){
                 LOGW("exportFilter: cannot read game %d", id);
                 continue; // to next game
             }
             // export to PGN
-            if(game.Decode(&bbuf, GAME_DECODE_ALL) != OK) {
+            if(game.Decode(&reader.bbuf, GAME_DECODE_ALL) != OK) {
                 LOGE("exportFilter: unable to decode game %d", id);
                 continue; // to next game
             }
-            game.LoadStandardTags(ie, &sourceNameBase);
-            game.AddPgnStyle(PGN_STYLE_TAGS);
-            game.AddPgnStyle(PGN_STYLE_COMMENTS);
-            game.AddPgnStyle(PGN_STYLE_VARS);
-            game.SetPgnFormat(PGN_FORMAT_Plain);
+            prepareGame(db, &game, ie);
             tbuf.Empty();
             tbuf.SetWrapColumn(99999);
             game.WriteToPGN(&tbuf);
             tbuf.NewLine();
-            tbuf.DumpToFile(exportFile);
+            if(fwrite(tbuf.GetBuffer(), 1, tbuf.GetByteCount(), exportFile)
+               != tbuf.GetByteCount()){
+                LOGW("exportFilter: cannot write game %d: %s", id, strerror(errno));
+                return false;
+            }
         }
     really_no_match:
         continue; // to next game
     } // for each game
-    fclose(exportFile);
     return true;
 }
+JCM(jboolean, exportFilter, jlong handle, jstring jpgnName, jshortArray jfilter, jobject progress){
+    DATABASE_OPEN;
+
+    AJS(pgnName);
+    if(not pgnName){
+        LOGE("exportFilter: pgnName is null");
+        return false;
+    }
+
+    FILE * exportFile = fopen(pgnName, "w");
+    if (exportFile == NULL) {
+        LOGE("exportFilter: error opening file for exporting games");
+        return false;
+    }
+    jboolean result = exportGames(env, db, jfilter, exportFile, progress);
+    if(fclose(exportFile) != 0) result = false;
+    return result;
+}
+// Stream the games of the filter as PGN to the file descriptor, e.g. the
+// write end of a pipe, blocking while the reader is behind. The caller
+// keeps the descriptor and closes it.
+JCM(jboolean, exportFilterToFd, jlong handle, jint fd, jshortArray jfilter, jobject progress){
+    DATABASE_OPEN;
+
+    int exportFd = dup(fd);
+    FILE * exportFile = exportFd >= 0 ? fdopen(exportFd, "w") : NULL;
+    if(not exportFile){
+        LOGE("exportFilterToFd: cannot open descriptor %d: %s", fd, strerror(errno));
+        if(exportFd >= 0) close(exportFd);
+        return false;
+    }
+    jboolean result = exportGames(env, db, jfilter, exportFile, progress);
+    if(fclose(exportFile) != 0) result = false;
+    return result;
+}
 
+/// Sorting
+// Read the sort order of the key from its file, building and writing it
+// first if it is missing or out of date.
+JCM(jintArray, getSortOrder, jlong handle, jint sortKey){
+    DATABASE_OPEN;
+    READ_LOCK;
+    if(sortKey < 0 or uint(sortKey) >= SORTINDEX_NUM_KEYS){
+        LOGE("getSortOrder: bad sortKey %d", sortKey);
+        return 0;
+    }
+    CHECK(loadIndex(db, 0, 0));
+    AutoMutex autoMutex(&db->sortIndexLock);
+    gameNumberT noGames = db->index.GetNumGames();
+    uint gfileSize = db->gfile.GetFileSize();
+    vector<uint> order;
+    if(SortIndex::Read(db->index.GetFileName(), sortKey, noGames, gfileSize, &order) != OK){
+        LOGI("building sort order %d", sortKey);
+        CHECKL(SortIndex::Build(&db->index, &db->nameBase, sortKey, &order),
+               "getSortOrder: cannot build sort order %d", sortKey);
+        if(SortIndex::Write(db->index.GetFileName(), sortKey, gfileSize, order) != OK)
+            LOGW("getSortOrder: cannot write sort order %d", sortKey);
+    }
+    jintArray result = env->NewIntArray(order.size());
+    if(order.size() and result)
+        env->SetIntArrayRegion(result, 0, order.size(), (const jint*) &order[0]);
+    return result;
+}
+
+/// Opening tree
+// Opens an opening tree of at least the given depth, building it if it
+// is missing, out of date or not as deep. The open tree is kept until a
+// deeper one is needed or the generation of the database changes.
+static errorT openOpeningTree(scidDatabaseT* db, uint maxPly, JNIEnv* env, jobject progress){
+    if(db->openingTree.IsOpen() and db->openingTree.GetMaxPly() >= maxPly
+       and db->openingTreeGeneration == db->generation)
+        return OK;
+    db->openingTreeGeneration = db->generation;
+    gameNumberT noGames = db->index.GetNumGames();
+    uint gfileSize = db->gfile.GetFileSize();
+    if(db->openingTree.Open(db->index.GetFileName(), noGames, gfileSize, maxPly) == OK)
+        return OK;
+
+    LOGI("building opening tree");
+    OpeningTreeBuilder builder;
+    if(builder.Start(db->index.GetFileName(), maxPly) != OK){
+        LOGW("openOpeningTree: cannot create opening tree");
+        return ERROR_FileOpen;
+    }
+    PREPARE_PROGRESS(noGames);
+    SequentialScan scan(db);
+    GameReader reader;
+    Game g;
+    gameNumberT id;
+    for(id = 0; id < noGames; ++id){
+        DO_PROGRESS(id, noGames);
+        IndexEntry* ie = db->index.FetchEntry(id);
+        if(not (ie and ie->GetLength()
+                and reader.ReadGame(db, ie) == OK
+                and g.Decode(&reader.bbuf, GAME_DECODE_NONE) == OK))
+            continue;
+        eloT whiteElo = ie->GetWhiteElo(), blackElo = ie->GetBlackElo();
+        if(whiteElo == 0){ whiteElo = db->nameBase.GetElo(ie->GetWhite()); }
+        if(blackElo == 0){ blackElo = db->nameBase.GetElo(ie->GetBlack()); }
+        if(builder.AddGame(&g, ie->GetResult(), whiteElo, blackElo) != OK){
+            LOGW("openOpeningTree: cannot add game %d", id);
+            return ERROR_FileWrite;
+        }
+    }
+    if(id < noGames) // canceled
+        return ERROR;
+    errorT err = builder.Finish(noGames, gfileSize);
+    if(err == OK)
+        err = db->openingTree.Open(db->index.GetFileName(), noGames, gfileSize, maxPly);
+    return err;
+}
+
+// Orders moves by descending number of games:
+static bool moreGames(const openingTreeEntryT& a, const openingTreeEntryT& b){
+    return a.games > b.games or (a.games == b.games and a.move < b.move);
+}
+
+// Returns the moves as a MoveStatistics[] in descending order of the
+// number of games, without moves that are not legal in the position.
+static jobjectArray newMoveStatistics(JNIEnv* env, Position* pos,
+                                      vector<openingTreeEntryT>* entries){
+    jclass cls = env->FindClass("com/kalab/database/MoveStatistics");
+    if(not cls)
+        return 0;
+    jmethodID init = env->GetMethodID(cls, "<init>", "(Ljava/lang/String;IIIII)V");
+    sort(entries->begin(), entries->end(), moreGames);
+    MoveList moves;
+    pos->GenerateMoves(&moves);
+    vector<jobject> objects;
+    for(size_t i = 0; i < entries->size(); ++i){
+        openingTreeEntryT* e = &(*entries)[i];
+        for(uint m = 0; m < moves.Size(); ++m){
+            simpleMoveT* sm = moves.Get(m);
+            if(not OpeningTree::MatchesMove(e->move, sm))
+                continue;
+            char san[16];
+            pos->MakeSANString(sm, san, SAN_MATETEST);
+            jstring jsan = env->NewStringUTF(san);
+            objects.push_back(env->NewObject(cls, init, jsan, jint(e->games),
+                                             jint(e->whiteWins), jint(e->draws),
+                                             jint(e->blackWins), jint(e->averageElo)));
+            env->DeleteLocalRef(jsan);
+            break;
+        }
+    }
+    jobjectArray result = env->NewObjectArray(objects.size(), cls, 0);
+    for(size_t i = 0; result and i < objects.size(); ++i){
+        env->SetObjectArrayElement(result, i, objects[i]);
+        env->DeleteLocalRef(objects[i]);
+    }
+    env->DeleteLocalRef(cls);
+    return result;
+}
+
+#define READ_FEN(function)                                              \
+    AJS(fen);                                                           \
+    if(not fen){                                                        \
+        LOGE(function ": fen is null");                                 \
+        return 0;                                                       \
+    }                                                                   \
+    Position pos;                                                       \
+    if(not ((pos.ReadFromFEN(fen) == OK or pos.ReadFromLongStr(fen) == OK) \
+            and pos.IsLegal())){                                        \
+        LOGE(function ": invalid FEN '%s'", fen.c_str());               \
+        return 0;                                                       \
+    }
+
+JCM(jobjectArray, getOpeningTree, jlong handle, jstring jfen, jint maxPly, jobject progress){
+    DATABASE_OPEN;
+    READ_LOCK;
+    READ_FEN("getOpeningTree");
+    if(maxPly <= 0){
+        LOGE("getOpeningTree: bad maxPly %d", maxPly);
+        return 0;
+    }
+    if(maxPly > jint(OPENINGTREE_MAX_PLY))
+        maxPly = OPENINGTREE_MAX_PLY;
+    PREPARE_PROGRESS(db->index.GetNumGames());
+    READ_INDEX_FILE;
+    AutoMutex autoMutex(&db->openingTreeLock);
+    vector<openingTreeEntryT> entries;
+    if(openOpeningTree(db, maxPly, env, progress) != OK
+       or db->openingTree.Lookup(&pos, &entries) != OK
+       or entries.empty())
+        return 0;
+    return newMoveStatistics(env, &pos, &entries);
+}
+JCM(jobjectArray, getMoveStatistics, jlong handle, jstring jfen, jshortArray jfilter, jobject progress){
+    DATABASE_OPEN;
+    READ_LOCK;
+    READ_FEN("getMoveStatistics");
+    AJA(filter);
+    if(not filter){
+        LOGE("getMoveStatistics: filter is null");
+        return 0;
+    }
+    gameNumberT noGames = db->index.GetNumGames();
+    if(noGames != env->GetArrayLength(jfilter)){
+        LOGE("getMoveStatistics: filter has wrong length");
+        return 0;
+    }
+    PREPARE_PROGRESS(noGames);
+    READ_INDEX_FILE;
+
+    // the moves found so far, with the sum of the known Elos
+    vector<openingTreeEntryT> entries;
+    vector<unsigned long long> eloSums;
+    vector<uint> eloGames;
+    GameReader reader;
+    Game g;
+    gameNumberT id;
+    for(id = 0; id < noGames; ++id){
+        DO_PROGRESS(id, noGames);
+        if(filter[id] <= 0)
+            continue;
+        IndexEntry* ie = db->index.FetchEntry(id);
+        if(not (ie and ie->GetLength()
+                and reader.ReadGame(db, ie) == OK
+                and g.Decode(&reader.bbuf, GAME_DECODE_NONE) == OK))
+            continue;
+        g.MoveToPly(filter[id] - 1);
+        simpleMoveT* sm = g.GetCurrentMove();
+        if(not sm)
+            continue;
+        ushort move = OpeningTree::EncodeMove(sm);
+        size_t i = 0;
+        while(i < entries.size() and entries[i].move != move)
+            ++i;
+        if(i == entries.size()){
+            openingTreeEntryT entry;
+            memset(&entry, 0, sizeof(entry));
+            entry.move = move;
+            entries.push_back(entry);
+            eloSums.push_back(0);
+            eloGames.push_back(0);
+        }
+        openingTreeEntryT* e = &entries[i];
+        e->games++;
+        switch(ie->GetResult()){
+        case RESULT_White: e->whiteWins++; break;
+        case RESULT_Black: e->blackWins++; break;
+        case RESULT_Draw: e->draws++; break;
+        }
+        eloT elo = g.GetCurrentPos()->GetToMove() == WHITE
+            ? ie->GetWhiteElo() : ie->GetBlackElo();
+        if(elo == 0)
+            elo = db->nameBase.GetElo(g.GetCurrentPos()->GetToMove() == WHITE
+                                      ? ie->GetWhite() : ie->GetBlack());
+        if(elo != 0){
+            eloSums[i] += elo;
+            eloGames[i]++;
+        }
+    }
+    if(id < noGames) // canceled
+        return 0;
+    for(size_t i = 0; i < entries.size(); ++i)
+        if(eloGames[i] > 0)
+            entries[i].averageElo = eloSums[i] / eloGames[i];
+    return newMoveStatistics(env, &pos, &entries);
+}
+
 /// Modifications
-JCM(jboolean, setFavorite, jboolean isFavorite){
-    FILE_LOADED;
+JCM(jboolean, setFavorite, jlong handle, jboolean isFavorite){
+    DATABASE_OPEN;
+    WRITE_LOCK;
     GAME_LOADED;
-    if(isFavorite != ie.GetUserFlag()){
-        CHECK(reopenIndexForWriting());
-        ie.SetUserFlag(isFavorite);
-        sourceIndex.WriteEntries(&ie, gameId, 1);
+    if(isFavorite != db->ie.GetUserFlag()){
+        db->generation = newGeneration();
+        CHECK(reopenIndexForWriting(db));
+        db->ie.SetUserFlag(isFavorite);
+        db->index.WriteEntries(&db->ie, db->gameId, 1);
     }
     return true;
 }
-JCM(jboolean, setDeleted, jboolean isDeleted){
-    FILE_LOADED;
+JCM(jboolean, setDeleted, jlong handle, jboolean isDeleted){
+    DATABASE_OPEN;
+    WRITE_LOCK;
     GAME_LOADED;
-    if(isDeleted != ie.GetDeleteFlag()){
-        CHECK(reopenIndexForWriting());
-        ie.SetDeleteFlag(isDeleted);
-        game.SetAltered(isDeleted);
-        sourceIndex.WriteEntries(&ie, gameId, 1);
+    if(isDeleted != db->ie.GetDeleteFlag()){
+        db->generation = newGeneration();
+        CHECK(reopenIndexForWriting(db));
+        db->ie.SetDeleteFlag(isDeleted);
+        db->game.SetAltered(isDeleted);
+        db->index.WriteEntries(&db->ie, db->gameId, 1);
     }
     return true;
 }
-JCM(jstring, saveGame, jint gameId, jstring jpgn){
-    FILE_LOADED;
-    unloadGame();
+JCM(jstring, saveGame, jlong handle, jint gameId, jstring jpgn){
+    DATABASE_OPEN;
+    WRITE_LOCK;
+    GAME_LOCK;
+    db->generation = newGeneration();
+    unloadGame(db);
 
     AJS(pgn);
     if(not pgn){
@@ -1073,7 +2011,7 @@ JCM(jstring, saveGame, jint gameId, jstring jpgn){
     parser.Reset(pgn);
     uint size=16000;
     LOGD("parsing game");
-    parser.ParseGame(&game);
+    parser.ParseGame(&db->game);
     LOGD("create index entry");
     // Grab a new idx entry, if needed:
     IndexEntry * oldIE = 0;
@@ -1082,7 +2020,7 @@ JCM(jstring, saveGame, jint gameId, jstring jpgn){
 
     bbuf->Empty();
     LOGD("encode game");
-    _(game.Encode(bbuf, iE), "Error encoding game.");
+    _(db->game.Encode(bbuf, iE), "Error encoding game.");
     LOGD("finished encoding game");
 
     bool replaceMode = false;
@@ -1093,14 +2031,14 @@ JCM(jstring, saveGame, jint gameId, jstring jpgn){
 
     LOGD("Saving game.");
 
-    _(reopenIndexForWriting(), "Unable to reopen index file for writing.");
-    _(reopenGFileForWriting(), "Unable to reopen game file for writing.");
-    _(sourceIndex.ReadEntries(iE, gNumber, 1), "Error reading index entry.");
+    _(reopenIndexForWriting(db), "Unable to reopen index file for writing.");
+    _(reopenGFileForWriting(db), "Unable to reopen game file for writing.");
+    _(db->index.ReadEntries(iE, gNumber, 1), "Error reading index entry.");
     LOGD("All files loaded.");
 
     // game.Encode computes flags, so we have to re-set flags if replace mode
     if(replaceMode){
-        oldIE = sourceIndex.FetchEntry(gNumber);
+        oldIE = db->index.FetchEntry(gNumber);
         LOGD("Old index entry fetched.");
         // Remember previous user-settable flags:
         for(uint flag = 0; flag < IDX_NUM_FLAGS; ++flag){
@@ -1110,16 +2048,16 @@ JCM(jstring, saveGame, jint gameId, jstring jpgn){
         }
     } else {
         // add game without resetting the index, because it has been filled by game.encode above
-        _(sourceIndex.AddGame(&gNumber, iE, false), "Too many games in this database.");
+        _(db->index.AddGame(&gNumber, iE, false), "Too many games in this database.");
     }
-    int noGames = sourceIndex.GetNumGames();
+    int noGames = db->index.GetNumGames();
 
     bbuf->BackToStart();
 
     // Now try writing the game to the gfile:
     LOGD("Trying to write game to gfile.");
     uint offset = 0;
-    _(sourceGFile.AddGame(bbuf, &offset), "Error writing game file.");
+    _(db->gfile.AddGame(bbuf, &offset), "Error writing game file.");
     iE->SetOffset(offset);
     iE->SetLength(bbuf->GetByteCount());
     LOGD("Game written to gfile.");
@@ -1130,10 +2068,10 @@ JCM(jstring, saveGame, jint gameId, jstring jpgn){
     idNumberT id = 0;
 
 #define __(Name, TYPE)                                                  \
-    s = game.Get##Name##Str();  if(not s){ s = "?"; }                      \
-    _(sourceNameBase.AddName(NAME_##TYPE, s, &id),                      \
+    s = db->game.Get##Name##Str();  if(not s){ s = "?"; }                      \
+    _(db->nameBase.AddName(NAME_##TYPE, s, &id),                      \
       "Cannot add " #Name " as " #TYPE ".");                            \
-    sourceNameBase.IncFrequency(NAME_##TYPE, id, 1);                    \
+    db->nameBase.IncFrequency(NAME_##TYPE, id, 1);                    \
     iE->Set##Name(id);                                                  \
     LOGD(#Name " written to name base.")
 
@@ -1146,30 +2084,47 @@ JCM(jstring, saveGame, jint gameId, jstring jpgn){
 
     // If replacing, decrement the frequency of the old names:
     if(replaceMode){
-        sourceNameBase.IncFrequency(NAME_PLAYER, oldIE->GetWhite(), -1);
-        sourceNameBase.IncFrequency(NAME_PLAYER, oldIE->GetBlack(), -1);
-        sourceNameBase.IncFrequency(NAME_EVENT,  oldIE->GetEvent(), -1);
-        sourceNameBase.IncFrequency(NAME_SITE,   oldIE->GetSite(),  -1);
-        sourceNameBase.IncFrequency(NAME_ROUND,  oldIE->GetRound(), -1);
+        db->nameBase.IncFrequency(NAME_PLAYER, oldIE->GetWhite(), -1);
+        db->nameBase.IncFrequency(NAME_PLAYER, oldIE->GetBlack(), -1);
+        db->nameBase.IncFrequency(NAME_EVENT,  oldIE->GetEvent(), -1);
+        db->nameBase.IncFrequency(NAME_SITE,   oldIE->GetSite(),  -1);
+        db->nameBase.IncFrequency(NAME_ROUND,  oldIE->GetRound(), -1);
     }
     LOGD("Frequencies incremented.");
 
-    iE->SetResult(game.GetResult());
+    iE->SetResult(db->game.GetResult());
 
     // Flush the gfile so it is up-to-date with other files:
     // This made copying games between databases VERY slow, so it
     // is now done elsewhere OUTSIDE a loop that copies many
     // games, such as in sc_filter_copy().
-    sourceGFile.FlushAll();
+    db->gfile.FlushAll();
     LOGD("All flushed.");
 
+    // The position index does not know about the new game data:
+    db->posIndex.Close();
+    removeFile(db->index.GetFileName(), POSINDEX_SUFFIX);
+    // Neither do the sort orders and the opening tree:
+    SortIndex::Remove(db->index.GetFileName());
+    db->openingTree.Close();
+    OpeningTree::Remove(db->index.GetFileName());
+    // Names may have been added:
+    for(uint nt = 0; nt < NUM_NAME_TYPES; ++nt){
+        db->nameIndex[nt].Clear();
+        db->trigramIndex[nt].Clear();
+    }
+    // Nor do the header columns:
+    db->columns.Clear();
+
     // Last of all, we write the new idxEntry
-    _(sourceIndex.WriteEntries(iE, gNumber, 1), "Error writing index file.");
+    _(db->index.WriteEntries(iE, gNumber, 1), "Error writing index file.");
     LOGD("Index file written.");
-    _(sourceIndex.WriteHeader(), "Error writing index header.");
+    _(db->index.WriteHeader(), "Error writing index header.");
     LOGD("Index header written.");
-    _(sourceNameBase.WriteNameFile(), "Error writing name file.");
+    _(db->nameBase.WriteNameFile(), "Error writing name file.");
     LOGD("Name file written.");
+    // Map the game file again, including the new game:
+    reopenGFileForReading(db);
 
     // We need to increase the filter size if a game was added:
     if(not replaceMode){
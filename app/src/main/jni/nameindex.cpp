@@ -0,0 +1,208 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       nameindex.cpp
+//              NameIndex methods
+//
+//////////////////////////////////////////////////////////////////////
+
+#include "nameindex.h"
+
+#include <algorithm>
+#include <cstring>
+
+// Folded forms of U+00C0 to U+00FF, "" for characters kept as they are:
+static const char * const Latin1Folds [64] = {
+    "a", "a", "a", "a", "a", "a", "ae", "c",
+    "e", "e", "e", "e", "i", "i", "i", "i",
+    "d", "n", "o", "o", "o", "o", "o", "",
+    "o", "u", "u", "u", "u", "y", "th", "ss",
+    "a", "a", "a", "a", "a", "a", "ae", "c",
+    "e", "e", "e", "e", "i", "i", "i", "i",
+    "d", "n", "o", "o", "o", "o", "o", "",
+    "o", "u", "u", "u", "u", "y", "th", "y"
+};
+
+// Base letters of U+0100 to U+017F, '*' for the ligatures U+0132,
+// U+0133, U+0152 and U+0153:
+static const char LatinExtendedAFolds[] =
+    "aaaaaaccccccccdd" "ddeeeeeeeeeegggg" "gggghhhhiiiiiiii" "ii**jjkkklllllll"
+    "lllnnnnnnnnnoooo" "oo**rrrrrrssssss" "ssttttttuuuuuuuu" "uuuuwwyyyzzzzzzs";
+
+// CP1252 characters of the bytes 0x80 to 0x9F, 0 if undefined:
+static const uint Cp1252High [32] = {
+    0x20AC, 0, 0x201A, 0x0192, 0x201E, 0x2026, 0x2020, 0x2021,
+    0x02C6, 0x2030, 0x0160, 0x2039, 0x0152, 0, 0x017D, 0,
+    0, 0x2018, 0x2019, 0x201C, 0x201D, 0x2022, 0x2013, 0x2014,
+    0x02DC, 0x2122, 0x0161, 0x203A, 0x0153, 0, 0x017E, 0x0178
+};
+
+// Returns the length of the well-formed UTF-8 sequence at s, or 0 if
+// there is none, like Utf8Converter does.
+static uint
+sequenceLength (const byte * s)
+{
+    uint length;
+    byte min = 0x80, max = 0xBF;
+    if (s[0] >= 0xC2  &&  s[0] <= 0xDF) {
+        length = 2;
+    } else if (s[0] >= 0xE0  &&  s[0] <= 0xEF) {
+        length = 3;
+        if (s[0] == 0xE0) { min = 0xA0; }         // overlong
+        else if (s[0] == 0xED) { max = 0x9F; }    // surrogates
+    } else if (s[0] >= 0xF0  &&  s[0] <= 0xF4) {
+        length = 4;
+        if (s[0] == 0xF0) { min = 0x90; }         // overlong
+        else if (s[0] == 0xF4) { max = 0x8F; }    // above U+10FFFF
+    } else {
+        return 0;
+    }
+    if (s[1] < min  ||  s[1] > max) { return 0; }
+    for (uint i = 2; i < length; i++) {
+        if ((s[i] & 0xC0) != 0x80) { return 0; }
+    }
+    return length;
+}
+
+// Decodes the character at s as UTF-8, or as CP1252 if it is not well
+// formed UTF-8, and advances s past it:
+static uint
+decodeChar (const byte ** s)
+{
+    const byte * p = *s;
+    uint length = p[0] < 0x80 ? 1 : sequenceLength (p);
+    *s += length > 0 ? length : 1;
+    switch (length) {
+    case 0: return p[0] < 0xA0 ? Cp1252High[p[0] - 0x80] : p[0];
+    case 1: return p[0];
+    case 2: return (p[0] & 0x1F) << 6 | (p[1] & 0x3F);
+    case 3: return (p[0] & 0x0F) << 12 | (p[1] & 0x3F) << 6 | (p[2] & 0x3F);
+    default:
+        return (p[0] & 0x07) << 18 | (p[1] & 0x3F) << 12
+            | (p[2] & 0x3F) << 6 | (p[3] & 0x3F);
+    }
+}
+
+static void
+appendUtf8 (std::string * key, uint c)
+{
+    if (c < 0x80) {
+        *key += char (c);
+    } else if (c < 0x800) {
+        *key += char (0xC0 | c >> 6);
+        *key += char (0x80 | (c & 0x3F));
+    } else if (c < 0x10000) {
+        *key += char (0xE0 | c >> 12);
+        *key += char (0x80 | (c >> 6 & 0x3F));
+        *key += char (0x80 | (c & 0x3F));
+    } else {
+        *key += char (0xF0 | c >> 18);
+        *key += char (0x80 | (c >> 12 & 0x3F));
+        *key += char (0x80 | (c >> 6 & 0x3F));
+        *key += char (0x80 | (c & 0x3F));
+    }
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// NameIndex::Fold():
+//      Sets key to the folded form of the name, encoded as UTF-8.
+void
+NameIndex::Fold (const char * name, std::string * key)
+{
+    key->clear();
+    const byte * s = (const byte *) name;
+    while (*s) {
+        uint c = decodeChar (&s);
+        if (c >= 'A'  &&  c <= 'Z') {
+            *key += char (c + 'a' - 'A');
+        } else if (c >= 0xC0  &&  c <= 0xFF  &&  *Latin1Folds[c - 0xC0]) {
+            *key += Latin1Folds[c - 0xC0];
+        } else if (c >= 0x100  &&  c <= 0x17F) {
+            char base = LatinExtendedAFolds[c - 0x100];
+            if (base != '*') {
+                *key += base;
+            } else {
+                *key += (c < 0x150) ? "ij" : "oe";
+            }
+        } else if (c >= 0x0400  &&  c <= 0x040F) {
+            appendUtf8 (key, c + 0x50);
+        } else if (c >= 0x0410  &&  c <= 0x042F) {
+            appendUtf8 (key, c + 0x20);
+        } else if (c != 0) {
+            appendUtf8 (key, c);
+        }
+    }
+}
+
+// Orders entries by their keys, and entries with equal keys by their
+// name IDs:
+struct entryLess {
+    const char * keys;
+    const uint * offsets;
+    bool operator() (uint a, uint b) {
+        int res = strcmp (keys + offsets[a], keys + offsets[b]);
+        return res < 0  ||  (res == 0  &&  a < b);
+    }
+};
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// NameIndex::Build():
+//      Folds and sorts all names of the name type.
+void
+NameIndex::Build (NameBase * nb, nameT nameType)
+{
+    Clear();
+    uint numNames = nb->GetNumNames (nameType);
+    std::vector<uint> offsets (numNames);
+    std::string key;
+    for (uint id = 0; id < numNames; id++) {
+        Fold (nb->GetName (nameType, id), &key);
+        offsets[id] = Keys.size();
+        Keys.insert (Keys.end(), key.begin(), key.end());
+        Keys.push_back (0);
+    }
+    Ids.resize (numNames);
+    for (uint id = 0; id < numNames; id++) { Ids[id] = id; }
+    if (numNames > 0) {
+        entryLess less = { &Keys[0], &offsets[0] };
+        std::sort (Ids.begin(), Ids.end(), less);
+    }
+    KeyOffsets.resize (numNames);
+    for (uint i = 0; i < numNames; i++) { KeyOffsets[i] = offsets[Ids[i]]; }
+    Built = true;
+}
+
+void
+NameIndex::Clear ()
+{
+    Keys.clear();
+    KeyOffsets.clear();
+    Ids.clear();
+    Built = false;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// NameIndex::Lookup():
+//      Sets first and end to the range of entries whose folded names
+//      start with the folded prefix.
+void
+NameIndex::Lookup (const char * prefix, uint * first, uint * end)
+{
+    std::string folded;
+    Fold (prefix, &folded);
+    const char * p = folded.c_str();
+    size_t length = folded.size();
+    uint low = 0, high = Size();
+    while (low < high) {        // first key not before the prefix
+        uint middle = low + (high - low) / 2;
+        if (strcmp (GetKey (middle), p) < 0) { low = middle + 1; }
+        else { high = middle; }
+    }
+    *first = low;
+    high = Size();
+    while (low < high) {        // first key after the keys with the prefix
+        uint middle = low + (high - low) / 2;
+        if (strncmp (GetKey (middle), p, length) == 0) { low = middle + 1; }
+        else { high = middle; }
+    }
+    *end = low;
+}
@@ -0,0 +1,46 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       nameindex.h
+//              Folded name index (NameIndex) for name prefix lookups
+//
+//  The names of one name type, sorted by their folded form: names are
+//  decoded as UTF-8 or else as CP1252, accents are removed from Latin
+//  letters and Latin and Cyrillic letters are lower case. The names
+//  starting with a prefix are a contiguous range of the index, which
+//  two binary searches find.
+//
+//////////////////////////////////////////////////////////////////////
+
+#ifndef JNI_NAMEINDEX_H
+#define JNI_NAMEINDEX_H
+
+#include "scid/common.h"
+#include "scid/namebase.h"
+
+#include <string>
+#include <vector>
+
+class NameIndex
+{
+  private:
+    std::vector<char>      Keys;        // folded names, each ending with 0
+    std::vector<uint>      KeyOffsets;  // key of each entry in Keys
+    std::vector<idNumberT> Ids;         // name IDs in order of their keys
+    bool                   Built;
+
+  public:
+    NameIndex() : Built(false) {}
+
+    bool IsBuilt () { return Built; }
+    void Build (NameBase * nb, nameT nameType);
+    void Clear ();
+
+    uint      Size () { return Ids.size(); }
+    idNumberT GetId (uint entry) { return Ids[entry]; }
+    const char * GetKey (uint entry) { return &Keys[KeyOffsets[entry]]; }
+    void      Lookup (const char * prefix, uint * first, uint * end);
+
+    static void Fold (const char * name, std::string * key);
+};
+
+#endif  // JNI_NAMEINDEX_H
@@ -0,0 +1,269 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       openingtree.cpp
+//              OpeningTree and OpeningTreeBuilder methods
+//
+//  The tree is a SortedFile (host byte order, the file is a local
+//  cache that is rebuilt whenever it is missing or out of date):
+//
+//    openingTreeHeaderT
+//    openingTreeEntryT entries [numEntries]   sorted by key, pawn key
+//                                             and move
+//    uint fences [(numEntries + FENCE_STEP - 1) / FENCE_STEP]
+//
+//////////////////////////////////////////////////////////////////////
+
+#include "openingtree.h"
+#include "posindex.h"
+#include "scid/misc.h"
+
+#include <algorithm>
+#include <cstring>
+
+// A move played in a game, as written to the partitions while building:
+struct openingTreeRecordT {
+    uint key;
+    uint pawnKey;
+    uint move;           // the move in the low, the result in the high bits
+    uint elo;            // of the player making the move, 0 if unknown
+};
+
+// Marks the move of a record of a position first reached after the
+// tree depth:
+static const uint DEEP_RECORD = 1U << 31;
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// OpeningTree::EncodeMove():
+//      Packs the from square (bits 0-5), the to square (bits 6-11)
+//      and the promotion piece type (bits 12-14) of a move.
+ushort
+OpeningTree::EncodeMove (simpleMoveT * sm)
+{
+    return sm->from | sm->to << 6 | piece_Type (sm->promote) << 12;
+}
+
+bool
+OpeningTree::MatchesMove (ushort move, simpleMoveT * sm)
+{
+    return EncodeMove (sm) == move;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// OpeningTree::Open():
+//      Opens the opening tree of a database. Fails if there is no tree,
+//      if it was built for different database contents or if it is not
+//      as deep as maxPly. A deeper tree has the same statistics for
+//      its positions, it only holds more positions.
+errorT
+OpeningTree::Open (const char * baseName, uint numGames, uint gfileSize,
+                   uint maxPly)
+{
+    Close();
+    fileNameT fname;
+    strCopy (fname, baseName);
+    strAppend (fname, OPENINGTREE_SUFFIX);
+    errorT err = File.Open (fname, &Header, sizeof(Header), OPENINGTREE_MAGIC);
+    if (err != OK) { return err; }
+    if (Header.version != OPENINGTREE_VERSION
+            ||  Header.numGames != numGames
+            ||  Header.gfileSize != gfileSize
+            ||  Header.maxPly < maxPly) {
+        Close();
+        return ERROR_FileVersion;
+    }
+    return File.ReadFences (0, Header.numEntries, sizeof(openingTreeEntryT),
+                            OPENINGTREE_FENCE_STEP);
+}
+
+void
+OpeningTree::Close ()
+{
+    File.Close();
+}
+
+void
+OpeningTree::Remove (const char * baseName)
+{
+    fileNameT fname;
+    strCopy (fname, baseName);
+    strAppend (fname, OPENINGTREE_SUFFIX);
+    remove (fname);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// OpeningTree::Lookup():
+//      Fills entries with the moves played in the position, empty if
+//      the position is not in the tree.
+errorT
+OpeningTree::Lookup (Position * pos, std::vector<openingTreeEntryT> * entries)
+{
+    entries->clear();
+    if (not File.IsOpen()) { return ERROR_FileNotOpen; }
+    uint key = PosIndex::ExactKey (pos);
+    uint pawnKey = PosIndex::PawnKey (pos);
+
+    openingTreeEntryT block [OPENINGTREE_FENCE_STEP];
+    for (uint first = File.FirstEntry (key); first < Header.numEntries; ) {
+        uint count = std::min (OPENINGTREE_FENCE_STEP, Header.numEntries - first);
+        errorT err = File.ReadEntries (first, count, block);
+        if (err != OK) { return err; }
+        for (uint i = 0; i < count; i++) {
+            if (block[i].key > key) { return OK; }
+            if (block[i].key == key  &&  block[i].pawnKey == pawnKey) {
+                entries->push_back (block[i]);
+            }
+        }
+        first += count;
+    }
+    return OK;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// OpeningTreeBuilder::Start():
+//      Starts building the opening tree of a database.
+errorT
+OpeningTreeBuilder::Start (const char * baseName, uint maxPly)
+{
+    Abort();
+    fileNameT fname;
+    strCopy (fname, baseName);
+    strAppend (fname, OPENINGTREE_SUFFIX);
+    errorT err = File.Start (fname, sizeof(openingTreeHeaderT),
+                             sizeof(openingTreeEntryT), OPENINGTREE_FENCE_STEP);
+    if (err != OK) { return err; }
+    MaxPly = maxPly;
+    Started = true;
+    return OK;
+}
+
+void
+OpeningTreeBuilder::Abort ()
+{
+    if (Started) {
+        File.Abort();
+        Started = false;
+    }
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// OpeningTreeBuilder::AddGame():
+//      Adds the moves of the main line of a game up to the tree depth.
+//      The Elos are 0 if they are unknown. The moves of positions first
+//      reached after the depth are added too, since other games may
+//      reach them before the depth. Positions needing MaxPly plies from
+//      the standard start position (see PosIndex::MinPly) are never in
+//      the tree, so the rest of the game is skipped once such a
+//      position is reached.
+errorT
+OpeningTreeBuilder::AddGame (Game * game, resultT result, eloT whiteElo,
+                             eloT blackElo)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    GameKeys.clear();
+    game->MoveToPly (0);
+    for (uint ply = 0; ; ply++) {
+        simpleMoveT * sm = game->GetCurrentMove();
+        if (sm == NULL) { break; }
+        Position * pos = game->GetCurrentPos();
+        uint minPly = PosIndex::MinPly (pos);
+        if (ply >= MaxPly  &&  minPly >= MaxPly) { break; }
+        openingTreeRecordT record;
+        record.key = PosIndex::ExactKey (pos);
+        // Only the first occurrence of a position in a game counts:
+        if (std::find (GameKeys.begin(), GameKeys.end(), record.key)
+                == GameKeys.end()) {
+            GameKeys.push_back (record.key);
+            record.pawnKey = PosIndex::PawnKey (pos);
+            record.move = OpeningTree::EncodeMove (sm) | (uint) result << 16;
+            if (ply >= MaxPly) { record.move |= DEEP_RECORD; }
+            record.elo = pos->GetToMove() == WHITE ? whiteElo : blackElo;
+            if (minPly < MaxPly) {
+                errorT err = File.AddRecord (record.key, &record, sizeof(record));
+                if (err != OK) { return err; }
+            }
+        }
+        if (game->MoveForward() != OK) { break; }
+    }
+    return OK;
+}
+
+static inline bool
+recordLess (const openingTreeRecordT & a, const openingTreeRecordT & b)
+{
+    if (a.key != b.key) { return a.key < b.key; }
+    if (a.pawnKey != b.pawnKey) { return a.pawnKey < b.pawnKey; }
+    return (a.move & 0xFFFF) < (b.move & 0xFFFF);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// OpeningTreeBuilder::Finish():
+//      Sorts the partitions, sums up the games of each move and writes
+//      the tree file. Positions that are only reached after the tree
+//      depth are left out.
+errorT
+OpeningTreeBuilder::Finish (uint numGames, uint gfileSize)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    openingTreeHeaderT header;
+    memset (&header, 0, sizeof(header));
+    memcpy (header.magic, OPENINGTREE_MAGIC, sizeof(header.magic));
+    header.version = OPENINGTREE_VERSION;
+    header.numGames = numGames;
+    header.gfileSize = gfileSize;
+    header.maxPly = MaxPly;
+
+    errorT err = OK;
+    std::vector<openingTreeRecordT> records;
+    for (uint p = 0; err == OK  &&  p < SORTEDFILE_NUM_PARTITIONS; p++) {
+        err = File.ReadPartition (p, &records);
+        std::sort (records.begin(), records.end(), recordLess);
+        uint count = records.size();
+        for (uint i = 0; err == OK  &&  i < count; ) {
+            // A position is in the tree if a game reaches it before the
+            // depth:
+            uint end = i;
+            bool inTree = false;
+            for (; end < count  &&  records[end].key == records[i].key
+                     &&  records[end].pawnKey == records[i].pawnKey; end++) {
+                if ((records[end].move & DEEP_RECORD) == 0) { inTree = true; }
+            }
+            if (not inTree) {
+                i = end;
+                continue;
+            }
+            while (err == OK  &&  i < end) {
+                openingTreeEntryT entry;
+                memset (&entry, 0, sizeof(entry));
+                entry.key = records[i].key;
+                entry.pawnKey = records[i].pawnKey;
+                entry.move = records[i].move & 0xFFFF;
+                unsigned long long eloSum = 0;
+                uint eloGames = 0;
+                for (; i < end  &&  (records[i].move & 0xFFFF) == entry.move; i++) {
+                    entry.games++;
+                    switch ((records[i].move & ~DEEP_RECORD) >> 16) {
+                    case RESULT_White: entry.whiteWins++; break;
+                    case RESULT_Black: entry.blackWins++; break;
+                    case RESULT_Draw:  entry.draws++;     break;
+                    }
+                    if (records[i].elo != 0) {
+                        eloSum += records[i].elo;
+                        eloGames++;
+                    }
+                }
+                if (eloGames > 0) { entry.averageElo = eloSum / eloGames; }
+                err = File.AddEntry (entry.key, &entry);
+            }
+        }
+        records.clear();
+    }
+
+    header.numEntries = File.GetNumEntries();
+    if (err == OK) { err = File.Finish (&header); }
+    Abort();
+    return err;
+}
+
+//////////////////////////////////////////////////////////////////////
+//  EOF: openingtree.cpp
+//////////////////////////////////////////////////////////////////////
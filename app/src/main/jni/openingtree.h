@@ -0,0 +1,108 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       openingtree.h
+//              Opening tree (OpeningTree) for move statistics
+//
+//  The opening tree holds, for every position reached in the main line
+//  of a game up to a configurable ply depth, the moves played in that
+//  position with the number of games, their results and the average
+//  Elo of the players making the move. A game counts once for each
+//  position, with the move played at the first occurrence of the
+//  position in the game, like a board search finds it, even if that
+//  occurrence is after the tree depth.
+//
+//  Positions are identified by PosIndex::ExactKey and, to tell apart
+//  positions with the same key, PosIndex::PawnKey, so the moves of a
+//  position are looked up with one binary search in a file next to the
+//  index file instead of a board search and reading every game found.
+//  Positions that are not in the tree, because no game reaches them
+//  within the tree depth, need a board search instead.
+//
+//////////////////////////////////////////////////////////////////////
+
+#ifndef JNI_OPENINGTREE_H
+#define JNI_OPENINGTREE_H
+
+#include "scid/common.h"
+#include "scid/error.h"
+#include "scid/game.h"
+#include "scid/position.h"
+#include "sortedfile.h"
+
+#include <vector>
+
+const char OPENINGTREE_SUFFIX[] = ".sot";
+const char OPENINGTREE_MAGIC[8] = "Scid.ot";
+const uint OPENINGTREE_VERSION = 2;
+
+// Default and largest number of plies of each game in the tree, make
+// sure they are in sync with DataBase.java:
+const uint OPENINGTREE_DEFAULT_MAX_PLY = 20;
+const uint OPENINGTREE_MAX_PLY = 30;
+
+// The key of one entry out of OPENINGTREE_FENCE_STEP is kept in memory
+// for lookups:
+const uint OPENINGTREE_FENCE_STEP = 256;
+
+struct openingTreeHeaderT {
+    char magic[8];
+    uint version;
+    uint numGames;       // number of games in the tree
+    uint gfileSize;      // size of the game file the tree was built from
+    uint maxPly;         // plies of each game in the tree
+    uint numEntries;     // number of (position, move) entries
+};
+
+// The statistics of a move played in a position:
+struct openingTreeEntryT {
+    uint   key;          // PosIndex::ExactKey of the position
+    uint   pawnKey;      // PosIndex::PawnKey of the position
+    ushort move;         // see OpeningTree::EncodeMove
+    ushort averageElo;   // of the players making the move, 0 if unknown
+    uint   games;
+    uint   whiteWins;
+    uint   draws;
+    uint   blackWins;
+};
+
+class OpeningTree
+{
+  private:
+    SortedFile         File;
+    openingTreeHeaderT Header;
+
+  public:
+
+    errorT Open (const char * baseName, uint numGames, uint gfileSize,
+                 uint maxPly);
+    void   Close ();
+    bool   IsOpen () { return File.IsOpen(); }
+    uint   GetMaxPly () { return Header.maxPly; }
+
+    errorT Lookup (Position * pos, std::vector<openingTreeEntryT> * entries);
+
+    static ushort EncodeMove (simpleMoveT * sm);
+    static bool   MatchesMove (ushort move, simpleMoveT * sm);
+    static void   Remove (const char * baseName);
+};
+
+class OpeningTreeBuilder
+{
+  private:
+    SortedFileBuilder File;
+    uint      MaxPly;
+    std::vector<uint> GameKeys;    // keys already seen in the current game
+    bool      Started;
+
+  public:
+    OpeningTreeBuilder() : Started(false) {}
+    ~OpeningTreeBuilder() { Abort(); }
+
+    errorT Start (const char * baseName, uint maxPly);
+    errorT AddGame (Game * game, resultT result, eloT whiteElo,
+                    eloT blackElo);
+    errorT Finish (uint numGames, uint gfileSize);
+    void   Abort ();
+};
+
+#endif  // JNI_OPENINGTREE_H
@@ -0,0 +1,314 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       pgnimport.cpp
+//              PgnImporter methods
+//
+//////////////////////////////////////////////////////////////////////
+
+#include "pgnimport.h"
+#include "scid/bytebuf.h"
+#include "scid/game.h"
+#include "scid/mfile.h"
+#include "scid/pgnparse.h"
+#include "scid/position.h"
+#include "scid/stored.h"
+
+#include <cstring>
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PgnImporter::PgnImporter():
+//      Starts the workers parsing the PGN data, which must stay
+//      readable until the importer is deleted.
+PgnImporter::PgnImporter (const byte * data, uint size, const char * fileName,
+                          FILE * errorFile, uint maxPly, uint numThreads)
+    : Data(data), Size(size), FileName(fileName), ErrorFile(errorFile),
+      MaxPly(maxPly), AllStarts(false), NextChunk(0), Current(0),
+      CurrentGame(0), NumErrors(0), Stopped(false)
+{
+    if (numThreads < 1) { numThreads = 1; }
+    MaxPending = numThreads * PGNIMPORT_CHUNKS_PER_THREAD;
+    Starts.push_back (0);
+    Lines.push_back (0);
+
+    // Set up the tables that are only initialised on first use before
+    // the workers use them at the same time:
+    Position pos;
+    pos.StdStart();
+    pos.ReadFromFEN ("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1");
+    Game * game = new Game;
+    delete game;
+    StoredLine::GetGame (1);
+
+    pthread_mutex_init (&Lock, NULL);
+    pthread_cond_init (&Claimable, NULL);
+    pthread_cond_init (&Done, NULL);
+    for (uint i = 0; i < numThreads; i++) {
+        pthread_t thread;
+        if (pthread_create (&thread, NULL, WorkerMain, this) != 0) {
+            // The chunks not claimed by a worker are parsed by the
+            // importing thread:
+            break;
+        }
+        Threads.push_back (thread);
+    }
+}
+
+PgnImporter::~PgnImporter()
+{
+    pthread_mutex_lock (&Lock);
+    Stopped = true;
+    pthread_cond_broadcast (&Claimable);
+    pthread_mutex_unlock (&Lock);
+    for (uint i = 0; i < Threads.size(); i++) {
+        pthread_join (Threads[i], NULL);
+    }
+    std::map<uint, pgnImportChunkT *>::iterator it;
+    for (it = Chunks.begin(); it != Chunks.end(); it++) {
+        delete it->second;
+    }
+    pthread_cond_destroy (&Done);
+    pthread_cond_destroy (&Claimable);
+    pthread_mutex_destroy (&Lock);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PgnImporter::GetStart():
+//      Gets the start of a chunk and the number of lines before it,
+//      finding the chunks up to it if necessary. Returns false if the
+//      chunk would start at the end of the data.
+//      The lock must be held.
+bool
+PgnImporter::GetStart (uint chunk, uint * start, uint * lines)
+{
+    while (chunk >= Starts.size()  &&  !AllStarts) {
+        uint from = Starts.back();
+        uint next = FindStart (from + PGNIMPORT_CHUNK_SIZE);
+        if (next >= Size) {
+            AllStarts = true;
+            break;
+        }
+        uint newlines = Lines.back();
+        const byte * p = Data + from;
+        const byte * end = Data + next;
+        while ((p = (const byte *) memchr (p, '\n', end - p)) != NULL) {
+            newlines++;
+            p++;
+        }
+        Starts.push_back (next);
+        Lines.push_back (newlines);
+    }
+    if (chunk >= Starts.size()  ||  Starts[chunk] >= Size) { return false; }
+    *start = Starts[chunk];
+    if (lines != NULL) { *lines = Lines[chunk]; }
+    return true;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PgnImporter::FindStart():
+//      Returns the position of the first tag line after a blank line
+//      at or after the given position, or the size of the data if
+//      there is none.
+uint
+PgnImporter::FindStart (uint from)
+{
+    uint i = from;
+    while (i < Size) {
+        const byte * p = (const byte *) memchr (Data + i, '[', Size - i);
+        if (p == NULL) { break; }
+        i = p - Data;
+        if (i >= 2  &&  Data[i-1] == '\n'
+              &&  (Data[i-2] == '\n'
+                   ||  (i >= 3  &&  Data[i-2] == '\r'  &&  Data[i-3] == '\n'))) {
+            return i;
+        }
+        i++;
+    }
+    return Size;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PgnImporter::OnlyNewlines():
+//      Returns true if the data between the positions is made of
+//      line ends only.
+bool
+PgnImporter::OnlyNewlines (uint from, uint end)
+{
+    if (from > end) { return false; }
+    for (uint i = from; i < end; i++) {
+        if (Data[i] != '\n'  &&  Data[i] != '\r') { return false; }
+    }
+    return true;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PgnImporter::ParseChunk():
+//      Parses and encodes the games from the start of a chunk, until
+//      they end at the start of a later chunk with only line ends in
+//      between, or at the end of the data.
+//      Called without holding the lock.
+void
+PgnImporter::ParseChunk (uint chunk, uint start, uint lines,
+                         pgnImportChunkT * result)
+{
+    MFile view;
+    view.OpenView (FileName.c_str(), Data + start, Size - start);
+    PgnParser parser (&view);
+    parser.SetLineCounter (lines);
+    parser.SetPreGameText (true);
+    parser.AddIgnoredTag ("PlyCount");
+
+    Game * game = new Game;
+    ByteBuffer bbuf;
+    bbuf.SetBufferSize (BBUF_SIZE);
+
+    uint next = chunk + 1;
+    uint nextStart = 0;
+    pthread_mutex_lock (&Lock);
+    bool last = !GetStart (next, &nextStart, NULL);
+    pthread_mutex_unlock (&Lock);
+
+    while (!Stopped  &&  parser.ParseGame (game) != ERROR_NotFound) {
+        result->games.push_back (pgnImportGameT());
+        pgnImportGameT * g = &(result->games.back());
+        g->names[PGNIMPORT_WHITE] = game->GetWhiteStr();
+        g->names[PGNIMPORT_BLACK] = game->GetBlackStr();
+        g->names[PGNIMPORT_EVENT] = game->GetEventStr();
+        g->names[PGNIMPORT_SITE] = game->GetSiteStr();
+        g->names[PGNIMPORT_ROUND] = game->GetRoundStr();
+
+        g->ie.Init();
+        bbuf.Empty();
+        g->encodeError = game->Encode (&bbuf, &(g->ie));
+        g->data.assign (bbuf.GetBuffer(),
+                        bbuf.GetBuffer() + bbuf.GetByteCount());
+        PosIndexBuilder::PrepareGame (game, MaxPly, &(g->positions));
+        g->end = start + parser.BytesUsed();
+
+        if (last  ||  nextStart >= g->end) {
+            if (!last  &&  OnlyNewlines (g->end, nextStart)) { break; }
+            continue;
+        }
+        pthread_mutex_lock (&Lock);
+        while (!last  &&  nextStart < g->end) {
+            next++;
+            last = !GetStart (next, &nextStart, NULL);
+        }
+        pthread_mutex_unlock (&Lock);
+        if (!last  &&  OnlyNewlines (g->end, nextStart)) { break; }
+    }
+    delete game;
+
+    result->next = next;
+    result->errors = parser.ErrorMessages();
+    result->numErrors = parser.ErrorCount();
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PgnImporter::Work():
+//      Parses the chunks ahead of the importing thread until all have
+//      been claimed or the importer is deleted.
+void
+PgnImporter::Work ()
+{
+    pthread_mutex_lock (&Lock);
+    uint start, lines;
+    while (!Stopped  &&  GetStart (NextChunk, &start, &lines)) {
+        if (NextChunk >= Current + MaxPending) {
+            pthread_cond_wait (&Claimable, &Lock);
+            continue;
+        }
+        uint chunk = NextChunk++;
+        pgnImportChunkT * result = new pgnImportChunkT;
+        result->done = false;
+        Chunks[chunk] = result;
+        pthread_mutex_unlock (&Lock);
+
+        ParseChunk (chunk, start, lines, result);
+
+        pthread_mutex_lock (&Lock);
+        if (chunk < Current) {
+            // The importing thread has skipped the chunk:
+            Chunks.erase (chunk);
+            delete result;
+        } else {
+            result->done = true;
+            pthread_cond_broadcast (&Done);
+        }
+    }
+    pthread_mutex_unlock (&Lock);
+}
+
+void *
+PgnImporter::WorkerMain (void * importer)
+{
+    ((PgnImporter *) importer)->Work();
+    return NULL;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PgnImporter::NextGame():
+//      Gets the next game of the PGN data, in the order of the file.
+//      The game is valid until the next call. The errors found while
+//      parsing are written to the error file before the games that
+//      follow them. Returns ERROR_NotFound after the last game.
+errorT
+PgnImporter::NextGame (pgnImportGameT ** game)
+{
+    errorT err = OK;
+    pthread_mutex_lock (&Lock);
+    while (true) {
+        uint start, lines;
+        if (!GetStart (Current, &start, &lines)) {
+            err = ERROR_NotFound;
+            break;
+        }
+        std::map<uint, pgnImportChunkT *>::iterator it = Chunks.find (Current);
+        if (it == Chunks.end()) {
+            // No worker has claimed the chunk yet, so parse it here:
+            NextChunk = Current + 1;
+            pgnImportChunkT * result = new pgnImportChunkT;
+            result->done = false;
+            it = Chunks.insert (std::make_pair (Current, result)).first;
+            pthread_mutex_unlock (&Lock);
+            ParseChunk (Current, start, lines, result);
+            pthread_mutex_lock (&Lock);
+            result->done = true;
+        }
+        pgnImportChunkT * chunk = it->second;
+        if (!chunk->done) {
+            pthread_cond_wait (&Done, &Lock);
+            continue;
+        }
+        if (CurrentGame < chunk->games.size()) {
+            *game = &(chunk->games[CurrentGame]);
+            CurrentGame++;
+            break;
+        }
+
+        // All games of the chunk have been read, continue with the
+        // chunk at which they ended:
+        if (ErrorFile != NULL) { fputs (chunk->errors.c_str(), ErrorFile); }
+        NumErrors += chunk->numErrors;
+        uint next = chunk->next;
+        Chunks.erase (it);
+        delete chunk;
+        for (uint c = Current + 1; c < next; c++) {
+            // The chunks still being parsed are deleted by their worker:
+            it = Chunks.find (c);
+            if (it != Chunks.end()  &&  it->second->done) {
+                delete it->second;
+                Chunks.erase (it);
+            }
+        }
+        Current = next;
+        CurrentGame = 0;
+        if (NextChunk < Current) { NextChunk = Current; }
+        pthread_cond_broadcast (&Claimable);
+    }
+    pthread_mutex_unlock (&Lock);
+    return err;
+}
+
+//////////////////////////////////////////////////////////////////////
+//  EOF: pgnimport.cpp
+//////////////////////////////////////////////////////////////////////
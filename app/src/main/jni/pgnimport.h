@@ -0,0 +1,110 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       pgnimport.h
+//              Parallel PGN parser (PgnImporter) for importing
+//
+//  The PGN file is split into chunks of about PGNIMPORT_CHUNK_SIZE
+//  bytes, each starting with a tag line after a blank line. Worker
+//  threads parse and encode the games of the chunks, while the
+//  importing thread takes the games in the order of the file and adds
+//  them to the database.
+//
+//  A worker parses from the start of its chunk until its games end at
+//  the start of a later chunk with only newlines in between, which is
+//  normally the next chunk. A parser starting at that chunk is then in
+//  the same state as one that parsed the file from its start, so the
+//  games, their errors and line numbers are the same as those of a
+//  sequential import. The importing thread continues with the chunk at
+//  which the games of a worker ended and skips the chunks in between.
+//
+//  At most PGNIMPORT_CHUNKS_PER_THREAD chunks per worker are parsed
+//  ahead of the importing thread.
+//
+//////////////////////////////////////////////////////////////////////
+
+#ifndef JNI_PGNIMPORT_H
+#define JNI_PGNIMPORT_H
+
+#include "scid/common.h"
+#include "scid/error.h"
+#include "scid/index.h"
+#include "posindex.h"
+
+#include <pthread.h>
+#include <stdio.h>
+#include <map>
+#include <string>
+#include <vector>
+
+const uint PGNIMPORT_CHUNK_SIZE = 1 << 18;
+const uint PGNIMPORT_MAX_THREADS = 8;
+const uint PGNIMPORT_CHUNKS_PER_THREAD = 2;
+
+enum {
+    PGNIMPORT_WHITE, PGNIMPORT_BLACK, PGNIMPORT_EVENT, PGNIMPORT_SITE,
+    PGNIMPORT_ROUND, PGNIMPORT_NUM_NAMES
+};
+
+// A parsed and encoded game. The names and the position in the game
+// file are left to the importing thread.
+struct pgnImportGameT {
+    std::string   names [PGNIMPORT_NUM_NAMES];
+    IndexEntry    ie;
+    std::vector<byte> data;     // the encoded game
+    errorT        encodeError;
+    posIndexGameT positions;
+    uint          end;          // position in the PGN file after the game
+};
+
+// The games parsed from the start of a chunk:
+struct pgnImportChunkT {
+    std::vector<pgnImportGameT> games;
+    std::string errors;         // messages like those of the error file
+    uint        numErrors;
+    uint        next;           // the chunk at which the games end
+    bool        done;
+};
+
+class PgnImporter
+{
+  private:
+    const byte *      Data;
+    uint              Size;
+    std::string       FileName;
+    FILE *            ErrorFile;
+    uint              MaxPly;
+    uint              MaxPending;
+
+    std::vector<uint> Starts;       // of the chunks found so far
+    std::vector<uint> Lines;        // newlines before each chunk
+    bool              AllStarts;    // whether the last chunk was found
+    std::map<uint, pgnImportChunkT *> Chunks;  // claimed, by number
+    uint              NextChunk;    // to be claimed
+    uint              Current;      // chunk read by the importing thread
+    uint              CurrentGame;
+    uint              NumErrors;
+    volatile bool     Stopped;
+
+    pthread_mutex_t   Lock;
+    pthread_cond_t    Claimable;    // NextChunk can be claimed
+    pthread_cond_t    Done;         // a chunk has been parsed
+    std::vector<pthread_t> Threads;
+
+    bool   GetStart (uint chunk, uint * start, uint * lines);
+    uint   FindStart (uint from);
+    bool   OnlyNewlines (uint from, uint end);
+    void   ParseChunk (uint chunk, uint start, uint lines,
+                       pgnImportChunkT * result);
+    void   Work ();
+    static void * WorkerMain (void * importer);
+
+  public:
+    PgnImporter (const byte * data, uint size, const char * fileName,
+                 FILE * errorFile, uint maxPly, uint numThreads);
+    ~PgnImporter();
+
+    errorT NextGame (pgnImportGameT ** game);
+    uint   ErrorCount () { return NumErrors; }
+};
+
+#endif  // JNI_PGNIMPORT_H
@@ -0,0 +1,425 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       posindex.cpp
+//              PosIndex and PosIndexBuilder methods
+//
+//  The index is a SortedFile (host byte order, the file is a local
+//  cache that is rebuilt whenever it is missing or out of date):
+//
+//    posIndexHeaderT
+//    uint frontier [numGames]
+//    byte postings [postingBytes]    varint game delta + ply byte
+//    posIndexDirT directory [numKeys]  sorted by key
+//    uint fences [(numKeys + FENCE_STEP - 1) / FENCE_STEP]
+//
+//////////////////////////////////////////////////////////////////////
+
+#include "posindex.h"
+#include "scid/matsig.h"
+#include "scid/misc.h"
+
+#include <algorithm>
+#include <cstring>
+
+struct posIndexDirT {
+    uint key;
+    uint offset;   // start of the posting list in the postings section
+};
+
+// A posting as written to the partitions while building:
+struct posIndexRecordT {
+    uint key;
+    uint game;     // the game number in the low, the ply in the high bits
+};
+
+// Keys of positions with Black to move are distinguished from the
+// ones with White to move, since a board search never matches a
+// position with the other side to move:
+static const uint TO_MOVE_MIX = 0x5BD1E995U;
+static const uint MATSIG_MIX = 0x9E3779B1U;
+
+static inline uint
+toMoveMix (Position * pos)
+{
+    return pos->GetToMove() == BLACK ? TO_MOVE_MIX : 0;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndex::ExactKey(), PosIndex::PawnKey():
+//      Keys for the exact and the pawn structure search. A pawn
+//      structure search also needs the same material, so it is
+//      mixed into the pawn key.
+uint
+PosIndex::ExactKey (Position * pos)
+{
+    return pos->HashValue() ^ toMoveMix (pos);
+}
+
+uint
+PosIndex::PawnKey (Position * pos)
+{
+    uint msig = matsig_Make (pos->GetMaterial());
+    return pos->PawnHashValue() ^ (msig * MATSIG_MIX) ^ toMoveMix (pos);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// homePawns(): bit mask of the pawns still on their home rank.
+static uint
+homePawns (pieceT pawn, Position * pos)
+{
+    pieceT * board = pos->GetBoard();
+    squareT first = (pawn == WP ? A2 : A7);
+    uint mask = 0;
+    for (uint f = 0; f < 8; f++) {
+        if (board[first + f] == pawn) { mask |= 1 << f; }
+    }
+    return mask;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndex::MakeFrontier():
+//      Packs the values of a position that can only decrease during a
+//      game: home pawn masks (bits 0-15), pawn counts (bits 16-23) and
+//      piece counts minus one (bits 24-31).
+uint
+PosIndex::MakeFrontier (Position * pos)
+{
+    return homePawns (WP, pos)
+        | (homePawns (BP, pos) << 8)
+        | ((uint) pos->PieceCount(WP) << 16)
+        | ((uint) pos->PieceCount(BP) << 20)
+        | ((pos->GetCount(WHITE) - 1) << 24)
+        | ((pos->GetCount(BLACK) - 1) << 28);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndex::FrontierMayMatch():
+//      Returns true if the position can be reached after the frontier.
+bool
+PosIndex::FrontierMayMatch (uint frontier, Position * pos)
+{
+    if (frontier == POSINDEX_COVERED) { return false; }
+    if (frontier == POSINDEX_UNKNOWN) { return true; }
+    uint search = MakeFrontier (pos);
+    // Pawns cannot return to their home rank:
+    if ((frontier & search & 0xFFFF) != (search & 0xFFFF)) { return false; }
+    // Pawn and piece counts cannot increase:
+    for (uint shift = 16; shift < 32; shift += 4) {
+        if (((search >> shift) & 15) > ((frontier >> shift) & 15)) {
+            return false;
+        }
+    }
+    return true;
+}
+
+static inline uint
+countBits (uint mask)
+{
+    uint count = 0;
+    for (; mask != 0; mask &= mask - 1) { count++; }
+    return count;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndex::MinPly():
+//      Returns the least number of plies from the standard start
+//      position to the position: every pawn that left its home rank
+//      and every capture needs a move of its side. Like the frontier
+//      it never decreases during a game.
+uint
+PosIndex::MinPly (Position * pos)
+{
+    uint whiteMoves = std::max (8 - countBits (homePawns (WP, pos)),
+                                16U - pos->GetCount(BLACK));
+    uint blackMoves = std::max (8 - countBits (homePawns (BP, pos)),
+                                16U - pos->GetCount(WHITE));
+    return std::max (whiteMoves > 0 ? 2 * whiteMoves - 1 : 0, 2 * blackMoves);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndex::Open():
+//      Opens the position index of a database. Fails if there is no
+//      index or if it was built for different database contents.
+errorT
+PosIndex::Open (const char * baseName, uint numGames, uint gfileSize)
+{
+    Close();
+    fileNameT fname;
+    strCopy (fname, baseName);
+    strAppend (fname, POSINDEX_SUFFIX);
+    errorT err = File.Open (fname, &Header, sizeof(Header), POSINDEX_MAGIC);
+    if (err != OK) { return err; }
+    if (Header.version != POSINDEX_VERSION
+            ||  Header.numGames != numGames
+            ||  Header.gfileSize != gfileSize) {
+        Close();
+        return ERROR_FileVersion;
+    }
+    FrontierPos = sizeof(Header);
+    PostingsPos = FrontierPos + Header.numGames * sizeof(uint);
+    uint dataBytes = Header.numGames * sizeof(uint) + Header.postingBytes;
+    return File.ReadFences (dataBytes, Header.numKeys, sizeof(posIndexDirT),
+                            POSINDEX_FENCE_STEP);
+}
+
+void
+PosIndex::Close ()
+{
+    File.Close();
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndex::Lookup():
+//      Fills postings with the games containing a position with the
+//      given key, in ascending order of game numbers.
+errorT
+PosIndex::Lookup (uint key, std::vector<posIndexPostingT> * postings)
+{
+    postings->clear();
+    if (not File.IsOpen()) { return ERROR_FileNotOpen; }
+
+    // The key is in the block from the first entry or, if it is the
+    // fence of the next block, at the start of that block. Read one
+    // more entry, it holds the end of the posting list of the key:
+    uint first = File.FirstEntry (key);
+    if (first >= Header.numKeys) { return OK; }
+    uint count = std::min (POSINDEX_FENCE_STEP + 2, Header.numKeys - first);
+    posIndexDirT dir [POSINDEX_FENCE_STEP + 2];
+    errorT err = File.ReadEntries (first, count, dir);
+    if (err != OK) { return err; }
+    uint lo = 0, hi = count;
+    while (lo < hi) {
+        uint mid = (lo + hi) / 2;
+        if (dir[mid].key < key) { lo = mid + 1; } else { hi = mid; }
+    }
+    if (lo == count  ||  dir[lo].key != key) { return OK; }
+
+    // The last posting list ends with the postings section:
+    uint end = (lo + 1 < count) ? dir[lo + 1].offset : Header.postingBytes;
+    uint length = end - dir[lo].offset;
+    std::vector<byte> data (length);
+    if (length == 0) { return OK; }
+    err = File.ReadAt (PostingsPos + dir[lo].offset, &data[0], length);
+    if (err != OK) { return err; }
+
+    gameNumberT gameId = 0;
+    for (uint i = 0; i < length; ) {
+        uint delta = 0;
+        for (uint shift = 0; i < length; shift += 7) {
+            byte b = data[i++];
+            delta |= (uint) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) { break; }
+        }
+        if (i >= length) { return ERROR_CorruptData; }
+        gameId += delta;
+        posIndexPostingT posting;
+        posting.gameId = gameId;
+        posting.ply = data[i++];
+        postings->push_back (posting);
+    }
+    return OK;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndex::GetFrontier():
+//      Returns the frontier of a game. Frontiers are read in chunks
+//      into the cache of the caller, since searches go through the
+//      games in ascending order.
+uint
+PosIndex::GetFrontier (gameNumberT g, posIndexFrontierCacheT * cache)
+{
+    if (not File.IsOpen()  ||  g >= Header.numGames) { return POSINDEX_UNKNOWN; }
+    std::vector<uint> & frontiers = cache->frontiers;
+    if (g < cache->first  ||  g >= cache->first + frontiers.size()) {
+        cache->first = g - (g % POSINDEX_FRONTIER_CHUNK);
+        uint count = std::min (POSINDEX_FRONTIER_CHUNK,
+                               Header.numGames - cache->first);
+        frontiers.resize (count);
+        if (File.ReadAt (FrontierPos + cache->first * sizeof(uint),
+                         &frontiers[0], count * sizeof(uint)) != OK) {
+            frontiers.clear();
+            return POSINDEX_UNKNOWN;
+        }
+    }
+    return frontiers[g - cache->first];
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndexBuilder::Start():
+//      Starts building the position index of a database. Games must
+//      be added in ascending order, starting with game 0.
+errorT
+PosIndexBuilder::Start (const char * baseName, uint maxPly)
+{
+    Abort();
+    fileNameT fname;
+    strCopy (fname, baseName);
+    strAppend (fname, POSINDEX_SUFFIX);
+    errorT err = File.Start (fname, sizeof(posIndexHeaderT),
+                             sizeof(posIndexDirT), POSINDEX_FENCE_STEP);
+    if (err != OK) { return err; }
+    MaxPly = maxPly;
+    Frontier.clear();
+    Started = true;
+    return OK;
+}
+
+void
+PosIndexBuilder::Abort ()
+{
+    if (Started) {
+        File.Abort();
+        Frontier.clear();
+        Started = false;
+    }
+}
+
+errorT
+PosIndexBuilder::AddKey (uint key, gameNumberT gameId, uint ply)
+{
+    posIndexRecordT record;
+    record.key = key;
+    record.game = gameId | (std::min (ply, 255U) << 24);
+    return File.AddRecord (key, &record, sizeof(record));
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndexBuilder::AddGame():
+//      Adds the main line positions of a game, or marks the game as
+//      unknown if it is NULL (e.g. because it could not be decoded).
+errorT
+PosIndexBuilder::AddGame (gameNumberT gameId, Game * game)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    if (gameId != Frontier.size()  ||  gameId >= (1 << 24)) {
+        return ERROR_CorruptData;
+    }
+    if (game == NULL) {
+        Frontier.push_back (POSINDEX_UNKNOWN);
+        return OK;
+    }
+    PrepareGame (game, MaxPly, &Prepared);
+    return AddGame (gameId, &Prepared);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndexBuilder::AddGame():
+//      Adds the main line positions of a game prepared with
+//      PrepareGame() for the same maximum ply.
+errorT
+PosIndexBuilder::AddGame (gameNumberT gameId, const posIndexGameT * prepared)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    if (gameId != Frontier.size()  ||  gameId >= (1 << 24)) {
+        return ERROR_CorruptData;
+    }
+    for (uint i = 0; i < prepared->keys.size(); i++) {
+        errorT err = AddKey (prepared->keys[i], gameId, prepared->plies[i]);
+        if (err != OK) { return err; }
+    }
+    Frontier.push_back (prepared->frontier);
+    return OK;
+}
+
+// Only the first occurrence of a position in a game is indexed:
+static inline void
+addFirstKey (posIndexGameT * prepared, uint key, uint ply)
+{
+    for (uint i = 0; i < prepared->keys.size(); i++) {
+        if (prepared->keys[i] == key) { return; }
+    }
+    prepared->keys.push_back (key);
+    prepared->plies.push_back (ply);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndexBuilder::PrepareGame():
+//      Collects the main line positions of a game up to maxPly and
+//      its frontier.
+void
+PosIndexBuilder::PrepareGame (Game * game, uint maxPly,
+                              posIndexGameT * prepared)
+{
+    prepared->keys.clear();
+    prepared->plies.clear();
+    game->MoveToPly (0);
+    uint frontier = POSINDEX_COVERED;
+    for (uint ply = 0; ; ply++) {
+        Position * pos = game->GetCurrentPos();
+        addFirstKey (prepared, PosIndex::ExactKey (pos), ply);
+        addFirstKey (prepared, PosIndex::PawnKey (pos), ply);
+        if (ply == maxPly) {
+            frontier = PosIndex::MakeFrontier (pos);
+            if (game->MoveForward() != OK) { frontier = POSINDEX_COVERED; }
+            break;
+        }
+        if (game->MoveForward() != OK) { break; }
+    }
+    prepared->frontier = frontier;
+}
+
+static inline bool
+recordLess (const posIndexRecordT & a, const posIndexRecordT & b)
+{
+    if (a.key != b.key) { return a.key < b.key; }
+    return (a.game & 0xFFFFFF) < (b.game & 0xFFFFFF);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// PosIndexBuilder::Finish():
+//      Sorts the partitions and writes the index file.
+errorT
+PosIndexBuilder::Finish (uint gfileSize)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    posIndexHeaderT header;
+    memset (&header, 0, sizeof(header));
+    memcpy (header.magic, POSINDEX_MAGIC, sizeof(header.magic));
+    header.version = POSINDEX_VERSION;
+    header.numGames = Frontier.size();
+    header.gfileSize = gfileSize;
+    header.maxPly = MaxPly;
+    errorT err = OK;
+    if (header.numGames > 0) {
+        err = File.WriteData (&Frontier[0], header.numGames * sizeof(uint));
+    }
+
+    std::vector<posIndexRecordT> records;
+    std::vector<byte> postings;
+    for (uint p = 0; err == OK  &&  p < SORTEDFILE_NUM_PARTITIONS; p++) {
+        err = File.ReadPartition (p, &records);
+        std::sort (records.begin(), records.end(), recordLess);
+        uint count = records.size();
+        for (uint i = 0; err == OK  &&  i < count; ) {
+            posIndexDirT dir;
+            dir.key = records[i].key;
+            dir.offset = header.postingBytes;
+            postings.clear();
+            gameNumberT last = 0;
+            for (; i < count  &&  records[i].key == dir.key; i++) {
+                gameNumberT gameId = records[i].game & 0xFFFFFF;
+                uint delta = gameId - last;
+                last = gameId;
+                while (delta >= 0x80) {
+                    postings.push_back ((byte) (delta | 0x80));
+                    delta >>= 7;
+                }
+                postings.push_back ((byte) delta);
+                postings.push_back ((byte) (records[i].game >> 24));
+            }
+            err = File.WriteData (&postings[0], postings.size());
+            if (err == OK) { err = File.AddEntry (dir.key, &dir); }
+            header.postingBytes += postings.size();
+        }
+        records.clear();
+    }
+
+    header.numKeys = File.GetNumEntries();
+    if (err == OK) { err = File.Finish (&header); }
+    Abort();
+    return err;
+}
+
+//////////////////////////////////////////////////////////////////////
+//  EOF: posindex.cpp
+//////////////////////////////////////////////////////////////////////
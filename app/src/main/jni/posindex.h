@@ -0,0 +1,132 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       posindex.h
+//              Position hash index (PosIndex) for board searches
+//
+//  The position index maps the hash of every position reached in the
+//  main line of a game (up to a configurable ply depth) to a posting
+//  list of (gameId, ply). A board search looks up the hash of the
+//  searched position and only has to decode the games in the posting
+//  list instead of every game in the database.
+//
+//  For games that are longer than the indexed depth, the position at
+//  the last indexed ply is kept as a "frontier": piece and pawn counts
+//  can only decrease and pawns never return to their home square, so
+//  the frontier tells whether the searched position can still occur
+//  later in the game. Only those games need a full decode.
+//
+//////////////////////////////////////////////////////////////////////
+
+#ifndef JNI_POSINDEX_H
+#define JNI_POSINDEX_H
+
+#include "scid/common.h"
+#include "scid/error.h"
+#include "scid/game.h"
+#include "scid/position.h"
+#include "sortedfile.h"
+
+#include <vector>
+
+const char POSINDEX_SUFFIX[] = ".spi";
+const char POSINDEX_MAGIC[8] = "Scid.pi";
+const uint POSINDEX_VERSION = 2;
+
+// Default number of plies indexed for each game:
+const uint POSINDEX_DEFAULT_MAX_PLY = 24;
+
+// Frontier value of a game that is completely covered by the index,
+// and of a game that could not be decoded and must always be searched:
+const uint POSINDEX_COVERED = 0xFFFFFFFFU;
+const uint POSINDEX_UNKNOWN = 0xFFFFFFFEU;
+
+// One key out of POSINDEX_FENCE_STEP is kept in memory for lookups:
+const uint POSINDEX_FENCE_STEP = 256;
+
+// Number of game frontiers read at once during a search:
+const uint POSINDEX_FRONTIER_CHUNK = 4096;
+
+struct posIndexHeaderT {
+    char magic[8];
+    uint version;
+    uint numGames;       // number of games in the index
+    uint gfileSize;      // size of the game file the index was built from
+    uint maxPly;         // plies indexed for each game
+    uint numKeys;        // number of distinct position keys
+    uint postingBytes;   // size of the encoded posting lists
+};
+
+// A posting: the game number and the first ply (capped at 255) at
+// which the position occurs in this game.
+struct posIndexPostingT {
+    gameNumberT gameId;
+    uint ply;
+};
+
+// The frontiers read by one search. Each search has its own cache, so
+// that several searches can use the same PosIndex at the same time.
+struct posIndexFrontierCacheT {
+    gameNumberT first;   // first game in frontiers
+    std::vector<uint> frontiers;
+    posIndexFrontierCacheT() : first(0) {}
+};
+
+class PosIndex
+{
+  private:
+    SortedFile      File;
+    posIndexHeaderT Header;
+    uint            FrontierPos;   // file positions of the sections
+    uint            PostingsPos;
+
+  public:
+
+    errorT Open (const char * baseName, uint numGames, uint gfileSize);
+    void   Close ();
+    bool   IsOpen () { return File.IsOpen(); }
+    uint   GetMaxPly () { return Header.maxPly; }
+
+    errorT Lookup (uint key, std::vector<posIndexPostingT> * postings);
+    uint   GetFrontier (gameNumberT g, posIndexFrontierCacheT * cache);
+
+    static uint ExactKey (Position * pos);
+    static uint PawnKey (Position * pos);
+    static uint MakeFrontier (Position * pos);
+    static bool FrontierMayMatch (uint frontier, Position * pos);
+    static uint MinPly (Position * pos);
+};
+
+// The positions of a game to add to the index. They can be prepared
+// apart from the builder, e.g. by several threads at the same time.
+struct posIndexGameT {
+    std::vector<uint> keys;   // the first occurrence of each key
+    std::vector<uint> plies;  // the ply of each key
+    uint frontier;
+};
+
+class PosIndexBuilder
+{
+  private:
+    SortedFileBuilder File;
+    uint      MaxPly;
+    std::vector<uint> Frontier;
+    posIndexGameT Prepared;        // the positions of the current game
+    bool      Started;
+
+    errorT AddKey (uint key, gameNumberT gameId, uint ply);
+
+  public:
+    PosIndexBuilder() : Started(false) {}
+    ~PosIndexBuilder() { Abort(); }
+
+    errorT Start (const char * baseName, uint maxPly);
+    errorT AddGame (gameNumberT gameId, Game * game);
+    errorT AddGame (gameNumberT gameId, const posIndexGameT * prepared);
+    errorT Finish (uint gfileSize);
+
+    static void PrepareGame (Game * game, uint maxPly,
+                             posIndexGameT * prepared);
+    void   Abort ();
+};
+
+#endif  // JNI_POSINDEX_H
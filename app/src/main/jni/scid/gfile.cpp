@@ -152,7 +152,9 @@ GFile::Open (const char * filename, fileModeT fmode, const char * suffix)
 
     CurrentBlock->blockNum = -1;
     Offset = 0;
-    uint fsize = fileSize (filename, suffix);
+    // A mapped file may be a region of another file:
+    uint fsize = (Handle->GetMappedData() != NULL) ? Handle->GetMappedSize()
+                                                    : fileSize (filename, suffix);
     NumBlocks = (fsize + GF_BLOCKSIZE - 1) / GF_BLOCKSIZE;
     if (NumBlocks > 0) {
         LastBlockSize = (fsize % GF_BLOCKSIZE);
@@ -66,6 +66,18 @@ class GFile
     uint      GetNumReads ()   { return Reads; }
     uint      GetNumWrites ()  { return Writes; }
 
+    // The contents of a game file opened read-only, or NULL if the
+    // file could not be mapped into memory:
+    const byte * GetMappedData() {
+        return (Handle != NULL ? Handle->GetMappedData() : NULL);
+    }
+    uint      GetMappedSize() {
+        return (Handle != NULL ? Handle->GetMappedSize() : 0);
+    }
+    void      Advise (int advice) {
+        if (Handle != NULL) { Handle->Advise (advice); }
+    }
+
     errorT    Create (const char * filename, fileModeT fmode);
     errorT    CreateMemoryOnly ();
     errorT    Open (const char * filename, fileModeT fmode, const char * suffix);
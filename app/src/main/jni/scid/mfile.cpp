@@ -16,6 +16,28 @@
 #include "mfile.h"
 #include "misc.h"
 
+#include <fcntl.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <map>
+#include <string>
+
+// A region of another file that is read in place of a file:
+struct mfileRegionT {
+    int  fd;
+    uint offset;
+    uint length;
+};
+
+// The registered regions by file name, see MFile::RegisterRegion():
+static std::map<std::string, mfileRegionT> Regions;
+static pthread_mutex_t RegionsLock = PTHREAD_MUTEX_INITIALIZER;
+
 void
 MFile::Init ()
 {
@@ -26,6 +48,7 @@ MFile::Init ()
     Location = 0;
     Data = NULL;
     CurrentPtr = NULL;
+    MapOffset = 0;
     FileBuffer = NULL;
     FileName = NULL;
 }
@@ -62,6 +85,12 @@ MFile::SetBufferSize (uint bufsize)
 errorT
 MFile::Seek (uint position)
 {
+    if (Type == MFILE_MAPPED  ||  Type == MFILE_VIEW) {
+        if (position > Capacity) { return ERROR_FileSeek; }
+        CurrentPtr = &(Data[position]);
+        Location = position;
+        return OK;
+    }
     if (Type == MFILE_MEMORY) {
         while (position >= Capacity) { Extend(); }
         CurrentPtr = &(Data[position]);
@@ -90,6 +119,10 @@ errorT
 MFile::Open (const char * name, fileModeT fmode)
 {
     ASSERT (Handle == NULL);
+    // Read-only files are mapped, so that they are read from the page
+    // cache without copying. Empty files and files that do not fit into
+    // the address space are read as regular files.
+    if (fmode == FMODE_ReadOnly  &&  OpenMapped (name) == OK) { return OK; }
     char * modeStr = NULL;
     switch (fmode) {
         case FMODE_ReadOnly:   modeStr = (char *) "rb";  break;
@@ -108,6 +141,197 @@ MFile::Open (const char * name, fileModeT fmode)
     return OK;
 }
 
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// MFile::OpenMapped():
+//      Maps a file, or the region registered for it, into memory for
+//      reading. The mapping is advised for sequential reading, which
+//      is how files are read through an MFile.
+//
+errorT
+MFile::OpenMapped (const char * name)
+{
+    ASSERT (Handle == NULL);
+    uint offset = 0;
+    uint length = 0;
+    int fd = OpenRegion (name, &offset, &length);
+    if (fd < 0) {
+        fd = open (name, O_RDONLY);
+        if (fd < 0) { return ERROR_FileOpen; }
+        struct stat st;
+        if (fstat (fd, &st) == 0  &&  st.st_size == (uint) st.st_size) {
+            length = st.st_size;
+        }
+    }
+    // The mapping has to start at a page boundary:
+    uint mapOffset = offset % sysconf (_SC_PAGESIZE);
+    void * data = MAP_FAILED;
+    if (length > 0) {
+        data = mmap (NULL, length + mapOffset, PROT_READ, MAP_SHARED, fd,
+                     offset - mapOffset);
+    }
+    // The mapping stays valid after closing the file descriptor:
+    close (fd);
+    if (data == MAP_FAILED) { return ERROR_FileOpen; }
+    Type = MFILE_MAPPED;
+    FileMode = FMODE_ReadOnly;
+    FileName = strDuplicate (name);
+    Data = (byte *) data + mapOffset;
+    MapOffset = mapOffset;
+    Capacity = length;
+    CurrentPtr = Data;
+    Location = 0;
+    Advise (MADV_SEQUENTIAL);
+    return OK;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// MFile::OpenView():
+//      Reads the bytes of a buffer, e.g. a part of a mapped file, which
+//      must stay valid until the file is closed. The name is only used
+//      for messages.
+//
+errorT
+MFile::OpenView (const char * name, const byte * data, uint length)
+{
+    ASSERT (Handle == NULL);
+    Type = MFILE_VIEW;
+    FileMode = FMODE_ReadOnly;
+    FileName = strDuplicate (name);
+    Data = (byte *) data;
+    Capacity = length;
+    CurrentPtr = Data;
+    Location = 0;
+    return OK;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// MFile::Advise():
+//      Tells the kernel how the mapped file will be accessed, one of
+//      the MADV_* values of madvise().
+//
+void
+MFile::Advise (int advice)
+{
+    if (Type != MFILE_MAPPED) { return; }
+    madvise (Data - MapOffset, Capacity + MapOffset, advice);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// MFile::RegisterRegion():
+//      Reads the named file from the length bytes at offset of the
+//      open file fd from now on. The descriptor is duplicated, so the
+//      caller may close it.
+//
+void
+MFile::RegisterRegion (const char * name, int fd, uint offset, uint length)
+{
+    mfileRegionT region;
+    region.fd = dup (fd);
+    region.offset = offset;
+    region.length = length;
+    if (region.fd < 0) { return; }
+    pthread_mutex_lock (&RegionsLock);
+    std::map<std::string, mfileRegionT>::iterator it = Regions.find (name);
+    if (it != Regions.end()) { close (it->second.fd); }
+    Regions[name] = region;
+    pthread_mutex_unlock (&RegionsLock);
+}
+
+bool
+MFile::IsRegion (const char * name)
+{
+    pthread_mutex_lock (&RegionsLock);
+    bool found = Regions.find (name) != Regions.end();
+    pthread_mutex_unlock (&RegionsLock);
+    return found;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// MFile::OpenRegion():
+//      Returns a new descriptor of the file holding the region of the
+//      named file, positioned at the start of the region, or -1 if the
+//      file is not read from a region. The file is opened again rather
+//      than the descriptor duplicated, so that its position is not
+//      shared.
+//
+int
+MFile::OpenRegion (const char * name, uint * offset, uint * length)
+{
+    int fd = -1;
+    pthread_mutex_lock (&RegionsLock);
+    std::map<std::string, mfileRegionT>::iterator it = Regions.find (name);
+    if (it != Regions.end()) {
+        char path [32];
+        snprintf (path, sizeof(path), "/proc/self/fd/%d", it->second.fd);
+        fd = open (path, O_RDONLY);
+        *offset = it->second.offset;
+        *length = it->second.length;
+    }
+    pthread_mutex_unlock (&RegionsLock);
+    if (fd >= 0  &&  lseek (fd, *offset, SEEK_SET) != (off_t) *offset) {
+        close (fd);
+        fd = -1;
+    }
+    return fd;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// MFile::ExtractRegion():
+//      Copies the region to the named file, which is read instead of
+//      the region from then on, so that it can be modified. The file
+//      is written under a temporary name and renamed when complete.
+//      Does nothing if the file is not read from a region.
+//
+errorT
+MFile::ExtractRegion (const char * name)
+{
+    uint offset, length;
+    int in = OpenRegion (name, &offset, &length);
+    if (in < 0) { return IsRegion (name) ? ERROR_FileOpen : OK; }
+    fileNameT tmpName;
+    if (snprintf (tmpName, sizeof(tmpName), "%s.tmp", name)
+            >= (int) sizeof(tmpName)) {
+        close (in);
+        return ERROR_FileOpen;
+    }
+    FILE * out = fopen (tmpName, "wb");
+    errorT err = (out != NULL) ? OK : ERROR_FileOpen;
+    const uint bufferSize = 64 * 1024;
+    char * buffer = new char [bufferSize];
+    for (uint done = 0; err == OK  &&  done < length; ) {
+        uint count = length - done < bufferSize ? length - done : bufferSize;
+        ssize_t n = pread (in, buffer, count, offset + done);
+        if (n <= 0) {
+            err = ERROR_FileRead;
+        } else if (fwrite (buffer, 1, n, out) != (size_t) n) {
+            err = ERROR_FileWrite;
+        } else {
+            done += n;
+        }
+    }
+    delete[] buffer;
+    close (in);
+    if (out != NULL) {
+        if (fflush (out) != 0  ||  fsync (fileno (out)) != 0) {
+            if (err == OK) { err = ERROR_FileWrite; }
+        }
+        if (fclose (out) != 0  &&  err == OK) { err = ERROR_FileWrite; }
+    }
+    if (err == OK  &&  rename (tmpName, name) != 0) { err = ERROR_FileWrite; }
+    if (err != OK) {
+        remove (tmpName);
+        return err;
+    }
+    pthread_mutex_lock (&RegionsLock);
+    std::map<std::string, mfileRegionT>::iterator it = Regions.find (name);
+    if (it != Regions.end()) {
+        close (it->second.fd);
+        Regions.erase (it);
+    }
+    pthread_mutex_unlock (&RegionsLock);
+    return OK;
+}
+
 errorT
 MFile::Create (const char * name, fileModeT fmode)
 {
@@ -130,6 +354,17 @@ MFile::Create (const char * name, fileModeT fmode)
 errorT
 MFile::Close ()
 {
+    if (Type == MFILE_MAPPED) {
+        munmap (Data - MapOffset, Capacity + MapOffset);
+        if (FileName != NULL) { delete[] FileName; }
+        Init();
+        return OK;
+    }
+    if (Type == MFILE_VIEW) {
+        if (FileName != NULL) { delete[] FileName; }
+        Init();
+        return OK;
+    }
     if (Type == MFILE_MEMORY) {
         if (Data != NULL) { delete[] Data; }
         Init();
@@ -175,7 +410,17 @@ errorT
 MFile::ReadNBytes (char * str, uint length)
 {
     ASSERT (FileMode != FMODE_WriteOnly);
-    if (Type != MFILE_REGULAR) {
+    if (Type == MFILE_MAPPED  ||  Type == MFILE_VIEW) {
+        uint available = Capacity - Location;
+        if (length > available) {
+            // Like the other file types, fill the rest with EOF:
+            memset (str + available, EOF, length - available);
+            length = available;
+        }
+        memcpy (str, CurrentPtr, length);
+        CurrentPtr += length;
+        Location += length;
+    } else if (Type != MFILE_REGULAR) {
         while (length-- > 0) {
             *str++ = ReadOneByte ();
         }
@@ -24,7 +24,7 @@
 #include "error.h"
 
 enum mfileT {
-    MFILE_REGULAR = 0, MFILE_MEMORY
+    MFILE_REGULAR = 0, MFILE_MEMORY, MFILE_MAPPED, MFILE_VIEW
 };
 
 class MFile
@@ -35,11 +35,12 @@ class MFile
     mfileT      Type;
     char *      FileName;
 
-    // The next few fields are used for in-memory files.
+    // The next few fields are used for in-memory and mapped files.
     uint        Capacity;
     uint        Location;
     byte *      Data;
     byte *      CurrentPtr;
+    uint        MapOffset;   // Offset of Data in the mapped pages.
 
     char *      FileBuffer;  // Only for files with unusual buffer size.
 
@@ -48,7 +49,9 @@ class MFile
   public:
     MFile() { Init(); }
     ~MFile() {
-        if (Handle != NULL) { Close(); }
+        if (Handle != NULL  ||  Type == MFILE_MAPPED  ||  Type == MFILE_VIEW) {
+            Close();
+        }
         if (Data != NULL) { delete[] Data; }
         if (FileBuffer != NULL) { delete[] FileBuffer; }
         if (FileName != NULL) { delete[] FileName; }
@@ -60,6 +63,8 @@ class MFile
 
     errorT Create (const char * name, fileModeT fmode);
     errorT Open  (const char * name, fileModeT fmode);
+    errorT OpenMapped (const char * name);
+    errorT OpenView (const char * name, const byte * data, uint length);
     void   CreateMemory () { Close(); Init(); }
     errorT Close ();
 
@@ -71,6 +76,22 @@ class MFile
     errorT Flush ();
     inline bool EndOfFile();
 
+    // Access to the file contents of read-only files, which are mapped
+    // into memory if possible. Returns NULL if the file is not mapped.
+    const byte * GetMappedData() { return (Type == MFILE_MAPPED ? Data : NULL); }
+    uint   GetMappedSize() { return (Type == MFILE_MAPPED ? Capacity : 0); }
+    void   Advise (int advice);
+
+    // A file can be read from a region of another file instead, like an
+    // uncompressed asset inside the APK of an app. The region is read
+    // in place of the named file until it is extracted to that file.
+    static void   RegisterRegion (const char * name, int fd, uint offset,
+                                  uint length);
+    static bool   IsRegion (const char * name);
+    static int    OpenRegion (const char * name, uint * offset,
+                              uint * length);
+    static errorT ExtractRegion (const char * name);
+
     errorT        WriteNBytes (const char * str, uint length);
     errorT        ReadNBytes (char * str, uint length);
     errorT        ReadLine (char * str, uint maxLength);
@@ -103,6 +124,8 @@ MFile::EndOfFile ()
 {
     switch (Type) {
     case MFILE_MEMORY:
+    case MFILE_MAPPED:
+    case MFILE_VIEW:
         return (Location >= Capacity);
     case MFILE_REGULAR:
         return feof(Handle);
@@ -129,7 +152,7 @@ inline int
 MFile::ReadOneByte ()
 {
     ASSERT (FileMode != FMODE_WriteOnly);
-    if (Type == MFILE_MEMORY) {
+    if (Type != MFILE_REGULAR) {
         if (Location >= Capacity) { return EOF; }
         byte value = *CurrentPtr;
         Location++;
@@ -15,10 +15,12 @@
 #include "common.h"
 #include "error.h"
 #include "namebase.h"
+#include "mfile.h"
 #include "misc.h"
 
 #include <stdio.h>
 #include <string.h>
+#include <unistd.h>
 
 
 //~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
@@ -103,7 +105,15 @@ NameBase::OpenNameFile (const char * suffix)
     strcpy (fname, Fname);
     strcat (fname, suffix);
 
-    if ((FilePtr = fopen (fname, "rb")) == NULL) {
+    // The name file may be read from a region of another file:
+    uint offset, length;
+    int fd = MFile::OpenRegion (fname, &offset, &length);
+    if (fd >= 0) {
+        if ((FilePtr = fdopen (fd, "rb")) == NULL) { close (fd); }
+    } else {
+        FilePtr = fopen (fname, "rb");
+    }
+    if (FilePtr == NULL) {
         return ERROR_FileOpen;
     }
 
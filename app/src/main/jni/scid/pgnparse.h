@@ -101,6 +101,9 @@ class PgnParser
     void   SetEndOfInputWarnings (bool b) { EndOfInputWarnings = b; }
     void   SetResultWarnings (bool b) { ResultWarnings = b; }
     void   SetNewlinesToSpaces (bool b) { NewlinesToSpaces = b; }
+    // For input that starts in the middle of a file, the number of
+    // lines before it:
+    void   SetLineCounter (uint lines) { LineCounter = lines; }
 
     void   AddIgnoredTag (const char * tag);
     void   ClearIgnoredTags ();
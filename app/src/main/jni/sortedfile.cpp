@@ -0,0 +1,272 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       sortedfile.cpp
+//              SortedFile and SortedFileBuilder methods
+//
+//////////////////////////////////////////////////////////////////////
+
+#include "sortedfile.h"
+
+#include <fcntl.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <cstring>
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortedFile::Open():
+//      Opens a sorted file and reads its header, which must start with
+//      the magic. The entries can be looked up after ReadFences().
+errorT
+SortedFile::Open (const char * fileName, void * header, uint headerSize,
+                  const char * magic)
+{
+    Close();
+    Handle = open (fileName, O_RDONLY);
+    if (Handle < 0) { return ERROR_FileOpen; }
+    if (ReadAt (0, header, headerSize) != OK
+            ||  memcmp (header, magic, 8) != 0) {
+        Close();
+        return ERROR_BadMagic;
+    }
+    EntriesPos = headerSize;
+    NumEntries = 0;
+    return OK;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortedFile::ReadFences():
+//      Reads the fences of the entries, which follow the header and
+//      dataBytes of data. Closes the file if they cannot be read.
+errorT
+SortedFile::ReadFences (uint dataBytes, uint numEntries, uint entrySize,
+                        uint fenceStep)
+{
+    if (Handle < 0) { return ERROR_FileNotOpen; }
+    EntriesPos += dataBytes;
+    NumEntries = numEntries;
+    EntrySize = entrySize;
+    FenceStep = fenceStep;
+    uint numFences = (numEntries + fenceStep - 1) / fenceStep;
+    Fences.resize (numFences);
+    if (numFences > 0
+            &&  ReadAt (EntriesPos + numEntries * entrySize, &Fences[0],
+                        numFences * sizeof(uint)) != OK) {
+        Close();
+        return ERROR_FileRead;
+    }
+    return OK;
+}
+
+void
+SortedFile::Close ()
+{
+    if (Handle >= 0) {
+        close (Handle);
+        Handle = -1;
+    }
+    Fences.clear();
+}
+
+errorT
+SortedFile::ReadAt (uint pos, void * data, uint length)
+{
+    byte * p = (byte *) data;
+    while (length > 0) {
+        ssize_t n = pread (Handle, p, length, pos);
+        if (n <= 0) { return ERROR_FileRead; }
+        p += n;
+        pos += n;
+        length -= n;
+    }
+    return OK;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortedFile::FirstEntry():
+//      Returns the first entry of the block where the entries of the
+//      key start: the last block whose fence is less than the key, or
+//      the first block. They may continue in the following blocks.
+uint
+SortedFile::FirstEntry (uint key)
+{
+    std::vector<uint>::iterator fence =
+        std::lower_bound (Fences.begin(), Fences.end(), key);
+    if (fence == Fences.begin()) { return 0; }
+    return (uint) (fence - Fences.begin() - 1) * FenceStep;
+}
+
+errorT
+SortedFile::ReadEntries (uint first, uint count, void * entries)
+{
+    if (Handle < 0) { return ERROR_FileNotOpen; }
+    if (first + count > NumEntries) { return ERROR_CorruptData; }
+    return ReadAt (EntriesPos + first * EntrySize, entries, count * EntrySize);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortedFileBuilder::Start():
+//      Starts building a sorted file. The file is written under a
+//      temporary name and renamed by Finish() when complete.
+errorT
+SortedFileBuilder::Start (const char * fileName, uint headerSize,
+                          uint entrySize, uint fenceStep)
+{
+    Abort();
+    int len = snprintf (FileName, sizeof(FileName), "%s", fileName);
+    if (len < 0  ||  len >= (int) sizeof(FileName)) { return ERROR_FileOpen; }
+    HeaderSize = headerSize;
+    EntrySize = entrySize;
+    FenceStep = fenceStep;
+    for (uint i = 0; i < SORTEDFILE_NUM_PARTITIONS; i++) { Partitions[i] = NULL; }
+    Out = Entries = NULL;
+    NumEntries = 0;
+    Fences.clear();
+    Started = true;
+
+    fileNameT fname;
+    for (uint i = 0; i < SORTEDFILE_NUM_PARTITIONS; i++) {
+        char suffix [8];
+        snprintf (suffix, sizeof(suffix), ".%02u", i);
+        if (TempName (fname, suffix)) {
+            Partitions[i] = fopen (fname, "w+b");
+        }
+        if (Partitions[i] == NULL) {
+            Abort();
+            return ERROR_FileOpen;
+        }
+    }
+    if (TempName (fname, ".tmp")) { Out = fopen (fname, "wb"); }
+    if (TempName (fname, ".dir")) { Entries = fopen (fname, "w+b"); }
+    if (Out == NULL  ||  Entries == NULL) {
+        Abort();
+        return ERROR_FileOpen;
+    }
+    // The header is written by Finish(), when it is complete:
+    std::vector<byte> header (headerSize);
+    if (fwrite (&header[0], headerSize, 1, Out) != 1) {
+        Abort();
+        return ERROR_FileWrite;
+    }
+    return OK;
+}
+
+// Returns false if the name does not fit into a fileNameT.
+bool
+SortedFileBuilder::TempName (char * name, const char * suffix)
+{
+    int len = snprintf (name, sizeof(fileNameT), "%s%s", FileName, suffix);
+    return len >= 0  &&  len < (int) sizeof(fileNameT);
+}
+
+void
+SortedFileBuilder::Abort ()
+{
+    if (not Started) { return; }
+    fileNameT fname;
+    for (uint i = 0; i < SORTEDFILE_NUM_PARTITIONS; i++) {
+        if (Partitions[i] != NULL) { fclose (Partitions[i]); }
+        char suffix [8];
+        snprintf (suffix, sizeof(suffix), ".%02u", i);
+        if (TempName (fname, suffix)) { remove (fname); }
+    }
+    if (Out != NULL) { fclose (Out); }
+    if (Entries != NULL) { fclose (Entries); }
+    if (TempName (fname, ".tmp")) { remove (fname); }
+    if (TempName (fname, ".dir")) { remove (fname); }
+    Fences.clear();
+    Started = false;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortedFileBuilder::AddRecord():
+//      Writes a record to the partition of its key. The records of a
+//      partition are read back with ReadPartition().
+errorT
+SortedFileBuilder::AddRecord (uint key, const void * record, uint length)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    FILE * fp = Partitions[key >> (32 - SORTEDFILE_PARTITION_BITS)];
+    return fwrite (record, length, 1, fp) == 1 ? OK : ERROR_FileWrite;
+}
+
+uint
+SortedFileBuilder::PartitionSize (uint partition)
+{
+    if (not Started) { return 0; }
+    long size = ftell (Partitions[partition]);
+    return size > 0 ? (uint) size : 0;
+}
+
+errorT
+SortedFileBuilder::ReadPartition (uint partition, void * records,
+                                  uint length)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    FILE * fp = Partitions[partition];
+    rewind (fp);
+    return fread (records, length, 1, fp) == 1 ? OK : ERROR_FileRead;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortedFileBuilder::WriteData():
+//      Appends to the data between the header and the entries.
+errorT
+SortedFileBuilder::WriteData (const void * data, uint length)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    if (length == 0) { return OK; }
+    return fwrite (data, length, 1, Out) == 1 ? OK : ERROR_FileWrite;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortedFileBuilder::AddEntry():
+//      Appends an entry, entries must be added in ascending order of
+//      their keys.
+errorT
+SortedFileBuilder::AddEntry (uint key, const void * entry)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    if (NumEntries % FenceStep == 0) { Fences.push_back (key); }
+    NumEntries++;
+    return fwrite (entry, EntrySize, 1, Entries) == 1 ? OK : ERROR_FileWrite;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortedFileBuilder::Finish():
+//      Appends the entries and the fences, writes the header and
+//      renames the file. The file is removed if anything fails.
+errorT
+SortedFileBuilder::Finish (const void * header)
+{
+    if (not Started) { return ERROR_FileNotOpen; }
+    errorT err = OK;
+    rewind (Entries);
+    char buffer [8192];
+    size_t n;
+    while (err == OK  &&  (n = fread (buffer, 1, sizeof(buffer), Entries)) > 0) {
+        if (fwrite (buffer, 1, n, Out) != n) { err = ERROR_FileWrite; }
+    }
+    if (err == OK  &&  Fences.size() > 0
+            &&  fwrite (&Fences[0], sizeof(uint), Fences.size(), Out)
+                != Fences.size()) {
+        err = ERROR_FileWrite;
+    }
+    if (err == OK  &&  (fseek (Out, 0, SEEK_SET) != 0
+                        ||  fwrite (header, HeaderSize, 1, Out) != 1)) {
+        err = ERROR_FileWrite;
+    }
+    if (fclose (Out) != 0  &&  err == OK) { err = ERROR_FileWrite; }
+    Out = NULL;
+    fileNameT tmpName;
+    if (err == OK  &&  (not TempName (tmpName, ".tmp")
+                        ||  rename (tmpName, FileName) != 0)) {
+        err = ERROR_FileWrite;
+    }
+    Abort();
+    return err;
+}
+
+//////////////////////////////////////////////////////////////////////
+//  EOF: sortedfile.cpp
+//////////////////////////////////////////////////////////////////////
@@ -0,0 +1,105 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       sortedfile.h
+//              Sorted entry files (SortedFile) for the local indexes
+//
+//  A sorted file holds fixed size entries sorted by a key, which are
+//  looked up through fences kept in memory: the key of one entry out
+//  of a fence step. It is built from records that are written to
+//  partitions by the high bits of their key, so that only one
+//  partition has to be sorted in memory at a time.
+//
+//  File layout (host byte order, the file is a local cache that is
+//  rebuilt whenever it is missing or out of date):
+//
+//    header [headerSize]             starts with an 8 byte magic
+//    data [dataBytes]                written by the user of the file
+//    entries [numEntries]            sorted by key
+//    uint fences [(numEntries + fenceStep - 1) / fenceStep]
+//
+//////////////////////////////////////////////////////////////////////
+
+#ifndef JNI_SORTEDFILE_H
+#define JNI_SORTEDFILE_H
+
+#include "scid/common.h"
+#include "scid/error.h"
+
+#include <stdio.h>
+#include <vector>
+
+// Number of partitions (by the high bits of the key) used while
+// building:
+const uint SORTEDFILE_PARTITION_BITS = 6;
+const uint SORTEDFILE_NUM_PARTITIONS = 1 << SORTEDFILE_PARTITION_BITS;
+
+class SortedFile
+{
+  private:
+    int       Handle;
+    uint      EntriesPos;
+    uint      NumEntries;
+    uint      EntrySize;
+    uint      FenceStep;
+    std::vector<uint> Fences;
+
+  public:
+    SortedFile() : Handle(-1) {}
+    ~SortedFile() { Close(); }
+
+    errorT Open (const char * fileName, void * header, uint headerSize,
+                 const char * magic);
+    errorT ReadFences (uint dataBytes, uint numEntries, uint entrySize,
+                       uint fenceStep);
+    void   Close ();
+    bool   IsOpen () { return Handle >= 0; }
+
+    errorT ReadAt (uint pos, void * data, uint length);
+    uint   FirstEntry (uint key);
+    errorT ReadEntries (uint first, uint count, void * entries);
+};
+
+class SortedFileBuilder
+{
+  private:
+    fileNameT FileName;
+    uint      HeaderSize;
+    uint      EntrySize;
+    uint      FenceStep;
+    FILE *    Partitions [SORTEDFILE_NUM_PARTITIONS];
+    FILE *    Out;             // the header and the data
+    FILE *    Entries;         // appended to Out when finished
+    uint      NumEntries;
+    std::vector<uint> Fences;
+    bool      Started;
+
+    bool   TempName (char * name, const char * suffix);
+    errorT ReadPartition (uint partition, void * records, uint length);
+    uint   PartitionSize (uint partition);
+
+  public:
+    SortedFileBuilder() : Started(false) {}
+    ~SortedFileBuilder() { Abort(); }
+
+    errorT Start (const char * fileName, uint headerSize, uint entrySize,
+                  uint fenceStep);
+    errorT AddRecord (uint key, const void * record, uint length);
+    errorT WriteData (const void * data, uint length);
+    errorT AddEntry (uint key, const void * entry);
+    uint   GetNumEntries () { return NumEntries; }
+    errorT Finish (const void * header);
+    void   Abort ();
+
+    // Reads the records of a partition, which were all added with the
+    // size of T:
+    template <class T>
+    errorT ReadPartition (uint partition, std::vector<T> * records)
+    {
+        records->resize (PartitionSize (partition) / sizeof(T));
+        if (records->empty()) { return OK; }
+        return ReadPartition (partition, &(*records)[0],
+                              records->size() * sizeof(T));
+    }
+};
+
+#endif  // JNI_SORTEDFILE_H
@@ -0,0 +1,191 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       sortindex.cpp
+//              SortIndex methods
+//
+//  File layout (host byte order, the file is a local cache that is
+//  rebuilt whenever it is missing or out of date):
+//
+//    sortIndexHeaderT
+//    uint order [numGames]           game numbers in sorted order
+//
+//////////////////////////////////////////////////////////////////////
+
+#include "sortindex.h"
+#include "nameindex.h"
+#include "scid/misc.h"
+
+#include <stdio.h>
+
+#include <algorithm>
+#include <cstring>
+
+static const char * const KeyNames [SORTINDEX_NUM_KEYS] = {
+    "date", "welo", "belo", "aelo", "white", "black", "event", "eco"
+};
+
+// Returns false if the name does not fit into a fileNameT.
+bool
+SortIndex::FileName (char * name, const char * baseName, uint key)
+{
+    int len = snprintf (name, sizeof(fileNameT), "%s%s.%s", baseName,
+                        SORTINDEX_SUFFIX, KeyNames[key]);
+    return len >= 0  &&  len < (int) sizeof(fileNameT);
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortIndex::Read():
+//      Reads the sort order of a key. Fails if there is no sort order
+//      file or if it was built for different database contents.
+errorT
+SortIndex::Read (const char * baseName, uint key, uint numGames,
+                 uint gfileSize, std::vector<uint> * order)
+{
+    if (key >= SORTINDEX_NUM_KEYS) { return ERROR; }
+    fileNameT fname;
+    if (!FileName (fname, baseName, key)) { return ERROR_FileOpen; }
+    FILE * fp = fopen (fname, "rb");
+    if (fp == NULL) { return ERROR_FileOpen; }
+
+    sortIndexHeaderT header;
+    errorT err = OK;
+    if (fread (&header, sizeof(header), 1, fp) != 1
+            ||  memcmp (header.magic, SORTINDEX_MAGIC, sizeof(header.magic)) != 0) {
+        err = ERROR_BadMagic;
+    } else if (header.version != SORTINDEX_VERSION
+            ||  header.key != key
+            ||  header.numGames != numGames
+            ||  header.gfileSize != gfileSize) {
+        err = ERROR_FileVersion;
+    } else {
+        order->resize (numGames);
+        if (numGames > 0
+                &&  fread (&(*order)[0], sizeof(uint), numGames, fp) != numGames) {
+            err = ERROR_FileRead;
+        }
+    }
+    fclose (fp);
+    return err;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortIndex::Write():
+//      Writes the sort order of a key. The file is written under a
+//      temporary name and renamed when complete.
+errorT
+SortIndex::Write (const char * baseName, uint key, uint gfileSize,
+                  const std::vector<uint> & order)
+{
+    fileNameT fname, tmpName;
+    if (!FileName (fname, baseName, key)
+            ||  snprintf (tmpName, sizeof(tmpName), "%s.tmp", fname)
+                    >= (int) sizeof(tmpName)) {
+        return ERROR_FileOpen;
+    }
+
+    sortIndexHeaderT header;
+    memset (&header, 0, sizeof(header));
+    memcpy (header.magic, SORTINDEX_MAGIC, sizeof(header.magic));
+    header.version = SORTINDEX_VERSION;
+    header.key = key;
+    header.numGames = order.size();
+    header.gfileSize = gfileSize;
+
+    FILE * out = fopen (tmpName, "wb");
+    if (out == NULL) { return ERROR_FileOpen; }
+    errorT err = OK;
+    if (fwrite (&header, sizeof(header), 1, out) != 1
+            ||  (header.numGames > 0
+                 &&  fwrite (&order[0], sizeof(uint), header.numGames, out)
+                     != header.numGames)) {
+        err = ERROR_FileWrite;
+    }
+    if (fclose (out) != 0) { err = ERROR_FileWrite; }
+    if (err == OK  &&  rename (tmpName, fname) != 0) { err = ERROR_FileWrite; }
+    if (err != OK) { remove (tmpName); }
+    return err;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortIndex::NameRanks():
+//      Computes the rank of each name of a type in the order of the
+//      name index. Names that differ only in case or accents have the
+//      same rank.
+void
+SortIndex::NameRanks (NameBase * nb, nameT nameType, std::vector<uint> * ranks)
+{
+    NameIndex nameIndex;
+    nameIndex.Build (nb, nameType);
+    uint numNames = nameIndex.Size();
+    ranks->resize (numNames);
+    uint rank = 0;
+    for (uint i = 0; i < numNames; i++) {
+        if (i > 0  &&  strcmp (nameIndex.GetKey (i-1), nameIndex.GetKey (i)) != 0) {
+            rank++;
+        }
+        (*ranks)[nameIndex.GetId (i)] = rank;
+    }
+}
+
+static inline uint
+NameRank (const std::vector<uint> & ranks, idNumberT id)
+{
+    return id < ranks.size() ? ranks[id] : 0;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// SortIndex::Build():
+//      Computes the sort order of a key from the index entries. The
+//      whole index must be in memory.
+errorT
+SortIndex::Build (Index * idx, NameBase * nb, uint key,
+                  std::vector<uint> * order)
+{
+    if (key >= SORTINDEX_NUM_KEYS) { return ERROR; }
+    std::vector<uint> ranks;
+    switch (key) {
+    case SORTINDEX_WHITE:
+    case SORTINDEX_BLACK:
+        NameRanks (nb, NAME_PLAYER, &ranks);
+        break;
+    case SORTINDEX_EVENT:
+        NameRanks (nb, NAME_EVENT, &ranks);
+        break;
+    }
+
+    // The key in the high and the game number in the low half, so that
+    // sorting keeps games of equal keys in the order of their numbers:
+    uint numGames = idx->GetNumGames();
+    std::vector<unsigned long long> keys (numGames);
+    for (uint g = 0; g < numGames; g++) {
+        IndexEntry * ie = idx->FetchEntry (g);
+        if (ie == NULL) { return ERROR_FileNotOpen; }
+        uint value = 0;
+        switch (key) {
+        case SORTINDEX_DATE: value = ie->GetDate(); break;
+        case SORTINDEX_WHITE_ELO: value = ie->GetWhiteElo(); break;
+        case SORTINDEX_BLACK_ELO: value = ie->GetBlackElo(); break;
+        case SORTINDEX_AVERAGE_ELO:
+            value = (ie->GetWhiteElo() + ie->GetBlackElo()) / 2;
+            break;
+        case SORTINDEX_WHITE: value = NameRank (ranks, ie->GetWhite()); break;
+        case SORTINDEX_BLACK: value = NameRank (ranks, ie->GetBlack()); break;
+        case SORTINDEX_EVENT: value = NameRank (ranks, ie->GetEvent()); break;
+        case SORTINDEX_ECO: value = ie->GetEcoCode(); break;
+        }
+        keys[g] = (unsigned long long) value << 32 | g;
+    }
+    std::sort (keys.begin(), keys.end());
+    order->resize (numGames);
+    for (uint i = 0; i < numGames; i++) { (*order)[i] = uint (keys[i]); }
+    return OK;
+}
+
+void
+SortIndex::Remove (const char * baseName)
+{
+    for (uint key = 0; key < SORTINDEX_NUM_KEYS; key++) {
+        fileNameT fname;
+        if (FileName (fname, baseName, key)) { remove (fname); }
+    }
+}
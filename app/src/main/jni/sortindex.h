@@ -0,0 +1,61 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       sortindex.h
+//              Sort orders (SortIndex) of the games of a database
+//
+//  A sort order is the permutation of all game numbers in ascending
+//  order of a sort key, with games of equal keys in ascending order
+//  of their numbers. Each sort order is kept in a file of its own
+//  next to the index file, so that sorting a filter only has to pick
+//  the games of the filter from the permutation, without reading the
+//  index entries or names of the games.
+//
+//////////////////////////////////////////////////////////////////////
+
+#ifndef JNI_SORTINDEX_H
+#define JNI_SORTINDEX_H
+
+#include "scid/common.h"
+#include "scid/error.h"
+#include "scid/index.h"
+#include "scid/namebase.h"
+
+#include <vector>
+
+const char SORTINDEX_SUFFIX[] = ".sso";
+const char SORTINDEX_MAGIC[8] = "Scid.so";
+const uint SORTINDEX_VERSION = 2;
+
+// Sort keys, make sure they are in sync with DataBase.java:
+const uint SORTINDEX_DATE = 0, SORTINDEX_WHITE_ELO = 1,
+    SORTINDEX_BLACK_ELO = 2, SORTINDEX_AVERAGE_ELO = 3,
+    SORTINDEX_WHITE = 4, SORTINDEX_BLACK = 5, SORTINDEX_EVENT = 6,
+    SORTINDEX_ECO = 7;
+const uint SORTINDEX_NUM_KEYS = 8;
+
+struct sortIndexHeaderT {
+    char magic[8];
+    uint version;
+    uint key;            // the sort key of the permutation
+    uint numGames;       // number of games in the permutation
+    uint gfileSize;      // size of the game file the order was built from
+};
+
+class SortIndex
+{
+  private:
+    static bool FileName (char * name, const char * baseName, uint key);
+    static void NameRanks (NameBase * nb, nameT nameType,
+                           std::vector<uint> * ranks);
+
+  public:
+    static errorT Read (const char * baseName, uint key, uint numGames,
+                        uint gfileSize, std::vector<uint> * order);
+    static errorT Write (const char * baseName, uint key, uint gfileSize,
+                         const std::vector<uint> & order);
+    static errorT Build (Index * idx, NameBase * nb, uint key,
+                         std::vector<uint> * order);
+    static void   Remove (const char * baseName);
+};
+
+#endif  // JNI_SORTINDEX_H
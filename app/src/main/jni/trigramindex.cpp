@@ -0,0 +1,195 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       trigramindex.cpp
+//              TrigramIndex methods
+//
+//////////////////////////////////////////////////////////////////////
+
+#include "trigramindex.h"
+#include "scid/misc.h"
+
+#include <algorithm>
+
+// Candidates are not narrowed down further by posting lists that are
+// this many times longer, in bytes, than the number of candidates, as
+// checking the candidates is cheaper than decoding the lists:
+static const uint MAX_BYTES_PER_CANDIDATE = 32;
+
+static inline uint
+varintLength (uint value)
+{
+    uint length = 1;
+    while (value >= 0x80) { value >>= 7; length++; }
+    return length;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// TrigramIndex::Normalize():
+//      Sets result to the name without spaces and with ASCII letters
+//      in lower case, the characters strAlphaContains compares.
+void
+TrigramIndex::Normalize (const char * name, std::string * result)
+{
+    result->clear();
+    for (const char * s = name; *s; s++) {
+        char c = *s;
+        if (c == ' ') { continue; }
+        if (c >= 'A'  &&  c <= 'Z') { c += 'a' - 'A'; }
+        *result += c;
+    }
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// TrigramIndex::Buckets():
+//      Sets buckets to the sorted buckets of all trigrams of the
+//      normalized name, without duplicates.
+void
+TrigramIndex::Buckets (const std::string & normalized,
+                       std::vector<uint> * buckets)
+{
+    buckets->clear();
+    const byte * s = (const byte *) normalized.data();
+    for (size_t i = 0; i + 2 < normalized.size(); i++) {
+        uint trigram = uint(s[i]) << 16 | uint(s[i + 1]) << 8 | s[i + 2];
+        buckets->push_back ((trigram * 2654435761u)
+                            >> (32 - TRIGRAMINDEX_BUCKET_BITS));
+    }
+    std::sort (buckets->begin(), buckets->end());
+    buckets->erase (std::unique (buckets->begin(), buckets->end()),
+                    buckets->end());
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// TrigramIndex::Build():
+//      Builds the posting lists of all names of the name type. The
+//      first pass computes the size of each list, the second one
+//      fills them.
+void
+TrigramIndex::Build (NameBase * nb, nameT nameType)
+{
+    Clear();
+    uint numNames = nb->GetNumNames (nameType);
+    std::vector<uint> last (TRIGRAMINDEX_NUM_BUCKETS, 0);
+    std::vector<uint> sizes (TRIGRAMINDEX_NUM_BUCKETS, 0);
+    std::string normalized;
+    std::vector<uint> buckets;
+    for (idNumberT id = 0; id < numNames; id++) {
+        Normalize (nb->GetName (nameType, id), &normalized);
+        Buckets (normalized, &buckets);
+        for (size_t i = 0; i < buckets.size(); i++) {
+            uint b = buckets[i];
+            sizes[b] += varintLength (id - last[b]);
+            last[b] = id;
+        }
+    }
+    Starts.resize (TRIGRAMINDEX_NUM_BUCKETS + 1);
+    Starts[0] = 0;
+    for (uint b = 0; b < TRIGRAMINDEX_NUM_BUCKETS; b++) {
+        Starts[b + 1] = Starts[b] + sizes[b];
+    }
+    Postings.resize (Starts[TRIGRAMINDEX_NUM_BUCKETS]);
+    std::vector<uint> end (Starts.begin(), Starts.end() - 1);
+    std::fill (last.begin(), last.end(), 0);
+    for (idNumberT id = 0; id < numNames; id++) {
+        Normalize (nb->GetName (nameType, id), &normalized);
+        Buckets (normalized, &buckets);
+        for (size_t i = 0; i < buckets.size(); i++) {
+            uint b = buckets[i];
+            uint delta = id - last[b];
+            while (delta >= 0x80) {
+                Postings[end[b]++] = byte (delta | 0x80);
+                delta >>= 7;
+            }
+            Postings[end[b]++] = byte (delta);
+            last[b] = id;
+        }
+    }
+    Built = true;
+}
+
+void
+TrigramIndex::Clear ()
+{
+    std::vector<uint>().swap (Starts);
+    std::vector<byte>().swap (Postings);
+    Built = false;
+}
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// TrigramIndex::Decode():
+//      Sets ids to the name IDs of the posting list of the bucket.
+void
+TrigramIndex::Decode (uint bucket, std::vector<idNumberT> * ids)
+{
+    ids->clear();
+    const byte * p = Postings.empty() ? NULL : &Postings[0];
+    uint pos = Starts[bucket], end = Starts[bucket + 1];
+    idNumberT id = 0;
+    while (pos < end) {
+        uint delta = 0, shift = 0;
+        byte b;
+        do {
+            b = p[pos++];
+            delta |= uint(b & 0x7F) << shift;
+            shift += 7;
+        } while (b & 0x80);
+        id += delta;
+        ids->push_back (id);
+    }
+}
+
+// Orders buckets by the size of their posting lists:
+struct bucketLess {
+    const uint * starts;
+    bool operator() (uint a, uint b) {
+        return starts[a + 1] - starts[a] < starts[b + 1] - starts[b];
+    }
+};
+
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+// TrigramIndex::Search():
+//      Sets matches to the ascending IDs of the names for which
+//      strAlphaContains (name, key) is true. The posting lists of
+//      the trigrams of the key are intersected, shortest first, and
+//      the remaining candidates are checked with strAlphaContains.
+//      Returns false, without setting matches, if the key has less
+//      than three characters to compare and thus no trigrams; then
+//      all names have to be checked.
+bool
+TrigramIndex::Search (NameBase * nb, nameT nameType, const char * key,
+                      std::vector<idNumberT> * matches)
+{
+    std::string normalized;
+    Normalize (key, &normalized);
+    if (normalized.size() < 3) { return false; }
+    std::vector<uint> buckets;
+    Buckets (normalized, &buckets);
+    bucketLess less = { &Starts[0] };
+    std::sort (buckets.begin(), buckets.end(), less);
+
+    std::vector<idNumberT> candidates, list;
+    Decode (buckets[0], &candidates);
+    for (size_t i = 1; i < buckets.size()  &&  !candidates.empty(); i++) {
+        uint b = buckets[i];
+        if (Starts[b + 1] - Starts[b]
+                > candidates.size() * MAX_BYTES_PER_CANDIDATE) {
+            break;
+        }
+        Decode (b, &list);
+        size_t kept = 0, j = 0;
+        for (size_t c = 0; c < candidates.size(); c++) {
+            while (j < list.size()  &&  list[j] < candidates[c]) { j++; }
+            if (j == list.size()) { break; }
+            if (list[j] == candidates[c]) { candidates[kept++] = list[j]; }
+        }
+        candidates.resize (kept);
+    }
+
+    matches->clear();
+    for (size_t i = 0; i < candidates.size(); i++) {
+        if (strAlphaContains (nb->GetName (nameType, candidates[i]), key)) {
+            matches->push_back (candidates[i]);
+        }
+    }
+    return true;
+}
@@ -0,0 +1,54 @@
+//////////////////////////////////////////////////////////////////////
+//
+//  FILE:       trigramindex.h
+//              Trigram index (TrigramIndex) for substring name searches
+//
+//  Maps every three consecutive characters of the names of one name
+//  type, compared as strAlphaContains does (ignoring spaces and case),
+//  to the IDs of the names containing them. A substring search only
+//  has to check the names that contain all trigrams of the searched
+//  string instead of every name.
+//
+//  Trigrams are hashed into a fixed number of buckets, so a posting
+//  list may contain names with other trigrams as well; they are
+//  removed when the candidates are checked with strAlphaContains.
+//
+//////////////////////////////////////////////////////////////////////
+
+#ifndef JNI_TRIGRAMINDEX_H
+#define JNI_TRIGRAMINDEX_H
+
+#include "scid/common.h"
+#include "scid/namebase.h"
+
+#include <string>
+#include <vector>
+
+const uint TRIGRAMINDEX_BUCKET_BITS = 16;
+const uint TRIGRAMINDEX_NUM_BUCKETS = 1 << TRIGRAMINDEX_BUCKET_BITS;
+
+class TrigramIndex
+{
+  private:
+    std::vector<uint> Starts;    // start of each bucket in Postings
+    std::vector<byte> Postings;  // ascending name IDs of each bucket,
+                                 // as varint deltas
+    bool              Built;
+
+    static void Normalize (const char * name, std::string * result);
+    static void Buckets (const std::string & normalized,
+                         std::vector<uint> * buckets);
+    void Decode (uint bucket, std::vector<idNumberT> * ids);
+
+  public:
+    TrigramIndex() : Built(false) {}
+
+    bool IsBuilt () { return Built; }
+    void Build (NameBase * nb, nameT nameType);
+    void Clear ();
+
+    bool Search (NameBase * nb, nameT nameType, const char * key,
+                 std::vector<idNumberT> * matches);
+};
+
+#endif  // JNI_TRIGRAMINDEX_H
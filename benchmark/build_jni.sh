@@ -0,0 +1,21 @@
+#!/bin/sh
+# Build libjni.so for the host JVM from the sources listed in the Android.mk
+# files, so that the benchmarks can call the native methods.
+set -e
+cd "$(dirname "$0")"
+OUT=${1:-build/jni}
+JNI=../app/src/main/jni
+if [ -z "$JAVA_HOME" ]; then
+    JAVA_HOME=$(dirname "$(dirname "$(readlink -f "$(which javac)")")")
+fi
+sources() {
+    sed -n '/LOCAL_SRC_FILES/,/^$/p' "$1/Android.mk" | sed 's/LOCAL_SRC_FILES *:=//' \
+        | grep -v '^LOCAL_' | tr -d '\\' | while read -r f; do
+        for s in $f; do echo "$1/$s"; done
+    done
+}
+mkdir -p "$OUT"
+${CXX:-g++} -std=gnu++98 -O2 -fPIC -shared -pthread \
+    -include src/main/jni/host.h -Isrc/main/jni \
+    -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -I$JNI \
+    $(sources $JNI/scid) $(sources $JNI) -o "$OUT/libjni.so"
@@ -0,0 +1,100 @@
+package com.kalab.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction and lookups of filters of the sizes of real databases, with a
+ * dense filter as after a wide board search and a sparse one as after a
+ * narrow header search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GameFilterBenchmark {
+    private static final int LOOKUPS = 1024;
+    @Param({"100000", "1000000", "4000000"})
+    public int games;
+    private short[] densePlies;
+    private int[] sparseIds;
+    private GameFilter dense;
+    private GameFilter sparse;
+    private int[] positions;
+    private int[] ids;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(games);
+        densePlies = new short[games];
+        for (int i = 0; i < games; i++) {
+            if (random.nextInt(3) == 0) {
+                densePlies[i] = (short) (1 + random.nextInt(60));
+            }
+        }
+        sparseIds = new int[games / 100];
+        for (int i = 0; i < sparseIds.length; i++) {
+            sparseIds[i] = i * 100 + random.nextInt(100);
+        }
+        dense = new GameFilter(densePlies);
+        sparse = new GameFilter(sparseIds);
+        positions = new int[LOOKUPS];
+        ids = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            positions[i] = random.nextInt(dense.getSize());
+            ids[i] = random.nextInt(games);
+        }
+    }
+
+    @Benchmark
+    public GameFilter constructDense() {
+        return new GameFilter(densePlies);
+    }
+
+    @Benchmark
+    public GameFilter constructSparse() {
+        return new GameFilter(sparseIds);
+    }
+
+    @Benchmark
+    public short[] toFilterArray() {
+        return GameFilter.getFilterArray(dense, games);
+    }
+
+    @Benchmark
+    public void getGameId(Blackhole blackhole) {
+        for (int position : positions) {
+            blackhole.consume(dense.getGameId(position));
+        }
+    }
+
+    @Benchmark
+    public void getGamePly(Blackhole blackhole) {
+        for (int position : positions) {
+            blackhole.consume(dense.getGamePly(position));
+        }
+    }
+
+    @Benchmark
+    public void getPosition(Blackhole blackhole) {
+        for (int id : ids) {
+            blackhole.consume(dense.getPosition(id));
+        }
+    }
+
+    @Benchmark
+    public void contains(Blackhole blackhole) {
+        for (int id : ids) {
+            blackhole.consume(sparse.contains(id));
+        }
+    }
+}
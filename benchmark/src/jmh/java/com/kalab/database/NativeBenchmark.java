@@ -0,0 +1,123 @@
+package com.kalab.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The native searches and game loading on a synthetic database. Every search
+ * starts from a reset filter, so that the whole database is searched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NativeBenchmark {
+    private static final int FILTER_RESET = 0;
+    private static final int GAMES_LOADED = 100;
+    // after 1. e4 e5 2. Nf3 Nc6
+    private static final String OPEN_GAME_FEN =
+            "r1bqkbnr/pppp1ppp/2n5/4p3/4P3/5N2/PPPP1PPP/RNBQKB1R w KQkq - 2 3";
+    // after 1. d4 Nf6 2. c4 g6 3. Nc3 Bg7 4. e4 d6
+    private static final String KINGS_INDIAN_FEN =
+            "rnbqk2r/ppp1ppbp/3p1np1/8/2PPP3/2N5/PP3PPP/R1BQKBNR w KQkq - 0 5";
+    private static final Progress NO_PROGRESS = new Progress() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void publishProgress(int value) {
+        }
+    };
+    @Param({"100000"})
+    public int games;
+    private long handle;
+    private short[] filter;
+    private int[] gameIds;
+
+    @Setup
+    public void setUp() throws IOException {
+        String fileName = SyntheticDataBase.get(games);
+        handle = DataBase.open(fileName);
+        if (handle == 0) {
+            throw new IOException("Cannot open " + fileName);
+        }
+        filter = new short[DataBase.getSize(handle)];
+        Random random = new Random(games);
+        gameIds = new int[GAMES_LOADED];
+        for (int i = 0; i < GAMES_LOADED; i++) {
+            gameIds[i] = random.nextInt(filter.length);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        DataBase.close(handle);
+    }
+
+    private static SearchHeaderRequest createRequest() {
+        SearchHeaderRequest request = new SearchHeaderRequest();
+        request.white = request.black = "";
+        request.event = request.site = request.round = "";
+        return request;
+    }
+
+    @Benchmark
+    public short[] searchHeaderPlayer() {
+        SearchHeaderRequest request = createRequest();
+        request.white = "Player12";
+        request.ignoreColors = true;
+        DataBase.searchHeader(handle, request, FILTER_RESET, filter, NO_PROGRESS);
+        return filter;
+    }
+
+    @Benchmark
+    public short[] searchHeaderElo() {
+        SearchHeaderRequest request = createRequest();
+        request.minEloMin = 2600;
+        request.allowUnknownElo = false;
+        DataBase.searchHeader(handle, request, FILTER_RESET, filter, NO_PROGRESS);
+        return filter;
+    }
+
+    @Benchmark
+    public short[] searchBoardExact() {
+        DataBase.searchBoard(handle, OPEN_GAME_FEN, 0, FILTER_RESET, filter,
+                NO_PROGRESS);
+        return filter;
+    }
+
+    @Benchmark
+    public short[] searchBoardPawns() {
+        DataBase.searchBoard(handle, KINGS_INDIAN_FEN, 1, FILTER_RESET,
+                filter, NO_PROGRESS);
+        return filter;
+    }
+
+    @Benchmark
+    public void loadGame(Blackhole blackhole) {
+        for (int gameId : gameIds) {
+            DataBase.loadGame(handle, gameId, false);
+            blackhole.consume(DataBase.getMoves(handle));
+        }
+    }
+
+    @Benchmark
+    public void getGamePGN(Blackhole blackhole) {
+        for (int gameId : gameIds) {
+            blackhole.consume(DataBase.getGamePGN(handle, gameId));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.kalab.database;
+
+import android.database.CursorWindow;
+
+import com.kalab.database.ScidProviderMetaData.ScidMetaData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Materialising the rows of a new cursor at a random position, once through
+ * fillWindow as a list view does and once by moving the cursor row by row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScidCursorBenchmark {
+    private static final int ROWS = 100;
+    private static final int PGN_CACHE_BYTES = 2 * 1024 * 1024;
+    private static final String[] LIST_PROJECTION = {ScidMetaData._ID,
+            ScidMetaData.SUMMARY, ScidMetaData.DETAILS,
+            ScidMetaData.IS_FAVORITE, ScidMetaData.IS_DELETED};
+    @Param({"100000"})
+    public int games;
+    private DataBaseHandle dataBase;
+    private Random random;
+
+    @Setup
+    public void setUp() throws IOException {
+        String fileName = SyntheticDataBase.get(games);
+        dataBase = new DataBaseHandle(fileName, DataBase.open(fileName),
+                new PgnCache(PGN_CACHE_BYTES));
+        random = new Random(games);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataBase.evict();
+    }
+
+    private ScidCursor createCursor() {
+        dataBase.acquire();
+        return new ScidCursor(dataBase, LIST_PROJECTION, -1);
+    }
+
+    @Benchmark
+    public CursorWindow fillWindow() {
+        ScidCursor cursor = createCursor();
+        CursorWindow window = new CursorWindow("benchmark");
+        cursor.fillWindow(random.nextInt(games - ROWS), window);
+        cursor.close();
+        return window;
+    }
+
+    @Benchmark
+    public void moveToPosition(Blackhole blackhole) {
+        ScidCursor cursor = createCursor();
+        int first = random.nextInt(games - ROWS);
+        for (int position = first; position < first + ROWS; position++) {
+            cursor.moveToPosition(position);
+            for (int column = 0; column < LIST_PROJECTION.length; column++) {
+                blackhole.consume(cursor.getString(column));
+            }
+        }
+        cursor.close();
+    }
+}
@@ -0,0 +1,126 @@
+package com.kalab.database;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Databases of generated games for the benchmarks. A database is imported
+ * with DataBase.importPgn the first time it is needed and kept in the
+ * directory of the benchmark.dir system property, so that the benchmarks of
+ * two commits run against the same games.
+ */
+final class SyntheticDataBase {
+    /**
+     * The moves of some openings, each game playing the first 8 to all plies
+     * of one of them.
+     */
+    private static final String[][] OPENINGS = {
+            ("e4 e5 Nf3 Nc6 Bb5 a6 Ba4 Nf6 O-O Be7 Re1 b5 Bb3 d6 c3 O-O h3 "
+                    + "Nb8 d4 Nbd7 Nbd2 Bb7 Bc2 Re8 Nf1 Bf8 Ng3 g6").split(" "),
+            ("e4 c5 Nf3 d6 d4 cxd4 Nxd4 Nf6 Nc3 a6 Be3 e5 Nb3 Be6 f3 Be7 Qd2 "
+                    + "O-O O-O-O Nbd7 g4 b5 g5 b4 Ne2 Ne8 f4 a5 f5 a4").split(" "),
+            ("d4 d5 c4 e6 Nc3 Nf6 Bg5 Be7 e3 O-O Nf3 h6 Bh4 b6 cxd5 Nxd5 Bxe7 "
+                    + "Qxe7 Nxd5 exd5 Rc1 Be6 Qa4 c5 Qa3 Rc8 Bb5 a6").split(" "),
+            ("d4 Nf6 c4 g6 Nc3 Bg7 e4 d6 Nf3 O-O Be2 e5 O-O Nc6 d5 Ne7 Ne1 "
+                    + "Nd7 Nd3 f5 Bd2 Nf6 f3 f4 g4 g5").split(" "),
+            ("c4 e5 Nc3 Nf6 Nf3 Nc6 g3 d5 cxd5 Nxd5 Bg2 Nb6 O-O Be7 d3 O-O "
+                    + "a3 Be6 b4 f6").split(" "),
+            ("e4 e6 d4 d5 Nc3 Nf6 Bg5 Be7 e5 Nfd7 Bxe7 Qxe7 f4 O-O Nf3 c5 Qd2 "
+                    + "Nc6 O-O-O c4").split(" "),
+            ("e4 c6 d4 d5 Nc3 dxe4 Nxe4 Bf5 Ng3 Bg6 h4 h6 Nf3 Nd7 h5 Bh7 Bd3 "
+                    + "Bxd3 Qxd3 e6 Bd2 Ngf6 O-O-O Be7").split(" "),
+            ("e4 e5 Nf3 Nc6 Bc4 Bc5 c3 Nf6 d3 d6 O-O a6 a4 Ba7 Re1 O-O h3 h6 "
+                    + "Nbd2 Re8").split(" ")};
+    private static final String[] RESULTS = {"1-0", "0-1", "1/2-1/2", "*"};
+    private static final String[] FIRST_NAMES = {"Anna", "Bernd", "Chloé",
+            "Dmitri", "Émile", "Frida", "Günther", "Håkon", "Ivan", "Jiří",
+            "Katarzyna", "Łukasz", "Magnus", "Nuño", "Oleg", "Pál"};
+    private static final int PLAYERS = 5000, EVENTS = 500, SITES = 100;
+
+    private SyntheticDataBase() {
+    }
+
+    /**
+     * Return the file name without extension of the database with the given
+     * number of games, importing it if it does not exist yet.
+     */
+    static synchronized String get(int games) throws IOException {
+        File dir = new File(System.getProperty("benchmark.dir",
+                "build/databases"));
+        String base = new File(dir, "synthetic" + games).getAbsolutePath();
+        if (new File(base + ".si4").exists()) {
+            return base;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File pgn = new File(base + ".pgn");
+        writePgn(pgn, games);
+        String result = DataBase.importPgn(pgn.getPath(), null);
+        if (!new File(base + ".si4").exists()) {
+            throw new IOException("Cannot import " + pgn + ": " + result);
+        }
+        if (!pgn.delete()) {
+            pgn.deleteOnExit();
+        }
+        return base;
+    }
+
+    private static void writePgn(File file, int games) throws IOException {
+        Random random = new Random(games);
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"), 1 << 16);
+        try {
+            for (int i = 0; i < games; i++) {
+                String result = RESULTS[random.nextInt(RESULTS.length)];
+                tag(out, "Event", "Open " + random.nextInt(EVENTS));
+                tag(out, "Site", "City " + random.nextInt(SITES));
+                tag(out, "Date", String.format("%d.%02d.%02d",
+                        1950 + random.nextInt(70), 1 + random.nextInt(12),
+                        1 + random.nextInt(28)));
+                tag(out, "Round", "" + (1 + random.nextInt(13)));
+                tag(out, "White", getPlayer(random));
+                tag(out, "Black", getPlayer(random));
+                tag(out, "Result", result);
+                if (random.nextInt(4) != 0) {
+                    tag(out, "WhiteElo", "" + (2000 + random.nextInt(800)));
+                    tag(out, "BlackElo", "" + (2000 + random.nextInt(800)));
+                }
+                out.write('\n');
+                String[] moves = OPENINGS[random.nextInt(OPENINGS.length)];
+                int plies = 8 + random.nextInt(moves.length - 7);
+                for (int ply = 0; ply < plies; ply++) {
+                    if (ply % 2 == 0) {
+                        out.write((ply / 2 + 1) + ". ");
+                    }
+                    out.write(moves[ply]);
+                    out.write(ply % 10 == 9 ? '\n' : ' ');
+                }
+                out.write(result);
+                out.write("\n\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String getPlayer(Random random) {
+        int player = random.nextInt(PLAYERS);
+        return "Player" + player + ", "
+                + FIRST_NAMES[player % FIRST_NAMES.length];
+    }
+
+    private static void tag(Writer out, String name, String value)
+            throws IOException {
+        out.write('[');
+        out.write(name);
+        out.write(" \"");
+        out.write(value);
+        out.write("\"]\n");
+    }
+}
@@ -0,0 +1,50 @@
+package com.kalab.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a page of player names as read from the name base.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Utf8ConverterBenchmark {
+    private static final int NAMES = 100;
+    private static final String[] ASCII = {"Carlsen, Magnus",
+            "Kasparov, Garry", "Anand, Viswanathan", "Nakamura, Hikaru"};
+    private static final String[] ACCENTED = {"Réti, Richard",
+            "Dvořák, Jiří", "Gligorić, Svetozar", "Nuñez, José"};
+    @Param({"ascii", "utf8", "cp1252"})
+    public String names;
+    private byte[][] values;
+
+    @Setup
+    public void setUp() {
+        String[] source = "ascii".equals(names) ? ASCII : ACCENTED;
+        Charset charset = Charset.forName("cp1252".equals(names) ? "CP1252"
+                : "UTF-8");
+        values = new byte[NAMES][];
+        for (int i = 0; i < NAMES; i++) {
+            // the characters missing in CP1252 are encoded as '?'
+            values[i] = (source[i % source.length] + i).getBytes(charset);
+        }
+    }
+
+    @Benchmark
+    public void convertToUTF8(Blackhole blackhole) {
+        for (byte[] value : values) {
+            blackhole.consume(Utf8Converter.convertToUTF8(value));
+        }
+    }
+}
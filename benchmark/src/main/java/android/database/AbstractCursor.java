@@ -0,0 +1,72 @@
+package android.database;
+
+import android.os.Bundle;
+
+/**
+ * The positioning of the Android AbstractCursor, which calls onMove when the
+ * position changes.
+ */
+public abstract class AbstractCursor implements Cursor {
+    protected int mPos = -1;
+    private boolean closed = false;
+
+    public abstract String[] getColumnNames();
+
+    public abstract short getShort(int column);
+
+    public abstract int getInt(int column);
+
+    public abstract float getFloat(int column);
+
+    public abstract double getDouble(int column);
+
+    public boolean onMove(int oldPosition, int newPosition) {
+        return true;
+    }
+
+    protected void onChange(boolean selfChange) {
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position < 0 || position >= getCount()) {
+            mPos = position < 0 ? -1 : getCount();
+            return false;
+        }
+        if (position != mPos && !onMove(mPos, position)) {
+            mPos = -1;
+            return false;
+        }
+        mPos = position;
+        return true;
+    }
+
+    public final int getPosition() {
+        return mPos;
+    }
+
+    @Override
+    public int getType(int column) {
+        return FIELD_TYPE_STRING;
+    }
+
+    public void fillWindow(int position, CursorWindow window) {
+    }
+
+    public Bundle getExtras() {
+        return new Bundle();
+    }
+
+    public Bundle respond(Bundle extras) {
+        return new Bundle();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
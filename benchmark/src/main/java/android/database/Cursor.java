@@ -0,0 +1,23 @@
+package android.database;
+
+/**
+ * The part of the Android cursor interface used by the database classes.
+ */
+public interface Cursor {
+    int FIELD_TYPE_NULL = 0, FIELD_TYPE_INTEGER = 1, FIELD_TYPE_FLOAT = 2,
+            FIELD_TYPE_STRING = 3, FIELD_TYPE_BLOB = 4;
+
+    int getCount();
+
+    boolean moveToPosition(int position);
+
+    String getString(int column);
+
+    long getLong(int column);
+
+    boolean isNull(int column);
+
+    int getType(int column);
+
+    void close();
+}
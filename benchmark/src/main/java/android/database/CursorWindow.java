@@ -0,0 +1,92 @@
+package android.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A CursorWindow keeping its rows on the heap instead of in shared memory.
+ * Like the Android window it holds up to 2 MB, counting the characters of
+ * the strings and 8 bytes for the other fields.
+ */
+public class CursorWindow {
+    private static final int SIZE = 2 * 1024 * 1024;
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+    private int bytes = 0;
+    private int startPosition = 0;
+    private int numColumns = 0;
+    private int references = 1;
+
+    public CursorWindow(String name) {
+    }
+
+    public void clear() {
+        rows.clear();
+        bytes = 0;
+        startPosition = 0;
+        numColumns = 0;
+    }
+
+    public int getStartPosition() {
+        return startPosition;
+    }
+
+    public void setStartPosition(int position) {
+        startPosition = position;
+    }
+
+    public int getNumRows() {
+        return rows.size();
+    }
+
+    public boolean setNumColumns(int columnNum) {
+        numColumns = columnNum;
+        return true;
+    }
+
+    public boolean allocRow() {
+        rows.add(new Object[numColumns]);
+        return true;
+    }
+
+    public void freeLastRow() {
+        rows.remove(rows.size() - 1);
+    }
+
+    public boolean putString(String value, int row, int column) {
+        return put(value, 2 * value.length(), row, column);
+    }
+
+    public boolean putLong(long value, int row, int column) {
+        return put(value, 8, row, column);
+    }
+
+    public boolean putNull(int row, int column) {
+        return put(null, 8, row, column);
+    }
+
+    private boolean put(Object value, int size, int row, int column) {
+        if (bytes + size > SIZE) {
+            return false;
+        }
+        bytes += size;
+        rows.get(row - startPosition)[column] = value;
+        return true;
+    }
+
+    public String getString(int row, int column) {
+        Object value = rows.get(row - startPosition)[column];
+        return value == null ? null : value.toString();
+    }
+
+    public void acquireReference() {
+        references++;
+    }
+
+    public void releaseReference() {
+        references--;
+    }
+
+    public void close() {
+        releaseReference();
+    }
+}
@@ -0,0 +1,21 @@
+package android.net;
+
+/**
+ * A Uri only holding its string.
+ */
+public final class Uri {
+    private final String uri;
+
+    private Uri(String uri) {
+        this.uri = uri;
+    }
+
+    public static Uri parse(String uriString) {
+        return new Uri(uriString);
+    }
+
+    @Override
+    public String toString() {
+        return uri;
+    }
+}
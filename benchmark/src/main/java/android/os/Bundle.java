@@ -0,0 +1,33 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Bundle of the values used by the database classes.
+ */
+public final class Bundle {
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    public boolean containsKey(String key) {
+        return values.containsKey(key);
+    }
+
+    public void putInt(String key, int value) {
+        values.put(key, value);
+    }
+
+    public int getInt(String key) {
+        Object value = values.get(key);
+        return value instanceof Integer ? (Integer) value : 0;
+    }
+
+    public void putBoolean(String key, boolean value) {
+        values.put(key, value);
+    }
+
+    public boolean getBoolean(String key) {
+        Object value = values.get(key);
+        return value instanceof Boolean && (Boolean) value;
+    }
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * A CancellationSignal without listeners.
+ */
+public final class CancellationSignal {
+    private volatile boolean canceled = false;
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    public void cancel() {
+        canceled = true;
+    }
+}
@@ -0,0 +1,19 @@
+package android.util;
+
+/**
+ * The Android log on the host, which writes to stderr.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println("E/" + tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+}
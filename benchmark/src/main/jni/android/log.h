@@ -0,0 +1,11 @@
+// The Android log on the host writes everything but debug messages to stderr.
+#ifndef ANDROID_LOG_H
+#define ANDROID_LOG_H
+#include <stdio.h>
+
+enum { ANDROID_LOG_DEBUG = 3, ANDROID_LOG_INFO, ANDROID_LOG_WARN, ANDROID_LOG_ERROR };
+
+#define __android_log_print(priority, tag, ...) \
+    ((priority) < ANDROID_LOG_INFO ? 0 : (fprintf(stderr, "%s: ", tag), \
+        fprintf(stderr, __VA_ARGS__), fputc('\n', stderr)))
+#endif
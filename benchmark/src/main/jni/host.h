@@ -0,0 +1,4 @@
+// Included before every source when building the native library for the
+// host. stlport provides bit_vector, which libstdc++ does not.
+#include <vector>
+namespace std { typedef vector<bool> bit_vector; }